@@ -0,0 +1,116 @@
+package org.notima.api.fortnox4j.cli.benchmark;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.notima.api.fortnox.entities3.Invoices;
+import org.notima.api.fortnox4j.cli.Fortnox4JExcel;
+import org.notima.api.fortnox4j.cli.Fortnox4JJson;
+import org.notima.api.fortnox4j.cli.Fortnox4JText;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the invoice export paths. Each operation exports the whole
+ * data set.
+ *
+ * Run with the GC profiler to get the allocations:
+ * <pre>
+ * java -jar target/benchmarks.jar ExportBenchmark -prof gc
+ * </pre>
+ * gc.alloc.rate.norm is bytes per operation, divide by rows for bytes per row.
+ * The rows counter is the throughput in rows per second.
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int rows;
+
+	private Invoices	invoices;
+	private File		excelFile;
+
+	/**
+	 * Counts the exported rows, reported as rows per second.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class RowCounter {
+		public long rows;
+	}
+
+	/**
+	 * Discards the output but counts the bytes.
+	 */
+	static class NullOutputStream extends OutputStream {
+		long count;
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		invoices = InvoiceData.createInvoices(rows, 42);
+		excelFile = File.createTempFile("fortnox4j-benchmark", ".xlsx");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		excelFile.delete();
+	}
+
+	@Benchmark
+	public long csvCompact(RowCounter counter) throws Exception {
+		NullOutputStream out = new NullOutputStream();
+		Fortnox4JText text = new Fortnox4JText();
+		text.setOutputStream(out);
+		counter.rows += text.reportCustomerInvoicesCompact(invoices);
+		text.writeResult();
+		return out.count;
+	}
+
+	@Benchmark
+	public long jsonCompact(RowCounter counter) throws Exception {
+		NullOutputStream out = new NullOutputStream();
+		Fortnox4JJson json = new Fortnox4JJson();
+		json.setOutputStream(out);
+		counter.rows += json.reportCustomerInvoicesCompact(invoices);
+		json.writeResult();
+		return out.count;
+	}
+
+	@Benchmark
+	public long xlsxCompact(RowCounter counter) throws Exception {
+		Fortnox4JExcel excel = new Fortnox4JExcel();
+		excel.setOutFile(excelFile);
+		counter.rows += excel.reportCustomerInvoicesCompact(invoices);
+		File created = excel.createExcelFile();
+		return created!=null ? created.length() : 0;
+	}
+
+}
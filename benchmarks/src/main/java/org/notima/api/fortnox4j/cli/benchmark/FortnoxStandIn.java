@@ -0,0 +1,556 @@
+package org.notima.api.fortnox4j.cli.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Fortnox v3 endpoints used by the CLI. Serves
+ * synthetic invoices, customers, company settings, financial years, SIE4
+ * files and the locked period.
+ *
+ * Each request can be delayed by a fixed latency, and requests above the
+ * rate limit for an access token are answered with 429, like Fortnox does.
+ * Responses are JSON unless the request accepts XML.
+ *
+ * The data is derived from the invoice and customer number, so any volume
+ * can be served without keeping it in memory.
+ *
+ */
+public class FortnoxStandIn {
+
+	public static final String ACCESS_TOKEN_HEADER = "Access-Token";
+
+	private int			invoiceCount = 10000;
+	private int			customerCount = 1000;
+	private int			financialYears = 3;
+	private int			vouchersPerYear = 5000;
+	private long		latencyMs = 0;
+	private int			rateLimit = 25;
+	private long		ratePeriodMs = 5000;
+	private int			pageSize = 500;
+	private int			threads = 32;
+
+	private HttpServer		server;
+	private ExecutorService	executor;
+
+	private final Map<String, AtomicLong>	requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong				rejected = new AtomicLong();
+	private final Map<String, long[]>		windows = new HashMap<String, long[]>();
+	private final AtomicLong				nextDocumentNumber = new AtomicLong(1000000);
+
+	public void setInvoiceCount(int invoiceCount) {
+		this.invoiceCount = invoiceCount;
+	}
+
+	public void setCustomerCount(int customerCount) {
+		this.customerCount = Math.max(1, customerCount);
+	}
+
+	public void setFinancialYears(int financialYears) {
+		this.financialYears = Math.max(1, financialYears);
+	}
+
+	public void setVouchersPerYear(int vouchersPerYear) {
+		this.vouchersPerYear = vouchersPerYear;
+	}
+
+	/**
+	 * @param latencyMs		Delay of each response.
+	 */
+	public void setLatencyMs(long latencyMs) {
+		this.latencyMs = latencyMs;
+	}
+
+	/**
+	 * @param rateLimit		Requests allowed per period and access token. 0 for no limit.
+	 * @param ratePeriodMs	The period.
+	 */
+	public void setRateLimit(int rateLimit, long ratePeriodMs) {
+		this.rateLimit = rateLimit;
+		this.ratePeriodMs = ratePeriodMs;
+	}
+
+	public void setPageSize(int pageSize) {
+		this.pageSize = Math.max(1, pageSize);
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Starts the server on a free port on localhost.
+	 *
+	 * @return	The port.
+	 * @throws IOException	If the server can't be started.
+	 */
+	public int start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/3/", this::handle);
+		server.start();
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		if (server!=null)
+			server.stop(0);
+		if (executor!=null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * @return	Number of requests per endpoint since last reset.
+	 */
+	public Map<String, Long> getRequestCounts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> e : requestCounts.entrySet()) {
+			result.put(e.getKey(), e.getValue().get());
+		}
+		return result;
+	}
+
+	/**
+	 * @return	Number of requests answered with 429 since last reset.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public void resetCounts() {
+		requestCounts.clear();
+		rejected.set(0);
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+
+		try {
+			URI uri = ex.getRequestURI();
+			String[] path = uri.getPath().substring(3).split("/");
+			String endpoint = ex.getRequestMethod() + " " + path[0] + (path.length > 1 && path[1].length() > 0 && !Character.isDigit(path[1].charAt(0)) ? "/" + path[1] : "");
+			requestCounts.computeIfAbsent(endpoint, k -> new AtomicLong()).incrementAndGet();
+
+			if (latencyMs > 0) {
+				Thread.sleep(latencyMs);
+			}
+
+			if (!allow(ex.getRequestHeaders().getFirst(ACCESS_TOKEN_HEADER))) {
+				rejected.incrementAndGet();
+				send(ex, 429, "application/json", "{\"message\":\"Too Many Requests\"}".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			Map<String, String> query = parseQuery(uri.getRawQuery());
+			String accept = ex.getRequestHeaders().getFirst("Accept");
+			Doc doc = accept!=null && accept.contains("xml") && !accept.contains("json") ? new XmlDoc() : new JsonDoc();
+
+			if ("sie".equals(path[0])) {
+				int yearId = parseInt(query.get("financialyear"), financialYears);
+				send(ex, 200, "text/plain; charset=IBM437", sie(yearId));
+				return;
+			}
+
+			if ("POST".equals(ex.getRequestMethod()) || "PUT".equals(ex.getRequestMethod())) {
+				readFully(ex.getRequestBody());
+				if ("invoices".equals(path[0])) {
+					invoice(doc, nextDocumentNumber.incrementAndGet(), false);
+				} else if ("customers".equals(path[0])) {
+					customer(doc, path.length > 1 ? parseInt(path[1], 1) : 1, false);
+				} else {
+					send(ex, 404, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+					return;
+				}
+			} else if ("invoices".equals(path[0]) && path.length > 1) {
+				invoice(doc, parseInt(path[1], 1), false);
+			} else if ("invoices".equals(path[0])) {
+				invoices(doc, parseInt(query.get("page"), 1), query.get("filter"));
+			} else if ("customers".equals(path[0]) && path.length > 1) {
+				customer(doc, parseInt(path[1], 1), false);
+			} else if ("customers".equals(path[0])) {
+				customers(doc, parseInt(query.get("page"), 1));
+			} else if ("settings".equals(path[0]) && path.length > 1 && "company".equals(path[1])) {
+				doc.begin("CompanySettings");
+				doc.field("Name", "Stand-in Company AB");
+				doc.field("OrganizationNumber", "556000-0000");
+				doc.end("CompanySettings");
+			} else if ("settings".equals(path[0]) && path.length > 1 && "lockedperiod".equals(path[1])) {
+				doc.begin("LockedPeriod");
+				doc.field("EndDate", (Calendar.getInstance().get(Calendar.YEAR) - 1) + "-12-31");
+				doc.end("LockedPeriod");
+			} else if ("financialyears".equals(path[0])) {
+				financialYears(doc, query.get("date"));
+			} else {
+				send(ex, 404, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+
+			send(ex, 200, doc.contentType(), doc.toBytes());
+
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			send(ex, 503, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+		} catch (RuntimeException e) {
+			send(ex, 500, "application/json", ("{\"message\":\"" + e + "\"}").getBytes(StandardCharsets.UTF_8));
+		}
+
+	}
+
+	/**
+	 * Fixed window rate limit per access token
+	 */
+	private boolean allow(String token) {
+		if (rateLimit <= 0)
+			return true;
+		String key = token!=null ? token : "";
+		long now = System.currentTimeMillis();
+		synchronized (windows) {
+			long[] w = windows.get(key);
+			if (w==null) {
+				w = new long[] {now, 0};
+				windows.put(key, w);
+			}
+			if (now - w[0] >= ratePeriodMs) {
+				w[0] = now;
+				w[1] = 0;
+			}
+			return ++w[1] <= rateLimit;
+		}
+	}
+
+	private void invoices(Doc doc, int page, String filter) {
+
+		// Unpaid / unbooked filters get every fourth invoice
+		boolean filtered = filter!=null && filter.length() > 0;
+		int total = filtered ? (invoiceCount + 3) / 4 : invoiceCount;
+		int pages = Math.max(1, (total + pageSize - 1) / pageSize);
+		doc.beginList("Invoices", "InvoiceSubset", total, pages, page);
+		int start = (page - 1) * pageSize;
+		for (int i=start; i<Math.min(total, start + pageSize); i++) {
+			invoice(doc, filtered ? 1 + i*4 : 1 + i, true);
+		}
+		doc.endList("Invoices");
+
+	}
+
+	private void invoice(Doc doc, long no, boolean subset) {
+
+		Random rnd = new Random(no);
+		String name = subset ? "InvoiceSubset" : "Invoice";
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_YEAR, -(int)(no % 700));
+		double total = Math.round(rnd.nextDouble()*100000)/100.0;
+		boolean paid = no % 4 != 1;
+
+		doc.begin(name);
+		doc.field("DocumentNumber", Long.toString(no));
+		doc.field("InvoiceType", "INVOICE");
+		doc.field("InvoiceDate", date(cal.getTime()));
+		cal.add(Calendar.DAY_OF_YEAR, 30);
+		doc.field("DueDate", date(cal.getTime()));
+		doc.field("CustomerNumber", Long.toString(1 + no % customerCount));
+		doc.field("CustomerName", "Customer " + (1 + no % customerCount) + " AB");
+		doc.field("Total", total);
+		doc.field("Balance", paid ? 0.0 : total);
+		doc.field("Currency", "SEK");
+		doc.field("TermsOfPayment", "30");
+		doc.field("ExternalInvoiceReference1", "ORD-" + no);
+		doc.field("ExternalInvoiceReference2", "");
+		doc.field("Booked", paid);
+		doc.field("Cancelled", false);
+		if (!subset) {
+			doc.field("OrderReference", "ORD-" + no);
+			doc.field("YourOrderNumber", "PO-" + rnd.nextInt(100000));
+		}
+		doc.end(name);
+
+	}
+
+	private void customers(Doc doc, int page) {
+
+		int pages = Math.max(1, (customerCount + pageSize - 1) / pageSize);
+		doc.beginList("Customers", "CustomerSubset", customerCount, pages, page);
+		int start = (page - 1) * pageSize;
+		for (int i=start; i<Math.min(customerCount, start + pageSize); i++) {
+			customer(doc, 1 + i, true);
+		}
+		doc.endList("Customers");
+
+	}
+
+	private void customer(Doc doc, long no, boolean subset) {
+
+		String name = subset ? "CustomerSubset" : "Customer";
+		doc.begin(name);
+		doc.field("CustomerNumber", Long.toString(no));
+		doc.field("Name", "Customer " + no + " AB");
+		doc.field("OrganisationNumber", String.format("556%03d-%04d", no % 1000, no % 10000));
+		doc.field("Email", "invoice@customer" + no + ".example");
+		doc.field("Phone1", "08-" + (100000 + no));
+		doc.field("Address1", "Street " + no);
+		doc.field("City", "Stockholm");
+		if (!subset) {
+			doc.field("TermsOfPayment", "30");
+			doc.field("DeliveryAddress1", "Street " + no);
+		}
+		doc.end(name);
+
+	}
+
+	/**
+	 * Financial years are calendar years. Year id 1 is the oldest.
+	 */
+	private void financialYears(Doc doc, String date) {
+
+		int currentYear = Calendar.getInstance().get(Calendar.YEAR);
+		int year = date!=null && date.length() >= 4 ? parseInt(date.substring(0, 4), currentYear) : currentYear;
+		int id = year - currentYear + financialYears;
+		boolean found = id >= 1 && id <= financialYears;
+		doc.beginList("FinancialYears", "FinancialYearSubset", found ? 1 : 0, 1, 1);
+		if (found) {
+			doc.begin("FinancialYearSubset");
+			doc.field("Id", id);
+			doc.field("FromDate", year + "-01-01");
+			doc.field("ToDate", year + "-12-31");
+			doc.field("AccountChartType", "BAS 2023");
+			doc.field("AccountingMethod", "ACCRUAL");
+			doc.end("FinancialYearSubset");
+		}
+		doc.endList("FinancialYears");
+
+	}
+
+	/**
+	 * A SIE4 file with synthetic vouchers for given year
+	 */
+	private byte[] sie(int yearId) {
+
+		int year = Calendar.getInstance().get(Calendar.YEAR) - financialYears + yearId;
+		Random rnd = new Random(yearId);
+		StringBuilder sb = new StringBuilder(vouchersPerYear * 120);
+		sb.append("#FLAGGA 0\r\n#PROGRAM \"Fortnox stand-in\" 1.0\r\n#FORMAT PC8\r\n#SIETYP 4\r\n");
+		sb.append("#FNAMN \"Stand-in Company AB\"\r\n#ORGNR 556000-0000\r\n");
+		sb.append("#RAR 0 ").append(year).append("0101 ").append(year).append("1231\r\n");
+		sb.append("#KONTO 1510 \"Kundfordringar\"\r\n#KONTO 1930 \"Foretagskonto\"\r\n");
+		sb.append("#KONTO 2611 \"Utgaende moms 25%\"\r\n#KONTO 3001 \"Forsaljning 25%\"\r\n");
+		sb.append("#IB 0 1930 100000.00\r\n");
+		for (int v=1; v<=vouchersPerYear; v++) {
+			int month = 1 + (v * 12 - 1) / vouchersPerYear;
+			String date = String.format("%d%02d%02d", year, month, 1 + rnd.nextInt(28));
+			long net = 10000 + rnd.nextInt(1000000);
+			long vat = net / 4;
+			sb.append("#VER A ").append(v).append(' ').append(date).append(" \"Invoice ").append(v).append("\"\r\n{\r\n");
+			sb.append("#TRANS 1510 {} ").append(amount(net + vat)).append("\r\n");
+			sb.append("#TRANS 2611 {} ").append(amount(-vat)).append("\r\n");
+			sb.append("#TRANS 3001 {} ").append(amount(-net)).append("\r\n");
+			sb.append("}\r\n");
+		}
+		Charset cs = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+		return sb.toString().getBytes(cs);
+
+	}
+
+	private static String amount(long cents) {
+		long abs = Math.abs(cents);
+		return (cents < 0 ? "-" : "") + (abs / 100) + "." + String.format("%02d", abs % 100);
+	}
+
+	private static String date(Date d) {
+		return new SimpleDateFormat("yyyy-MM-dd").format(d);
+	}
+
+	private static int parseInt(String s, int defaultValue) {
+		try {
+			return s!=null ? Integer.parseInt(s) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+		Map<String, String> result = new HashMap<String, String>();
+		if (rawQuery==null)
+			return result;
+		for (String p : rawQuery.split("&")) {
+			int eq = p.indexOf('=');
+			if (eq > 0) {
+				result.put(p.substring(0, eq), URLDecoder.decode(p.substring(eq + 1), "UTF-8"));
+			}
+		}
+		return result;
+	}
+
+	private static void readFully(InputStream in) throws IOException {
+		byte[] buf = new byte[8192];
+		while (in.read(buf) >= 0);
+	}
+
+	private static void send(HttpExchange ex, int status, String contentType, byte[] body) throws IOException {
+		ex.getResponseHeaders().set("Content-Type", contentType);
+		ex.sendResponseHeaders(status, body.length);
+		try (OutputStream out = ex.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Writes a response document as JSON or XML
+	 */
+	private static abstract class Doc {
+
+		protected StringBuilder sb = new StringBuilder();
+
+		abstract void begin(String name);
+		abstract void end(String name);
+		abstract void beginList(String name, String itemName, int total, int pages, int page);
+		abstract void endList(String name);
+		abstract void field(String name, Object value);
+		abstract String contentType();
+
+		byte[] toBytes() {
+			return sb.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+	}
+
+	private static class JsonDoc extends Doc {
+
+		private int		depth;
+		private boolean	first = true;
+		private boolean	inList;
+
+		JsonDoc() {
+			sb.append('{');
+		}
+
+		private void separator() {
+			if (!first)
+				sb.append(',');
+			first = false;
+		}
+
+		@Override
+		void begin(String name) {
+			separator();
+			if (!inList || depth > 1) {
+				sb.append('"').append(name).append("\":");
+			}
+			sb.append('{');
+			depth++;
+			first = true;
+		}
+
+		@Override
+		void end(String name) {
+			sb.append('}');
+			depth--;
+			first = false;
+		}
+
+		@Override
+		void beginList(String name, String itemName, int total, int pages, int page) {
+			separator();
+			sb.append("\"MetaInformation\":{\"@TotalResources\":").append(total)
+				.append(",\"@TotalPages\":").append(pages)
+				.append(",\"@CurrentPage\":").append(page).append("},");
+			sb.append('"').append(name).append("\":[");
+			inList = true;
+			first = true;
+		}
+
+		@Override
+		void endList(String name) {
+			sb.append(']');
+			inList = false;
+			first = false;
+		}
+
+		@Override
+		void field(String name, Object value) {
+			separator();
+			sb.append('"').append(name).append("\":");
+			if (value instanceof Number || value instanceof Boolean) {
+				sb.append(value);
+			} else {
+				sb.append('"').append(value.toString().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+			}
+		}
+
+		@Override
+		byte[] toBytes() {
+			sb.append('}');
+			return super.toBytes();
+		}
+
+		@Override
+		String contentType() {
+			return "application/json";
+		}
+
+	}
+
+	private static class XmlDoc extends Doc {
+
+		XmlDoc() {
+			sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		}
+
+		@Override
+		void begin(String name) {
+			sb.append('<').append(name).append('>');
+		}
+
+		@Override
+		void end(String name) {
+			sb.append("</").append(name).append('>');
+		}
+
+		@Override
+		void beginList(String name, String itemName, int total, int pages, int page) {
+			sb.append('<').append(name)
+				.append(" TotalResources=\"").append(total)
+				.append("\" TotalPages=\"").append(pages)
+				.append("\" CurrentPage=\"").append(page).append("\">");
+		}
+
+		@Override
+		void endList(String name) {
+			end(name);
+		}
+
+		@Override
+		void field(String name, Object value) {
+			sb.append('<').append(name).append('>')
+				.append(value.toString().replace("&", "&amp;").replace("<", "&lt;"))
+				.append("</").append(name).append('>');
+		}
+
+		@Override
+		String contentType() {
+			return "application/xml";
+		}
+
+	}
+
+}
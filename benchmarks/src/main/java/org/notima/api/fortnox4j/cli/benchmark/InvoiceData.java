@@ -0,0 +1,66 @@
+package org.notima.api.fortnox4j.cli.benchmark;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.notima.api.fortnox.entities3.InvoiceSubset;
+import org.notima.api.fortnox.entities3.Invoices;
+
+/**
+ * Creates synthetic invoice lists for the benchmarks.
+ *
+ */
+public class InvoiceData {
+
+	private static final String[] CURRENCIES = new String[] {"SEK", "SEK", "SEK", "EUR", "NOK"};
+	private static final String[] TERMS = new String[] {"10", "15", "30"};
+
+	/**
+	 * Creates a list of invoices. The same seed gives the same invoices.
+	 *
+	 * @param rows		Number of invoices.
+	 * @param seed		Random seed.
+	 * @return	The invoices.
+	 */
+	public static Invoices createInvoices(int rows, long seed) throws Exception {
+
+		Random rnd = new Random(seed);
+		Calendar cal = Calendar.getInstance();
+		cal.set(2020, Calendar.JANUARY, 1, 0, 0, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+
+		List<InvoiceSubset> list = new ArrayList<InvoiceSubset>(rows);
+		for (int i=0; i<rows; i++) {
+			InvoiceSubset is = new InvoiceSubset();
+			cal.add(Calendar.MINUTE, 7);
+			Date invoiceDate = cal.getTime();
+			Date dueDate = new Date(invoiceDate.getTime() + 30L*24*3600*1000);
+			double total = Math.round(rnd.nextDouble()*100000)/100.0;
+			boolean paid = rnd.nextInt(4)==0;
+
+			is.setDocumentNumber(Integer.toString(100000 + i));
+			is.setInvoiceType("INVOICE");
+			is.setInvoiceDate(invoiceDate);
+			is.setDueDate(dueDate);
+			is.setCustomerNumber(Integer.toString(1000 + rnd.nextInt(5000)));
+			is.setCustomerName("Customer " + rnd.nextInt(5000) + " AB");
+			is.setTotal(total);
+			is.setBalance(paid ? 0.0 : total);
+			is.setCurrency(CURRENCIES[rnd.nextInt(CURRENCIES.length)]);
+			is.setTermsOfPayment(TERMS[rnd.nextInt(TERMS.length)]);
+			is.setExternalInvoiceReference1("ORD-" + rnd.nextInt(1000000));
+			is.setExternalInvoiceReference2("");
+			is.setBooked(rnd.nextBoolean());
+			list.add(is);
+		}
+
+		Invoices invoices = new Invoices();
+		invoices.setInvoiceSubset(list);
+		return invoices;
+
+	}
+
+}
@@ -0,0 +1,233 @@
+package org.notima.api.fortnox4j.cli.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+
+import org.notima.api.fortnox4j.cli.Fortnox4JServer;
+import org.notima.api.fortnox4j.cli.Fortnox4Jcli;
+
+/**
+ * Runs Fortnox4Jcli commands against a local {@link FortnoxStandIn} and
+ * records wall time, requests and peak heap per command.
+ *
+ * Usage:
+ * <pre>
+ * java -cp target/benchmarks.jar org.notima.api.fortnox4j.cli.benchmark.LoadHarness
+ *     [-invoices n] [-customers n] [-years n] [-vouchers n] [-latency ms]
+ *     [-ratelimit n] [-pagesize n] [script]
+ * </pre>
+ * The script has one command per line with the same arguments as the command
+ * line. Credentials for the stand-in are added to each command. Without a
+ * script a default set of commands is run.
+ *
+ * Requests to api.fortnox.se are redirected to the stand-in, so the commands
+ * run unmodified. Other https hosts can't be reached while the harness runs.
+ *
+ */
+public class LoadHarness {
+
+	public static final String FORTNOX_HOST = "api.fortnox.se";
+
+	private static final String ACCESS_TOKEN = "standin-token";
+	private static final String DEST_ACCESS_TOKEN = "standin-dest-token";
+	private static final String CLIENT_SECRET = "standin-secret";
+
+	public static void main(String[] args) throws Exception {
+
+		FortnoxStandIn standIn = new FortnoxStandIn();
+		String script = null;
+		for (int i=0; i<args.length; i++) {
+			String a = args[i];
+			if ("-invoices".equals(a)) {
+				standIn.setInvoiceCount(Integer.parseInt(args[++i]));
+			} else if ("-customers".equals(a)) {
+				standIn.setCustomerCount(Integer.parseInt(args[++i]));
+			} else if ("-years".equals(a)) {
+				standIn.setFinancialYears(Integer.parseInt(args[++i]));
+			} else if ("-vouchers".equals(a)) {
+				standIn.setVouchersPerYear(Integer.parseInt(args[++i]));
+			} else if ("-latency".equals(a)) {
+				standIn.setLatencyMs(Long.parseLong(args[++i]));
+			} else if ("-ratelimit".equals(a)) {
+				standIn.setRateLimit(Integer.parseInt(args[++i]), 5000);
+			} else if ("-pagesize".equals(a)) {
+				standIn.setPageSize(Integer.parseInt(args[++i]));
+			} else {
+				script = a;
+			}
+		}
+
+		final int port = standIn.start();
+		redirect(port);
+
+		File workDir = File.createTempFile("fortnox4j-harness", "");
+		workDir.delete();
+		workDir.mkdirs();
+
+		List<String[]> commands = script!=null ? readScript(script) : defaultCommands(workDir);
+
+		PrintStream console = System.out;
+		console.println(String.format("Stand-in on port %d, work dir %s", port, workDir.getAbsolutePath()));
+		console.println(String.format("%-40s %4s %10s %9s %6s %10s", "Command", "RC", "Wall ms", "Requests", "429", "Peak MB"));
+
+		Fortnox4Jcli cli = new Fortnox4Jcli();
+		cli.setInteractive(false);
+		PrintStream discard = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+
+		try {
+			for (String[] command : commands) {
+				String[] cmdArgs = withCredentials(command);
+
+				standIn.resetCounts();
+				System.gc();
+				resetPeakHeap();
+
+				long start = System.nanoTime();
+				int rc = cli.runCommand(cmdArgs, discard);
+				long wall = (System.nanoTime() - start) / 1000000;
+
+				long requests = 0;
+				Map<String, Long> counts = standIn.getRequestCounts();
+				for (Long c : counts.values()) {
+					requests += c;
+				}
+				console.println(String.format("%-40s %4d %10d %9d %6d %10.1f",
+						describe(command), rc, wall, requests, standIn.getRejectedCount(), peakHeap() / (1024.0*1024.0)));
+				for (Map.Entry<String, Long> e : counts.entrySet()) {
+					console.println(String.format("    %-36s %25d", e.getKey(), e.getValue()));
+				}
+			}
+		} finally {
+			standIn.stop();
+		}
+
+	}
+
+	/**
+	 * Redirects https requests to the Fortnox API to the stand-in
+	 */
+	private static void redirect(final int port) {
+
+		URL.setURLStreamHandlerFactory(protocol -> {
+			if (!"https".equals(protocol))
+				return null;
+			return new URLStreamHandler() {
+				@Override
+				protected URLConnection openConnection(URL u) throws IOException {
+					if (!FORTNOX_HOST.equalsIgnoreCase(u.getHost())) {
+						throw new IOException("Only " + FORTNOX_HOST + " is available in the load harness: " + u);
+					}
+					return new URL("http", "127.0.0.1", port, u.getFile()).openConnection();
+				}
+			};
+		});
+
+	}
+
+	private static List<String[]> defaultCommands(File workDir) {
+
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.YEAR, -1);
+		String fromDate = new SimpleDateFormat("yyyy-MM-dd").format(cal.getTime());
+		String dir = workDir.getAbsolutePath();
+
+		List<String[]> commands = new ArrayList<String[]>();
+		commands.add(new String[] {"-c", "getLockedPeriod"});
+		commands.add(new String[] {"-c", "listUnpaidCustomerInvoices", "-o", dir + "/unpaid.csv"});
+		commands.add(new String[] {"-c", "listUnbookedCustomerInvoices", "-o", dir + "/unbooked.csv"});
+		commands.add(new String[] {"-c", "listCustomerInvoices", "-fromdate", fromDate, "-o", dir + "/all.csv"});
+		commands.add(new String[] {"-c", "listCustomerInvoices", "-fromdate", fromDate, "-format", "json", "-o", dir + "/all.json"});
+		commands.add(new String[] {"-c", "listUnpaidCustomerInvoices", "-enrich", "-o", dir + "/unpaid-enriched.csv"});
+		commands.add(new String[] {"-c", "getCustomerList", "-o", dir + "/customers.csv"});
+		commands.add(new String[] {"-c", "getSie4", "-fromdate", fromDate, "-o", dir + "/year.se"});
+		commands.add(new String[] {"-c", "archiveSie4", "-archivedir", dir + "/sie"});
+		commands.add(new String[] {"-c", "copyUnpaidAndUnbookedInvoices", "-y", "-journal", dir + "/copy.journal", "-o", dir + "/copy.txt"});
+		return commands;
+
+	}
+
+	private static List<String[]> readScript(String script) throws IOException {
+
+		List<String[]> commands = new ArrayList<String[]>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(script), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine())!=null) {
+				String[] args = Fortnox4JServer.tokenize(line);
+				if (args.length > 0)
+					commands.add(args);
+			}
+		}
+		return commands;
+
+	}
+
+	private static String[] withCredentials(String[] command) {
+		String[] result = new String[command.length + 6];
+		System.arraycopy(command, 0, result, 0, command.length);
+		int i = command.length;
+		result[i++] = "-t";
+		result[i++] = ACCESS_TOKEN;
+		result[i++] = "-s";
+		result[i++] = CLIENT_SECRET;
+		result[i++] = "-destaccesstoken";
+		result[i++] = DEST_ACCESS_TOKEN;
+		return result;
+	}
+
+	private static String describe(String[] command) {
+		StringBuilder sb = new StringBuilder();
+		for (String a : command) {
+			if (a.startsWith("-o") || a.contains(File.separator))
+				continue;
+			if (sb.length() > 0)
+				sb.append(' ');
+			sb.append(a);
+		}
+		return sb.length() > 40 ? sb.substring(0, 40) : sb.toString();
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType()==MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * Sum of the peak usage of the heap pools. The pools peak at different
+	 * times, so this is an upper bound.
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType()==MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+}
@@ -0,0 +1,79 @@
+package org.notima.api.fortnox4j.cli.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the cold start latency of a command by running it as a new
+ * process a number of times and reporting the wall time.
+ *
+ * Usage:
+ * <pre>
+ * java -cp target/benchmarks.jar org.notima.api.fortnox4j.cli.benchmark.StartupHarness
+ *     [-runs n] [-warmup n] -- command [args]
+ * </pre>
+ * ie compare
+ * <pre>
+ * ... StartupHarness -- java -jar target/fortnox4j-cli.jar -c sieBalance -siefile company.se
+ * ... StartupHarness -- java -XX:SharedArchiveFile=target/fortnox4j-cli.jsa -jar target/fortnox4j-cli.jar -c sieBalance -siefile company.se
+ * ... StartupHarness -- target/fortnox4j-cli -c sieBalance -siefile company.se
+ * </pre>
+ * The output of the command is discarded. The warmup runs fill the OS file
+ * cache and aren't reported.
+ *
+ */
+public class StartupHarness {
+
+	public static void main(String[] args) throws Exception {
+
+		int runs = 10;
+		int warmup = 2;
+		List<String> command = null;
+		for (int i=0; i<args.length; i++) {
+			String a = args[i];
+			if ("-runs".equals(a)) {
+				runs = Math.max(1, Integer.parseInt(args[++i]));
+			} else if ("-warmup".equals(a)) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if ("--".equals(a)) {
+				command = new ArrayList<String>(Arrays.asList(args).subList(i + 1, args.length));
+				break;
+			}
+		}
+		if (command==null || command.isEmpty()) {
+			System.err.println("Usage: StartupHarness [-runs n] [-warmup n] -- command [args]");
+			System.exit(1);
+		}
+
+		for (int i=0; i<warmup; i++) {
+			run(command);
+		}
+
+		long[] times = new long[runs];
+		int failed = 0;
+		for (int i=0; i<runs; i++) {
+			long start = System.nanoTime();
+			int rc = run(command);
+			times[i] = System.nanoTime() - start;
+			if (rc!=0)
+				failed++;
+		}
+		Arrays.sort(times);
+
+		System.out.println(String.join(" ", command));
+		System.out.println(String.format("%d runs: min %d ms, median %d ms, max %d ms%s",
+				runs, times[0]/1000000, times[runs/2]/1000000, times[runs - 1]/1000000,
+				failed>0 ? ", " + failed + " runs failed" : ""));
+
+	}
+
+	private static int run(List<String> command) throws Exception {
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null"));
+		return pb.start().waitFor();
+	}
+
+}
@@ -0,0 +1,365 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.notima.api.fortnox.entities3.InvoiceSubset;
+
+/**
+ * Aging and reconciliation summary of customer invoices.
+ *
+ * The balance of each invoice is put in an aging bucket by the number of days
+ * its due date is before the reference date. The buckets are summed per
+ * currency and per customer, and the customers with the largest balance are
+ * reported per currency. Amounts in different currencies are never added.
+ *
+ * The invoices are aggregated in one pass, split over the available cores.
+ * Amounts are summed in cents so the result doesn't depend on how the work
+ * is split.
+ *
+ */
+public class Fortnox4JAging {
+
+	public static final int[] DEFAULT_BUCKETS = new int[] {30, 60, 90};
+	public static final int DEFAULT_TOP = 20;
+
+	private final long		referenceDay;
+	private final int[]		bucketLimits;
+	private final int		top;
+
+	/**
+	 * Totals of a currency or a customer.
+	 */
+	public static class Totals {
+
+		String		currency;
+		String		customerNumber;
+		String		customerName;
+		long		count;
+		long		total;
+		long		balance;
+		long[]		buckets;
+
+		Totals(int bucketCount) {
+			buckets = new long[bucketCount];
+		}
+
+		void merge(Totals other) {
+			count += other.count;
+			total += other.total;
+			balance += other.balance;
+			for (int i=0; i<buckets.length; i++) {
+				buckets[i] += other.buckets[i];
+			}
+			if (customerName==null) {
+				customerName = other.customerName;
+			}
+		}
+
+		public String getCurrency() {
+			return currency;
+		}
+
+		public String getCustomerNumber() {
+			return customerNumber;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return	The balance in cents.
+		 */
+		public long getBalance() {
+			return balance;
+		}
+
+		/**
+		 * @param bucket	The bucket, 0 is not due.
+		 * @return	The balance of the bucket in cents.
+		 */
+		public long getBucket(int bucket) {
+			return buckets[bucket];
+		}
+
+	}
+
+	/**
+	 * The totals of a part of the invoices.
+	 */
+	class Partial {
+
+		Map<String, Totals>	currencies = new HashMap<String, Totals>();
+		Map<String, Totals>	customers = new HashMap<String, Totals>();
+
+		void add(InvoiceSubset is) {
+
+			long total = toCents(is.getTotal());
+			long balance = toCents(is.getBalance());
+			int bucket = getBucket(is.getDueDate());
+
+			String currency = is.getCurrency()!=null ? is.getCurrency() : "";
+			Totals ct = currencies.get(currency);
+			if (ct==null) {
+				ct = new Totals(bucketLimits.length + 2);
+				ct.currency = currency;
+				currencies.put(currency, ct);
+			}
+			add(ct, total, balance, bucket);
+
+			String key = currency + '\u0000' + is.getCustomerNumber();
+			Totals cust = customers.get(key);
+			if (cust==null) {
+				cust = new Totals(bucketLimits.length + 2);
+				cust.currency = currency;
+				cust.customerNumber = is.getCustomerNumber();
+				cust.customerName = is.getCustomerName();
+				customers.put(key, cust);
+			}
+			add(cust, total, balance, bucket);
+
+		}
+
+		private void add(Totals t, long total, long balance, int bucket) {
+			t.count++;
+			t.total += total;
+			t.balance += balance;
+			t.buckets[bucket] += balance;
+		}
+
+		void merge(Partial other) {
+			merge(currencies, other.currencies);
+			merge(customers, other.customers);
+		}
+
+		private void merge(Map<String, Totals> into, Map<String, Totals> from) {
+			for (Map.Entry<String, Totals> e : from.entrySet()) {
+				Totals t = into.get(e.getKey());
+				if (t==null) {
+					into.put(e.getKey(), e.getValue());
+				} else {
+					t.merge(e.getValue());
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The result of an aggregation.
+	 */
+	public static class Result {
+
+		private Map<String, Totals>			currencies;
+		private Map<String, List<Totals>>	topCustomers;
+
+		/**
+		 * @return	The totals per currency, by currency.
+		 */
+		public Map<String, Totals> getCurrencies() {
+			return currencies;
+		}
+
+		/**
+		 * @return	The customers with the largest balance per currency, largest first.
+		 */
+		public Map<String, List<Totals>> getTopCustomers() {
+			return topCustomers;
+		}
+
+	}
+
+	/**
+	 * @param referenceDate		The date the age is counted from. Null means today.
+	 * @param bucketLimits		The last day overdue of each bucket, ie 30, 60, 90.
+	 * 							Invoices more overdue than the last limit are in a last bucket.
+	 * @param top				The number of customers reported per currency.
+	 */
+	public Fortnox4JAging(Date referenceDate, int[] bucketLimits, int top) {
+
+		this.referenceDay = toDay(referenceDate!=null ? referenceDate : new Date());
+		this.bucketLimits = bucketLimits.clone();
+		Arrays.sort(this.bucketLimits);
+		this.top = Math.max(0, top);
+
+	}
+
+	/**
+	 * Aggregates the invoices using all cores.
+	 *
+	 * @param invoices	The invoices.
+	 * @return	The totals.
+	 */
+	public Result aggregate(List<InvoiceSubset> invoices) {
+
+		Partial all = invoices.parallelStream().collect(Partial::new, Partial::add, Partial::merge);
+
+		Result result = new Result();
+		result.currencies = new TreeMap<String, Totals>(all.currencies);
+
+		Map<String, List<Totals>> byCurrency = new TreeMap<String, List<Totals>>();
+		for (Totals t : all.customers.values()) {
+			List<Totals> list = byCurrency.get(t.currency);
+			if (list==null) {
+				list = new ArrayList<Totals>();
+				byCurrency.put(t.currency, list);
+			}
+			list.add(t);
+		}
+		for (Map.Entry<String, List<Totals>> e : byCurrency.entrySet()) {
+			List<Totals> list = e.getValue();
+			Collections.sort(list, (a, b) -> {
+				int c = Long.compare(b.balance, a.balance);
+				return c!=0 ? c : String.valueOf(a.customerNumber).compareTo(String.valueOf(b.customerNumber));
+			});
+			if (list.size() > top) {
+				e.setValue(new ArrayList<Totals>(list.subList(0, top)));
+			}
+		}
+		result.topCustomers = byCurrency;
+
+		return result;
+
+	}
+
+	/**
+	 * Reports the aging per currency followed by the top customers per currency.
+	 *
+	 * @param sink		Where the report is written.
+	 * @param result	The aggregated totals.
+	 * @return	The number of rows reported.
+	 */
+	public int report(Fortnox4JRowSink sink, Result result) throws Exception {
+
+		String[] buckets = getBucketNames();
+		int count = 0;
+
+		Object[] header = new Object[4 + buckets.length];
+		header[0] = "Currency";
+		header[1] = "Invoices";
+		header[2] = "Total";
+		header[3] = "Balance";
+		System.arraycopy(buckets, 0, header, 4, buckets.length);
+		int[] types = new int[header.length];
+		Arrays.fill(types, Fortnox4JReportTable.AMOUNT);
+		types[0] = Fortnox4JReportTable.STRING;
+		types[1] = Fortnox4JReportTable.LONG;
+		sink.beginReport(header, types);
+
+		Object[] row = new Object[header.length];
+		for (Totals t : result.currencies.values()) {
+			row[0] = t.currency;
+			row[1] = Long.valueOf(t.count);
+			row[2] = toAmount(t.total);
+			row[3] = toAmount(t.balance);
+			for (int b=0; b<buckets.length; b++) {
+				row[4 + b] = toAmount(t.buckets[b]);
+			}
+			sink.writeRow(row);
+			count++;
+		}
+
+		header = new Object[5 + buckets.length];
+		header[0] = "Currency";
+		header[1] = "Cust No";
+		header[2] = "Cust Name";
+		header[3] = "Invoices";
+		header[4] = "Balance";
+		System.arraycopy(buckets, 0, header, 5, buckets.length);
+		types = new int[header.length];
+		Arrays.fill(types, Fortnox4JReportTable.AMOUNT);
+		types[0] = Fortnox4JReportTable.STRING;
+		types[1] = Fortnox4JReportTable.STRING;
+		types[2] = Fortnox4JReportTable.STRING;
+		types[3] = Fortnox4JReportTable.LONG;
+		sink.beginReport(header, types);
+
+		row = new Object[header.length];
+		for (List<Totals> list : result.topCustomers.values()) {
+			for (Totals t : list) {
+				row[0] = t.currency;
+				row[1] = t.customerNumber;
+				row[2] = t.customerName;
+				row[3] = Long.valueOf(t.count);
+				row[4] = toAmount(t.balance);
+				for (int b=0; b<buckets.length; b++) {
+					row[5 + b] = toAmount(t.buckets[b]);
+				}
+				sink.writeRow(row);
+				count++;
+			}
+		}
+
+		return count;
+
+	}
+
+	/**
+	 * @return	The column names of the buckets, ie "Not due", "1 to 30 days", ..., "Over 90 days".
+	 */
+	public String[] getBucketNames() {
+
+		String[] names = new String[bucketLimits.length + 2];
+		names[0] = "Not due";
+		int from = 1;
+		for (int i=0; i<bucketLimits.length; i++) {
+			names[i + 1] = from + " to " + bucketLimits[i] + " days";
+			from = bucketLimits[i] + 1;
+		}
+		names[names.length - 1] = "Over " + (from - 1) + " days";
+		return names;
+
+	}
+
+	/**
+	 * @param dueDate	The due date.
+	 * @return	The bucket of given due date. 0 is not due, also if there's no due date.
+	 */
+	int getBucket(Date dueDate) {
+
+		if (dueDate==null)
+			return 0;
+		long overdue = referenceDay - toDay(dueDate);
+		if (overdue <= 0)
+			return 0;
+		for (int i=0; i<bucketLimits.length; i++) {
+			if (overdue <= bucketLimits[i])
+				return i + 1;
+		}
+		return bucketLimits.length + 1;
+
+	}
+
+	/**
+	 * Parses bucket limits, ie "30,60,90".
+	 */
+	public static int[] parseBuckets(String s) {
+		String[] parts = s.split(",");
+		int[] result = new int[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			result[i] = Integer.parseInt(parts[i].trim());
+		}
+		return result;
+	}
+
+	private static long toDay(Date date) {
+		return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+
+	private static long toCents(double amount) {
+		return Math.round(amount * 100);
+	}
+
+	private static Double toAmount(long cents) {
+		return Double.valueOf(cents / 100.0);
+	}
+
+}
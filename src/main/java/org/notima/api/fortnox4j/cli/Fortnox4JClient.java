@@ -1,10 +1,19 @@
 package org.notima.api.fortnox4j.cli;
 
+import java.io.File;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.xml.bind.JAXB;
 
 import org.notima.api.fortnox.Fortnox4JSettings;
 import org.notima.api.fortnox.FortnoxClient3;
@@ -13,7 +22,9 @@ import org.notima.api.fortnox.entities3.CompanySetting;
 import org.notima.api.fortnox.entities3.Customer;
 import org.notima.api.fortnox.entities3.CustomerSubset;
 import org.notima.api.fortnox.entities3.Customers;
+import org.notima.api.fortnox.entities3.FinancialYearSubset;
 import org.notima.api.fortnox.entities3.Invoice;
+import org.notima.api.fortnox.entities3.InvoiceSubset;
 import org.notima.api.fortnox.entities3.Invoices;
 import org.notima.api.fortnox.entities3.Supplier;
 import org.slf4j.Logger;
@@ -26,6 +37,59 @@ public class Fortnox4JClient {
 	private FortnoxClient3		client;
 	private FortnoxClientInfo	clientInfo;
 	
+	// Max number of concurrent requests when fetching details
+	private int					parallelism = Fortnox4JParallelFetcher.DEFAULT_PARALLELISM;
+	
+	// Local cache of full invoices, null if not used
+	private Fortnox4JInvoiceCache	invoiceCache;
+	
+	// Local cache of company settings etc, null if not used
+	private Fortnox4JMetadataCache	metadataCache;
+	
+	// Limits the requests made with this client's access token
+	private Fortnox4JRateLimiter	rateLimiter = new Fortnox4JRateLimiter();
+	
+	public static final int DEFAULT_DATE_WINDOW_MONTHS = 1;
+	
+	/**
+	 * Rows per page of the Fortnox list endpoints, as Fortnox returns them by
+	 * default. Larger pages would only make the page count too high, which
+	 * slows down the listing but doesn't exceed the rate limit.
+	 */
+	public static final int LIST_PAGE_SIZE = 100;
+	
+	/**
+	 * Max date windows listed at the same time. Each window fetches its pages
+	 * one at a time, two windows stay about within the rate limit.
+	 */
+	public static final int LIST_WINDOW_PARALLELISM = 2;
+	
+	// Months per window when listing invoices by date range, 0 means one window
+	private int					dateWindowMonths = DEFAULT_DATE_WINDOW_MONTHS;
+	
+	/**
+	 * Orders invoices by invoice date and then by document number.
+	 */
+	public static final Comparator<InvoiceSubset> INVOICE_DATE_ORDER = (a, b) -> {
+		Date da = a.getInvoiceDate();
+		Date db = b.getInvoiceDate();
+		if (da!=db) {
+			if (da==null)
+				return 1;
+			if (db==null)
+				return -1;
+			int c = da.compareTo(db);
+			if (c!=0)
+				return c;
+		}
+		String na = a.getDocumentNumber()!=null ? a.getDocumentNumber() : "";
+		String nb = b.getDocumentNumber()!=null ? b.getDocumentNumber() : "";
+		// Document numbers are numeric, compare the length first
+		if (na.length()!=nb.length())
+			return na.length() - nb.length();
+		return na.compareTo(nb);
+	};
+	
 	/**
 	 * Create a new Fortnox4JClient from FortnoxClientInfo
 	 * 
@@ -35,9 +99,24 @@ public class Fortnox4JClient {
 
 		clientInfo = ci;
 		client = new FortnoxClient3(clientInfo.getAccessToken(), clientInfo.getClientSecret());
-		
+
 	}
-	
+
+	/**
+	 * Creates a client sharing the connection and the rate limiter of given
+	 * client, with its own settings (parallelism, date window and caches).
+	 * Used to give each command in batch and server mode its own settings.
+	 *
+	 * @param shared	The client to share the connection with.
+	 */
+	Fortnox4JClient(Fortnox4JClient shared) {
+
+		clientInfo = shared.clientInfo;
+		client = shared.client;
+		rateLimiter = shared.rateLimiter;
+
+	}
+
 	public FortnoxClient3 getClient() {
 		return client;
 	}
@@ -46,8 +125,175 @@ public class Fortnox4JClient {
 		this.client = client;
 	}
 
+	/**
+	 * @return	Max number of concurrent requests when fetching details.
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets max number of concurrent requests when fetching details.
+	 * 
+	 * @param parallelism	Values less than 1 are treated as 1.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public int getDateWindowMonths() {
+		return dateWindowMonths;
+	}
+
+	/**
+	 * Sets the size of the date windows that are fetched concurrently by
+	 * {@link #getAllCustomerInvoicesByDateWindows(Date, Date)}.
+	 * 
+	 * @param dateWindowMonths	Months per window. 0 or less fetches the range in one request.
+	 */
+	public void setDateWindowMonths(int dateWindowMonths) {
+		this.dateWindowMonths = Math.max(0, dateWindowMonths);
+	}
+
+	public Fortnox4JRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Sets the rate limiter for this client. Each client should have its own
+	 * limiter since Fortnox limits the requests per access token.
+	 * 
+	 * @param rateLimiter	The rate limiter. Null means no limit.
+	 */
+	public void setRateLimiter(Fortnox4JRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	/**
+	 * Waits until the rate limit allows another request.
+	 */
+	private void acquire() throws InterruptedException {
+		acquire(1);
+	}
+	
+	/**
+	 * Waits until the rate limit allows given number of requests.
+	 */
+	private void acquire(int permits) throws InterruptedException {
+		if (rateLimiter!=null && permits>0) {
+			long start = System.nanoTime();
+			rateLimiter.acquire(permits);
+			Fortnox4JMetrics.global().record(Fortnox4JMetrics.RATELIMIT, "wait", System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Makes an API call through the rate limiter and records its latency.
+	 * 
+	 * @param name		The name of the call in the metrics.
+	 * @param call		The call
+	 * @return	The result of the call
+	 */
+	private <T> T call(String name, Callable<T> call) throws Exception {
+		acquire();
+		long start = System.nanoTime();
+		try {
+			return call.call();
+		} catch (Exception e) {
+			Fortnox4JMetrics.global().count(Fortnox4JMetrics.API_ERRORS, 1);
+			throw e;
+		} finally {
+			Fortnox4JMetrics.global().record(Fortnox4JMetrics.API, name, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Makes a list call through the rate limiter, one permit per page.
+	 * fortnox4j fetches all pages of a list in one call, so the limiter
+	 * can't be asked before each page. The expected pages are acquired before
+	 * the call and the pages beyond them after it, so that the following
+	 * requests wait for them.
+	 * 
+	 * @param name			The name of the call in the metrics.
+	 * @param expectedPages	The number of pages expected.
+	 * @param call			The call
+	 * @return	The result of the call
+	 */
+	private Invoices callList(String name, int expectedPages, Callable<Invoices> call) throws Exception {
+		acquire(expectedPages - 1);
+		Invoices result = call(name, call);
+		acquire(countPages(result) - expectedPages);
+		return result;
+	}
+	
+	/**
+	 * @return	The number of pages the invoices were listed in.
+	 */
+	static int countPages(Invoices invoices) {
+		int rows = invoices!=null && invoices.getInvoiceSubset()!=null ? invoices.getInvoiceSubset().size() : 0;
+		return Math.max(1, (rows + LIST_PAGE_SIZE - 1) / LIST_PAGE_SIZE);
+	}
+
 
 
+	/**
+	 * Enables the local invoice cache for this client. The cache is kept per
+	 * tenant, by the access token.
+	 * 
+	 * @param cacheDir		The base cache directory.
+	 * @param maxSize		Max size of the cache in bytes.
+	 * @param maxAge		Max age of a cached invoice in milliseconds.
+	 * @throws Exception	If the cache can't be created.
+	 */
+	public void enableInvoiceCache(File cacheDir, long maxSize, long maxAge) throws Exception {
+		invoiceCache = new Fortnox4JInvoiceCache(cacheDir, clientInfo.getAccessToken(), maxSize, maxAge);
+	}
+	
+	public Fortnox4JInvoiceCache getInvoiceCache() {
+		return invoiceCache;
+	}
+	
+	/**
+	 * Enables the local metadata cache for this client. Company settings and
+	 * financial years are read from the cache until they're older than the
+	 * time to live.
+	 * 
+	 * @param cacheDir		The base cache directory.
+	 * @param ttl			Time to live in milliseconds.
+	 * @throws Exception	If the cache can't be created.
+	 */
+	public void enableMetadataCache(File cacheDir, long ttl) throws Exception {
+		metadataCache = new Fortnox4JMetadataCache(cacheDir, clientInfo.getAccessToken(), ttl);
+	}
+	
+	public void disableMetadataCache() {
+		metadataCache = null;
+	}
+	
+	public Fortnox4JMetadataCache getMetadataCache() {
+		return metadataCache;
+	}
+	
+	/**
+	 * Forgets the cached metadata so that it's fetched again.
+	 */
+	public void refreshMetadata() {
+		clientInfo.setCompanySetting(null);
+		if (metadataCache!=null) {
+			metadataCache.clear();
+		}
+	}
+	
+	/**
+	 * Makes an API call for metadata through the metadata cache, if enabled.
+	 */
+	private <T> T callCached(String key, Class<T> type, String name, Callable<T> call) throws Exception {
+		Fortnox4JMetadataCache mc = metadataCache;
+		if (mc==null)
+			return call(name, call);
+		return mc.get(key, type, () -> call(name, call));
+	}
+
 	/**
 	 * Gets company settings for this client
 	 * 
@@ -56,7 +302,7 @@ public class Fortnox4JClient {
 	 */
 	public CompanySetting getCompanySetting() throws Exception {
 		if (clientInfo.getCompanySetting()==null && client!=null) {
-			clientInfo.setCompanySetting(client.getCompanySetting());
+			clientInfo.setCompanySetting(callCached("companysetting", CompanySetting.class, "getCompanySetting", () -> client.getCompanySetting()));
 		}
 		return clientInfo.getCompanySetting();
 	}
@@ -94,6 +340,192 @@ public class Fortnox4JClient {
 	}
 	
 
+	/**
+	 * Returns the full invoice for given invoice subset. If the invoice cache
+	 * is enabled and holds an unchanged copy of the invoice, the cached copy
+	 * is returned.
+	 * 
+	 * @param is		The invoice subset.
+	 * @return	The full invoice.
+	 * @throws Exception	If something goes wrong
+	 */
+	public Invoice getInvoice(InvoiceSubset is) throws Exception {
+		
+		Invoice result = null;
+		if (invoiceCache!=null) {
+			result = Fortnox4JMetrics.global().time(Fortnox4JMetrics.CACHE, "get", () -> invoiceCache.get(is));
+			if (result!=null)
+				return result;
+		}
+		
+		result = getInvoice(is.getDocumentNumber());
+		if (invoiceCache!=null) {
+			long start = System.nanoTime();
+			invoiceCache.put(is, result);
+			Fortnox4JMetrics.global().record(Fortnox4JMetrics.CACHE, "put", System.nanoTime() - start);
+		}
+		return result;
+		
+	}
+
+	/*
+	 * The calls below are made through the rate limiter. Invoice lists are
+	 * counted as one request per page.
+	 */
+	
+	public Invoice getInvoice(String invoiceNo) throws Exception {
+		return call("getInvoice", () -> client.getInvoice(invoiceNo));
+	}
+	
+	public Invoices getUnpaidCustomerInvoices() throws Exception {
+		return callList("getUnpaidCustomerInvoices", 1, () -> client.getUnpaidCustomerInvoices());
+	}
+
+	public Invoices getUnbookedCustomerInvoices() throws Exception {
+		return callList("getInvoices", 1, () -> client.getInvoices(FortnoxClient3.FILTER_UNBOOKED));
+	}
+	
+	public Invoices getUnpaidAndUnbookedCustomerInvoices() throws Exception {
+		return callList("getUnpaidAndUnbookedCustomerInvoices", 1, () -> client.getUnpaidAndUnbookedCustomerInvoices());
+	}
+	
+	public Invoices getAllCustomerInvoicesByDateRange(Date fromDate, Date untilDate) throws Exception {
+		return callList("getAllCustomerInvoicesByDateRange", 1, () -> client.getAllCustomerInvoicesByDateRange(fromDate, untilDate));
+	}
+	
+	/**
+	 * Lists all invoices in a date range. The range is split into windows of
+	 * whole months, up to {@link #LIST_WINDOW_PARALLELISM} of them are fetched
+	 * concurrently. Each window acquires as many permits as the largest window
+	 * so far had pages before it's fetched, so that the pages of concurrent
+	 * windows stay within the rate limit.
+	 * The windows don't overlap and leave no gaps. The result is in invoice 
+	 * date order and an invoice is only included once.
+	 * 
+	 * @param fromDate		First invoice date.
+	 * @param untilDate		Last invoice date. Null means no limit.
+	 * @return	The invoices.
+	 * @throws Exception	If a window can't be fetched after retries.
+	 */
+	public Invoices getAllCustomerInvoicesByDateWindows(Date fromDate, Date untilDate) throws Exception {
+		
+		List<Date[]> windows = splitDateRange(fromDate, untilDate, dateWindowMonths);
+		
+		final List<InvoiceSubset> result = new ArrayList<InvoiceSubset>();
+		final Set<String> documentNumbers = new HashSet<String>();
+		final Fortnox4JRetry retry = new Fortnox4JRetry();
+		final SimpleDateFormat dfmt = new SimpleDateFormat("yyyy-MM-dd");
+		final AtomicInteger expectedPages = new AtomicInteger(1);
+		
+		Fortnox4JParallelFetcher<Date[], Invoices> fetcher = new Fortnox4JParallelFetcher<Date[], Invoices>(Math.min(parallelism, LIST_WINDOW_PARALLELISM));
+		fetcher.fetch(windows, 
+				w -> retry.call("List invoices from " + dfmt.format(w[0]), () -> {
+					Invoices invoices = callList("getAllCustomerInvoicesByDateRange", expectedPages.get(), 
+							() -> client.getAllCustomerInvoicesByDateRange(w[0], w[1]));
+					expectedPages.accumulateAndGet(countPages(invoices), Math::max);
+					return invoices;
+				}), 
+				(w, invoices, error) -> {
+					if (error!=null) {
+						throw new Exception("Can't list invoices from " + dfmt.format(w[0]) 
+							+ (w[1]!=null ? " until " + dfmt.format(w[1]) : ""), error);
+					}
+					if (invoices==null || invoices.getInvoiceSubset()==null)
+						return;
+					List<InvoiceSubset> window = new ArrayList<InvoiceSubset>(invoices.getInvoiceSubset());
+					window.sort(INVOICE_DATE_ORDER);
+					for (InvoiceSubset is : window) {
+						if (documentNumbers.add(is.getDocumentNumber())) {
+							result.add(is);
+						}
+					}
+				});
+		
+		if (windows.size()>1) {
+			log.debug("Listed {} invoices in {} date windows", result.size(), windows.size());
+		}
+		
+		Invoices merged = new Invoices();
+		merged.setInvoiceSubset(result);
+		return merged;
+		
+	}
+	
+	/**
+	 * Splits a date range into windows that end at month ends. The first window
+	 * starts at fromDate and the last ends at untilDate.
+	 * 
+	 * @param fromDate		First date.
+	 * @param untilDate		Last date. If null, the last window is open ended.
+	 * @param months		Months per window. 0 or less returns the range as one window.
+	 * @return	The windows as pairs of first and last date.
+	 */
+	public static List<Date[]> splitDateRange(Date fromDate, Date untilDate, int months) {
+		
+		List<Date[]> windows = new ArrayList<Date[]>();
+		if (fromDate==null || months<1) {
+			windows.add(new Date[] {fromDate, untilDate});
+			return windows;
+		}
+		
+		// Split up to today if the range is open ended
+		Date splitUntil = untilDate!=null ? untilDate : new Date();
+		
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(fromDate);
+		Date start = fromDate;
+		while (true) {
+			cal.set(Calendar.DAY_OF_MONTH, 1);
+			cal.add(Calendar.MONTH, months);
+			Date nextStart = cal.getTime();
+			if (!nextStart.after(splitUntil)) {
+				cal.add(Calendar.DAY_OF_MONTH, -1);
+				windows.add(new Date[] {start, cal.getTime()});
+				start = nextStart;
+				cal.setTime(nextStart);
+			} else {
+				windows.add(new Date[] {start, untilDate});
+				break;
+			}
+		}
+		return windows;
+		
+	}
+	
+	public Customers getCustomers() throws Exception {
+		return call("getCustomers", () -> client.getCustomers());
+	}
+	
+	public Customer getCustomerByCustNo(String customerNo) throws Exception {
+		return call("getCustomerByCustNo", () -> client.getCustomerByCustNo(customerNo));
+	}
+
+	public Customer setCustomer(Customer customer) throws Exception {
+		return call("setCustomer", () -> client.setCustomer(customer));
+	}
+
+	public Invoice setInvoice(Invoice invoice) throws Exception {
+		return call("setInvoice", () -> client.setInvoice(invoice));
+	}
+
+	/**
+	 * Reads the locked period from Fortnox. It's never cached, since it moves
+	 * forward when a period is closed and a stale value would let vouchers
+	 * be created in a locked period.
+	 */
+	public Date getLockedPeriodUntil() throws Exception {
+		return call("getLockedPeriodUntil", () -> client.getLockedPeriodUntil());
+	}
+	
+	public FinancialYearSubset getFinancialYear(Date date) throws Exception {
+		String key = "financialyear-" + (date!=null ? new SimpleDateFormat("yyyy-MM-dd").format(date) : "");
+		return callCached(key, FinancialYearSubset.class, "getFinancialYear", () -> client.getFinancialYear(date));
+	}
+	
+	public ByteBuffer retrieveSieFile(int sieType, int yearId) throws Exception {
+		return call("retrieveSieFile", () -> client.retrieveSieFile(sieType, yearId));
+	}
+
 	/**
 	 * Returns a specific invoice
 	 * 
@@ -103,41 +535,64 @@ public class Fortnox4JClient {
 	 */
 	public Invoice printInvoice(PrintStream os, String invoiceNo) throws Exception {
 		
-		Invoice result = client.getInvoice(invoiceNo);
-		JAXB.marshal(result, os);
+		Invoice result = getInvoice(invoiceNo);
+		Fortnox4JInvoiceExport.marshal(result, os);
 		return result;
 		
 	}
 	
-	public void getCustomerList(PrintStream os) throws Exception {
-
-		Customers customers = client.getCustomers();
-		List<CustomerSubset> cslist = customers.getCustomerSubset();
+	/**
+	 * Fetches the details of given customers concurrently. The details are
+	 * passed to the handler in the same order as the list.
+	 * 
+	 * @param cslist		The customers to fetch
+	 * @param handler		Receives the customer details.
+	 * @return	The number of customers handled.
+	 * @throws Exception	If the handler throws an exception.
+	 */
+	public int fetchCustomers(List<CustomerSubset> cslist, Fortnox4JParallelFetcher.ResultHandler<CustomerSubset, Customer> handler) throws Exception {
+		
+		Fortnox4JParallelFetcher<CustomerSubset, Customer> fetcher = new Fortnox4JParallelFetcher<CustomerSubset, Customer>(parallelism);
+		return fetcher.fetch(cslist, cs -> getCustomerByCustNo(cs.getCustomerNumber()), handler);
 		
-		Customer customer;
+	}
+	
+	/**
+	 * Prints all customers with details. Each customer is printed as soon as 
+	 * it's fetched.
+	 * 
+	 * @param os	The stream to print to.
+	 * @throws Exception	If something goes wrong
+	 */
+	public void getCustomerList(final PrintStream os) throws Exception {
+
+		Customers customers = getCustomers();
+		if (customers==null || customers.getCustomerSubset()==null)
+			return;
 		
-		for (CustomerSubset cs : cslist) {
-			
-			customer = client.getCustomerByCustNo(cs.getCustomerNumber());
+		fetchCustomers(customers.getCustomerSubset(), (cs, customer, error) -> {
+			if (error!=null || customer==null) {
+				log.warn("Can't fetch customer {}: {}", cs.getCustomerNumber(), error!=null ? error.getMessage() : "Not found");
+				return;
+			}
 			os.println(printCustomerDetails(customer));
-			
-		}
+		});
 		
 	}
 	
 	public String printCustomerDetails(Customer customer) {
 
-		StringBuffer buf = new StringBuffer();
-		buf.append(customer.getCustomerNumber() + ";");
-		buf.append(customer.getName() + ";");
+		StringBuilder buf = new StringBuilder(128);
+		buf.append(customer.getCustomerNumber()).append(';');
+		buf.append(customer.getName()).append(';');
 		if (customer.getDeliveryAddress1()!=null && customer.getDeliveryAddress1().trim().length()>0)
-			buf.append(customer.getDeliveryAddress1() + ";");
+			buf.append(customer.getDeliveryAddress1()).append(';');
 		else
-			buf.append(customer.getAddress1() + ";");
-		buf.append(customer.getEmail() + ";");
-		buf.append(customer.getOrganisationNumber() + ";");
-		buf.append(customer.getPhone1() + ";");
-		buf.append(customer.getTermsOfPayment() + ";");
+			buf.append(customer.getAddress1()).append(';');
+		buf.append(customer.getEmail()).append(';');
+		buf.append(customer.getOrganisationNumber()).append(';');
+		buf.append(customer.getPhone1()).append(';');
+		buf.append(customer.getTermsOfPayment()).append(';');
 
 		return buf.toString();
 		
@@ -0,0 +1,183 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append only journal of copied invoices. Each line holds the source invoice
+ * number and the destination invoice number separated by semicolon. If a
+ * write failed in a way that the invoice could still have been created, the
+ * destination is {@link #UNKNOWN}. Such invoices must be checked in the
+ * destination, since copying them again could create duplicates.
+ *
+ * Entries are written as soon as an invoice is copied and forced to disk in
+ * batches. At most the last unsynced batch can be lost in a crash. A line
+ * left incomplete by a crash is discarded when the journal is opened.
+ *
+ */
+public class Fortnox4JCopyJournal implements Closeable {
+
+	public static final int DEFAULT_SYNC_BATCH = 50;
+	public static final String UNKNOWN = "?";
+
+	private static final char SEPARATOR = ';';
+
+	private File				file;
+	private FileChannel			channel;
+	private Map<String, String>	entries = new ConcurrentHashMap<String, String>();
+	private int					syncBatch = DEFAULT_SYNC_BATCH;
+	private int					unsynced;
+
+	private Fortnox4JCopyJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens a journal for appending. Existing entries are read.
+	 *
+	 * @param file		The journal file. Created if it doesn't exist.
+	 * @return	The journal
+	 * @throws IOException	If the journal can't be read or opened.
+	 */
+	public static Fortnox4JCopyJournal open(File file) throws IOException {
+
+		Fortnox4JCopyJournal journal = new Fortnox4JCopyJournal(file);
+		journal.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			long size = journal.channel.size();
+			ByteBuffer buf = ByteBuffer.allocate((int)size);
+			while (buf.hasRemaining()) {
+				if (journal.channel.read(buf, buf.position()) < 0)
+					break;
+			}
+			byte[] content = buf.array();
+
+			// Only complete lines are entries
+			int lineStart = 0;
+			for (int i=0; i<content.length; i++) {
+				if (content[i]=='\n') {
+					journal.parseLine(new String(content, lineStart, i - lineStart, StandardCharsets.UTF_8));
+					lineStart = i + 1;
+				}
+			}
+			if (lineStart < content.length) {
+				journal.channel.truncate(lineStart);
+			}
+			journal.channel.position(lineStart);
+		} catch (IOException e) {
+			journal.channel.close();
+			throw e;
+		}
+
+		return journal;
+
+	}
+
+	private void parseLine(String line) {
+		int sep = line.indexOf(SEPARATOR);
+		if (sep > 0) {
+			entries.put(line.substring(0, sep), line.substring(sep + 1));
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param syncBatch		Number of entries written between each force to disk.
+	 */
+	public void setSyncBatch(int syncBatch) {
+		this.syncBatch = Math.max(1, syncBatch);
+	}
+
+	/**
+	 * @param srcInvoiceNo	The source invoice number.
+	 * @return	True if the invoice has been copied.
+	 */
+	public boolean contains(String srcInvoiceNo) {
+		return srcInvoiceNo!=null && entries.containsKey(srcInvoiceNo);
+	}
+
+	/**
+	 * @param srcInvoiceNo	The source invoice number.
+	 * @return	The destination invoice number or null if not copied.
+	 */
+	public String getDestination(String srcInvoiceNo) {
+		return srcInvoiceNo!=null ? entries.get(srcInvoiceNo) : null;
+	}
+
+	/**
+	 * @param srcInvoiceNo	The source invoice number.
+	 * @return	True if it's unknown whether the invoice was created in the destination.
+	 */
+	public boolean isUnknown(String srcInvoiceNo) {
+		return UNKNOWN.equals(getDestination(srcInvoiceNo));
+	}
+
+	/**
+	 * @return	The number of copied invoices in the journal.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Records a copied invoice.
+	 *
+	 * @param srcInvoiceNo	The source invoice number.
+	 * @param dstInvoiceNo	The destination invoice number.
+	 * @throws IOException	If the entry can't be written.
+	 */
+	public synchronized void record(String srcInvoiceNo, String dstInvoiceNo) throws IOException {
+
+		if (srcInvoiceNo==null)
+			return;
+		if (dstInvoiceNo==null)
+			dstInvoiceNo = "";
+
+		ByteBuffer line = ByteBuffer.wrap((srcInvoiceNo + SEPARATOR + dstInvoiceNo + "\n").getBytes(StandardCharsets.UTF_8));
+		while (line.hasRemaining()) {
+			channel.write(line);
+		}
+		entries.put(srcInvoiceNo, dstInvoiceNo);
+
+		if (++unsynced >= syncBatch) {
+			sync();
+		}
+
+	}
+
+	/**
+	 * Forces written entries to disk.
+	 *
+	 * @throws IOException	If the entries can't be forced.
+	 */
+	public synchronized void sync() throws IOException {
+		if (unsynced > 0) {
+			channel.force(false);
+			unsynced = 0;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel.isOpen()) {
+			try {
+				sync();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.notima.api.fortnox.entities3.InvoiceSubset;
+
+/**
+ * Persisted state for incremental (delta) invoice exports of one Fortnox
+ * client (tenant).
+ *
+ * The invoice list doesn't carry a last modified stamp, so the state holds a
+ * hash of the fingerprint (see {@link Fortnox4JInvoiceCache#fingerprint}) of
+ * every invoice exported so far. An invoice is part of the delta if it's new
+ * or its fingerprint has changed since the last committed export.
+ *
+ * The state is only advanced by {@link #commit()}, which should be called
+ * when the output has been flushed. The state file is replaced atomically
+ * so an interrupted run exports the same delta again.
+ *
+ */
+public class Fortnox4JDeltaState {
+
+	private static final int MAGIC = 0x46344a44;	// F4JD
+	private static final int VERSION = 1;
+
+	private File				stateFile;
+	private Map<String, Long>	exported = new HashMap<String, Long>();
+	private Map<String, Long>	pending = new HashMap<String, Long>();
+
+	private Fortnox4JDeltaState(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Loads the state for given tenant. If there's no state, the first delta
+	 * contains all invoices.
+	 *
+	 * @param stateDir		The directory where states are kept.
+	 * @param orgNo			The org number of the tenant.
+	 * @param name			The name of the export, ie the command.
+	 * @return	The state
+	 * @throws IOException	If an existing state can't be read.
+	 */
+	public static Fortnox4JDeltaState load(File stateDir, String orgNo, String name) throws IOException {
+
+		if (!stateDir.isDirectory() && !stateDir.mkdirs()) {
+			throw new IOException("Can't create state directory " + stateDir.getAbsolutePath());
+		}
+		String tenant = orgNo!=null ? orgNo.trim().replaceAll("[^A-Za-z0-9\\-]", "_") : "_";
+		Fortnox4JDeltaState state = new Fortnox4JDeltaState(new File(stateDir, tenant + "-" + name + ".state"));
+
+		if (state.stateFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(state.stateFile))))) {
+				if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+					throw new IOException("Unknown state file format " + state.stateFile.getAbsolutePath());
+				}
+				int count = in.readInt();
+				for (int i=0; i<count; i++) {
+					String documentNumber = in.readUTF();
+					state.exported.put(documentNumber, in.readLong());
+				}
+			}
+		}
+
+		return state;
+
+	}
+
+	/**
+	 * @return	The number of invoices in the committed state.
+	 */
+	public int size() {
+		return exported.size();
+	}
+
+	/**
+	 * Removes the invoices that are unchanged since the last committed export
+	 * from the list. The remaining invoices are recorded as pending until
+	 * commit is called.
+	 *
+	 * @param invoices		The invoices. Modified in place.
+	 * @return	The number of changed invoices.
+	 */
+	public int retainChanged(List<InvoiceSubset> invoices) {
+
+		Iterator<InvoiceSubset> it = invoices.iterator();
+		while (it.hasNext()) {
+			InvoiceSubset is = it.next();
+			if (is.getDocumentNumber()==null)
+				continue;
+			long hash = hash(Fortnox4JInvoiceCache.fingerprint(is));
+			Long previous = exported.get(is.getDocumentNumber());
+			if (previous!=null && previous.longValue()==hash) {
+				it.remove();
+			} else {
+				pending.put(is.getDocumentNumber(), hash);
+			}
+		}
+		return invoices.size();
+
+	}
+
+	/**
+	 * Advances the state to include the pending invoices and writes it to disk.
+	 *
+	 * @throws IOException	If the state can't be written.
+	 */
+	public void commit() throws IOException {
+
+		if (pending.isEmpty() && stateFile.exists())
+			return;
+
+		Map<String, Long> next = new HashMap<String, Long>(exported);
+		next.putAll(pending);
+
+		File tmp = new File(stateFile.getAbsolutePath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(next.size());
+			for (Map.Entry<String, Long> e : next.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue());
+			}
+		}
+		Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		exported = next;
+		pending.clear();
+
+	}
+
+	/**
+	 * 64 bit FNV-1a hash
+	 */
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i=0; i<s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.poi.EncryptedDocumentException;
@@ -15,7 +16,6 @@ import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.xssf.streaming.SXSSFWorkbook;
-import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
 import org.notima.api.fortnox.entities3.CompanySetting;
 
 public class Fortnox4JExcel extends Fortnox4JText {
@@ -23,9 +23,11 @@ public class Fortnox4JExcel extends Fortnox4JText {
 	private CellStyle 	dateCellStyle;
 	private CellStyle	headerCellStyle;
 	private String		dateFormatStr;
+	private int			rowWindow = defaultRowWindow;
 	
 	public final static String	defaultDateFormatStr = "yyyy-MM-dd"; 
 	public final static String defaultFileName = "reconciliation-report";
+	public final static int defaultRowWindow = 100;
 	
 	public static Integer[] colWidthInvoiceLinesCompact = new Integer[] {
 		12*256,		// Fortnox Invoice Id
@@ -57,6 +59,20 @@ public class Fortnox4JExcel extends Fortnox4JText {
 			20*256		// ExtRef2
 		};
 	
+	public static Integer[] colWidthCustomers = new Integer[] {
+			null,		// Customer No
+			40*256,		// Name
+			30*256,		// Address
+			30*256,		// Email
+			14*256,		// Org No
+			14*256,		// Phone
+			null		// Terms of Payment
+		};
+	
+	
+	private SXSSFWorkbook	wb;
+	private Sheet			sheet;
+	private Object[]		currentHeader;
 	
 	private int rowNum;
 	private int colNum;
@@ -65,6 +81,9 @@ public class Fortnox4JExcel extends Fortnox4JText {
 	
 	private File	outFile;
 	private String	outFilePrefix;
+	
+	// Looked up by the first writeRow, not per row
+	private Fortnox4JMetrics.Recorder	rowMetrics;
 
 	public String getDateFormatStr() {
 		return dateFormatStr;
@@ -74,6 +93,20 @@ public class Fortnox4JExcel extends Fortnox4JText {
 		this.dateFormatStr = dateFormatStr;
 	}
 	
+	public int getRowWindow() {
+		return rowWindow;
+	}
+
+	/**
+	 * Sets the number of rows kept in memory while writing. Older rows
+	 * are flushed to disk.
+	 * 
+	 * @param rowWindow
+	 */
+	public void setRowWindow(int rowWindow) {
+		this.rowWindow = Math.max(1, rowWindow);
+	}
+
 	public String getOutFilePrefix() {
 		return outFilePrefix;
 	}
@@ -102,8 +135,147 @@ public class Fortnox4JExcel extends Fortnox4JText {
 		outFile = null;
 	}
 
+	/**
+	 * Creates the workbook that rows are written to.
+	 */
+	private void createWorkbook() {
+		
+		// Only a window of rows are kept in memory, the rest are flushed to 
+		// compressed temp files. Strings are written inline instead of using 
+		// a shared strings table since the table is kept in memory.
+		wb = new SXSSFWorkbook(null, rowWindow, true, false);
+		
+		// Create date format
+		if (dateFormatStr==null || dateFormatStr.trim().length()==0) {
+			dateFormatStr = defaultDateFormatStr;
+		}
+		
+		CreationHelper createHelper = wb.getCreationHelper(); 
+		dateCellStyle = wb.createCellStyle();
+		dateCellStyle.setDataFormat(createHelper.createDataFormat().getFormat(dateFormatStr));
+		
+		headerCellStyle = wb.createCellStyle();
+		headerCellStyle.setWrapText(true);
+		
+		Font font = wb.createFont();
+		font.setBold(true);
+		headerCellStyle.setFont(font);
+		
+		sheet = wb.createSheet();
+		
+		// Initialize rowNum
+		rowNum = 0;
+		currentHeader = null;
+		
+	}
+	
+	/**
+	 * Starts the report. The header row is created unless it's the same as
+	 * the header last created. A header with other columns starts a new sheet.
+	 */
+	@Override
+	public void beginReport(Object[] header) throws Exception {
+		
+		if (wb==null) {
+			createWorkbook();
+		}
+		if (currentHeader==null || !Arrays.equals(currentHeader, header)) {
+			// A section with other columns starts on a new sheet
+			if (currentHeader!=null) {
+				sheet.createFreezePane(0, 1);
+				sheet = wb.createSheet();
+				rowNum = 0;
+			}
+			createHeader(sheet, header);
+			currentHeader = header;
+		}
+		
+	}
+	
+	@Override
+	public void writeRow(Object[] row) throws Exception {
+		
+		if (wb==null) {
+			throw new IllegalStateException("beginReport must be called before writeRow");
+		}
+		long start = System.nanoTime();
+		createRow(sheet, row);
+		if (rowMetrics==null) {
+			rowMetrics = Fortnox4JMetrics.global().recorder(Fortnox4JMetrics.FORMAT, "xlsx.writeRow", Fortnox4JMetrics.ROWS);
+		}
+		rowMetrics.record(System.nanoTime() - start, 1);
+		
+	}
+	
+	/**
+	 * Writes the rows of the table. The cells are created directly from the
+	 * columns.
+	 */
+	@Override
+	public void writeTable(Fortnox4JReportTable table) throws Exception {
+		
+		if (wb==null) {
+			throw new IllegalStateException("beginReport must be called before writeTable");
+		}
+		long start = System.nanoTime();
+		
+		int rows = table.getRowCount();
+		int columns = table.getColumnCount();
+		for (int r=0; r<rows; r++) {
+			row = sheet.createRow(rowNum++);
+			for (int c=0; c<columns; c++) {
+				cell = row.createCell(c);
+				switch(table.getType(c)) {
+					case Fortnox4JReportTable.STRING:
+					case Fortnox4JReportTable.DICT:
+						String value = table.getString(r, c);
+						if (value!=null)
+							cell.setCellValue(value);
+						break;
+					case Fortnox4JReportTable.DATE:
+						java.util.Date date = table.getDate(r, c);
+						if (date!=null) {
+							cell.setCellValue(date);
+							cell.setCellStyle(dateCellStyle);
+						}
+						break;
+					case Fortnox4JReportTable.DOUBLE:
+					case Fortnox4JReportTable.AMOUNT:
+						cell.setCellValue(table.getDouble(r, c));
+						break;
+					case Fortnox4JReportTable.LONG:
+						cell.setCellValue(table.getLong(r, c));
+						break;
+					case Fortnox4JReportTable.BOOLEAN:
+						cell.setCellValue(table.getBoolean(r, c) ? "true" : "false");
+						break;
+				}
+			}
+		}
+		
+		Fortnox4JMetrics.global().record(Fortnox4JMetrics.FORMAT, "xlsx.writeTable", System.nanoTime() - start);
+		Fortnox4JMetrics.global().count(Fortnox4JMetrics.ROWS, rows);
+		
+	}
+	
+	/**
+	 * Ends the report and writes the excel file.
+	 */
+	@Override
+	public void endReport() throws Exception {
+		createExcelFile();
+	}
+	
+	/**
+	 * Writes the rows written so far to the excel file and disposes the workbook.
+	 * 
+	 * @return	The excel file or null if no report was started.
+	 */
 	public File createExcelFile() throws ParseException, EncryptedDocumentException, InvalidFormatException, Exception {
 
+		if (wb==null)
+			return null;
+		
 		String outFileName = null;
 		
 		CompanySetting cs = this.fortnox4JClient != null ? this.fortnox4JClient.getCompanySetting() : null;
@@ -135,45 +307,20 @@ public class Fortnox4JExcel extends Fortnox4JText {
 			outFile = new File(outFile.getAbsolutePath() + ".xlsx");
 		}
 		
-		SXSSFWorkbook wb = new SXSSFWorkbook(invoiceReportLines.size()+1);
-		
-		// Create date format
-		if (dateFormatStr==null || dateFormatStr.trim().length()==0) {
-			dateFormatStr = defaultDateFormatStr;
-		}
-		
-		CreationHelper createHelper = wb.getCreationHelper(); 
-		dateCellStyle = wb.createCellStyle();
-		dateCellStyle.setDataFormat(createHelper.createDataFormat().getFormat(dateFormatStr));
-		
-		headerCellStyle = wb.createCellStyle();
-		headerCellStyle.setWrapText(true);
-		
-		Font font = wb.createFont();
-		font.setBold(true);
-		headerCellStyle.setFont(font);
-		
-		Sheet sheet = wb.createSheet();
-		
-		// Initialize rowNum
-		rowNum = 0;
-		
-		if (invoiceReportLines.size()>0) {
-			createHeader(sheet, invoiceReportLines.get(0));
-			
-			for (int i = 1; i<invoiceReportLines.size(); i++) {
-				createRow(sheet, invoiceReportLines.get(i));
-			}
-			
-		}
-		
-		XSSFFormulaEvaluator.evaluateAllFormulaCells(wb);
 		sheet.createFreezePane(0, 1);
 		
-		FileOutputStream out = new FileOutputStream(outFile);
-		wb.write(out);
-		out.close();
-		wb.dispose();
+		long start = System.nanoTime();
+		try {
+			FileOutputStream out = new FileOutputStream(outFile);
+			wb.write(out);
+			out.close();
+			Fortnox4JMetrics.global().count(Fortnox4JMetrics.BYTES_WRITTEN, outFile.length());
+		} finally {
+			Fortnox4JMetrics.global().record(Fortnox4JMetrics.FORMAT, "xlsx.writeFile", System.nanoTime() - start);
+			wb.dispose();
+			wb = null;
+			sheet = null;
+		}
 		
 		return outFile;
 		
@@ -197,9 +344,9 @@ public class Fortnox4JExcel extends Fortnox4JText {
 				cell = row.createCell(colNum++);
 				cell.setCellValue((java.util.Date)srcColumn);
 				cell.setCellStyle(dateCellStyle);
-			} else if (srcColumn instanceof Double || srcColumn instanceof Integer) {
+			} else if (srcColumn instanceof Number) {
 				cell = row.createCell(colNum++);
-				cell.setCellValue((double)srcColumn);
+				cell.setCellValue(((Number)srcColumn).doubleValue());
 			} else {
 				cell = row.createCell(colNum++);
 				if (srcColumn!=null)
@@ -218,8 +365,14 @@ public class Fortnox4JExcel extends Fortnox4JText {
 	 */
 	private void createHeader(Sheet sh, Object[] columnHeaders) {
 
+		// Prefix columns have no specified width
+		int prefixCount = getPrefixColumnCount();
+		int reportColumns = columnHeaders.length - prefixCount;
+		
 		Integer[] colWidths = colWidthInvoiceLinesCompact;
-		if (columnHeaders.length>colWidthInvoiceLinesCompact.length) {
+		if (reportColumns==customerLineHeaders.length) {
+			colWidths = colWidthCustomers;
+		} else if (reportColumns>colWidthInvoiceLinesCompact.length) {
 			colWidths = colWidthInvoiceLines;
 		}
 		
@@ -232,8 +385,9 @@ public class Fortnox4JExcel extends Fortnox4JText {
 			cell.setCellValue((String)c);
 			
 			// Set column width if specified
-			if (colWidths.length>(colNum-1) && colWidths[colNum-1]!=null) {
-				sh.setColumnWidth(colNum-1, colWidths[colNum-1]);
+			int widthIdx = colNum-1-prefixCount;
+			if (widthIdx>=0 && colWidths.length>widthIdx && colWidths[widthIdx]!=null) {
+				sh.setColumnWidth(colNum-1, colWidths[widthIdx]);
 			}
 		}
 		
@@ -1,17 +1,23 @@
 package org.notima.api.fortnox4j.cli;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
+import org.notima.api.fortnox.entities3.Customers;
 import org.notima.api.fortnox.entities3.Invoices;
 
 /**
  * Interface to different output formats
  * 
+ * The report methods push their rows to the format as they're created
+ * (see {@link Fortnox4JRowSink}). Text based formats write directly to 
+ * the output stream, file based formats write directly to the file.
+ * 
  * @author Daniel Tamm
  *
  */
-public interface Fortnox4JFormat {
+public interface Fortnox4JFormat extends Fortnox4JRowSink {
 	
 	/**
 	 * Sets the Fortnox Client for this formatting
@@ -19,6 +25,14 @@ public interface Fortnox4JFormat {
 	 * @param fc3
 	 */
 	public void setFortnox4JClient(Fortnox4JClient f4jclient);
+	
+	/**
+	 * Sets the stream that the report is written to. Not used by formats
+	 * that write to files.
+	 * 
+	 * @param os
+	 */
+	public void setOutputStream(OutputStream os);
 
 	/**
 	 * Add invoices to report.
@@ -34,15 +48,23 @@ public interface Fortnox4JFormat {
 	 * @param invoices
 	 * @return		The number of invoices added
 	 */
-	public int reportCustomerInvoicesCompact(Invoices invoices);
+	public int reportCustomerInvoicesCompact(Invoices invoices) throws Exception;
+	
+	/**
+	 * Add customers with details to report.
+	 * 
+	 * @param customers
+	 * @return		The number of customers added
+	 */
+	public int reportCustomers(Customers customers) throws Exception;
 	
 	/**
-	 * Writes the result and returns it
+	 * Ends the report and returns a description of the result.
 	 * 
-	 * @return		A list of stringbuffers containing the result.
+	 * @return		A list of stringbuffers describing the result.
 	 * 				If the result are files, the returned list is a list of 
 	 * 				file paths.
-	 * 				If the result is text, the result is returned as text.
+	 * 				If the result was written to the output stream, the list is empty.
 	 * @throws IOException If something goes wrong.
 	 */
 	public List<StringBuffer>	writeResult() throws Exception;
@@ -0,0 +1,25 @@
+package org.notima.api.fortnox4j.cli;
+
+/**
+ * Creates output formats by name. Providers are found with ServiceLoader
+ * (META-INF/services), see {@link Fortnox4JFormats}. A provider must not
+ * load its format or the format's libraries until a format is created, so
+ * formats that aren't used cost nothing at startup.
+ *
+ */
+public interface Fortnox4JFormatProvider {
+
+	/**
+	 * @return	The format names handled by this provider, in lower case.
+	 */
+	public String[] getNames();
+
+	/**
+	 * Creates a format.
+	 *
+	 * @param name		One of the names returned by getNames.
+	 * @return	A new format.
+	 */
+	public Fortnox4JFormat create(String name);
+
+}
@@ -0,0 +1,130 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * The available output formats. The formats are looked up by name among the
+ * {@link Fortnox4JFormatProvider}s on the classpath the first time a format
+ * is asked for. Only the format that is created is loaded, ie POI is only
+ * loaded when xlsx is used.
+ *
+ * The providers of the built in formats are nested in this class.
+ *
+ */
+public class Fortnox4JFormats {
+
+	public static final String DEFAULT_FORMAT = "csv";
+
+	private static Map<String, Fortnox4JFormatProvider>	providers;
+
+	/**
+	 * Provider of the csv format.
+	 */
+	public static class Csv implements Fortnox4JFormatProvider {
+		@Override
+		public String[] getNames() {
+			return new String[] {"csv"};
+		}
+		@Override
+		public Fortnox4JFormat create(String name) {
+			return new Fortnox4JText();
+		}
+	}
+
+	/**
+	 * Provider of the json (JSON Lines) and jsonarray formats.
+	 */
+	public static class Json implements Fortnox4JFormatProvider {
+		@Override
+		public String[] getNames() {
+			return new String[] {"json", "jsonarray"};
+		}
+		@Override
+		public Fortnox4JFormat create(String name) {
+			Fortnox4JJson json = new Fortnox4JJson();
+			json.setArray("jsonarray".equals(name));
+			return json;
+		}
+	}
+
+	/**
+	 * Provider of the xlsx format.
+	 */
+	public static class Xlsx implements Fortnox4JFormatProvider {
+		@Override
+		public String[] getNames() {
+			return new String[] {"xlsx"};
+		}
+		@Override
+		public Fortnox4JFormat create(String name) {
+			return new Fortnox4JExcel();
+		}
+	}
+
+	/**
+	 * Provider of the parquet format.
+	 */
+	public static class Parquet implements Fortnox4JFormatProvider {
+		@Override
+		public String[] getNames() {
+			return new String[] {"parquet"};
+		}
+		@Override
+		public Fortnox4JFormat create(String name) {
+			return new Fortnox4JParquet();
+		}
+	}
+
+	private static synchronized Map<String, Fortnox4JFormatProvider> getProviders() {
+
+		if (providers==null) {
+			Map<String, Fortnox4JFormatProvider> result = new LinkedHashMap<String, Fortnox4JFormatProvider>();
+			for (Fortnox4JFormatProvider p : ServiceLoader.load(Fortnox4JFormatProvider.class, Fortnox4JFormats.class.getClassLoader())) {
+				for (String name : p.getNames()) {
+					if (!result.containsKey(name)) {
+						result.put(name, p);
+					}
+				}
+			}
+			providers = result;
+		}
+		return providers;
+
+	}
+
+	/**
+	 * @param name		The format name, case insensitive.
+	 * @return	True if there's a format with given name.
+	 */
+	public static boolean isAvailable(String name) {
+		return name!=null && getProviders().containsKey(name.toLowerCase());
+	}
+
+	/**
+	 * @return	The names of the available formats, separated by comma.
+	 */
+	public static String getNames() {
+		return String.join(", ", getProviders().keySet());
+	}
+
+	/**
+	 * Creates a format.
+	 *
+	 * @param name		The format name, case insensitive. Null for the default format.
+	 * @return	A new format.
+	 * @throws IllegalArgumentException	If there's no format with given name.
+	 */
+	public static Fortnox4JFormat create(String name) {
+
+		String n = name!=null ? name.toLowerCase() : DEFAULT_FORMAT;
+		Fortnox4JFormatProvider p = getProviders().get(n);
+		if (p==null) {
+			throw new IllegalArgumentException("Unknown format " + name + ". Available formats are: " + getNames());
+		}
+		return p.create(n);
+
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP transport shared by all clients of the process.
+ *
+ * fortnox4j makes its requests with HttpURLConnection, which keeps idle
+ * connections in one keep-alive cache for the whole process. By default only
+ * five idle connections per host are kept, so with more concurrent requests
+ * than that connections are closed and new TLS handshakes are made. install
+ * enables keep-alive, sizes the cache and counts new connections and TLS
+ * handshakes in {@link Fortnox4JMetrics}, so that connection reuse can be
+ * compared with the number of API calls.
+ *
+ */
+public class Fortnox4JHttpTransport {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JHttpTransport.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+	private static boolean	installed;
+
+	/**
+	 * Installs the shared transport. Only the first call has effect, the
+	 * keep-alive settings are read by the JDK at the first request.
+	 * Settings given as system properties on the command line are kept.
+	 *
+	 * @param maxConnections	Max idle connections kept per host.
+	 */
+	public static synchronized void install(int maxConnections) {
+
+		if (installed)
+			return;
+
+		if (System.getProperty("http.keepAlive")==null) {
+			System.setProperty("http.keepAlive", "true");
+		}
+		if (System.getProperty("http.maxConnections")==null) {
+			System.setProperty("http.maxConnections", Integer.toString(Math.max(1, maxConnections)));
+		}
+
+		HttpsURLConnection.setDefaultSSLSocketFactory(new CountingSocketFactory());
+		installed = true;
+
+		log.debug("HTTP keep-alive {}, max connections {}", System.getProperty("http.keepAlive"), System.getProperty("http.maxConnections"));
+
+	}
+
+	public static synchronized boolean isInstalled() {
+		return installed;
+	}
+
+	/**
+	 * Counts the sockets created and records the time until the TLS handshake
+	 * is completed.
+	 * 
+	 * The default SSL socket factory is only created at the first connection,
+	 * since initializing the SSL context is slow and many commands never
+	 * connect, ie the sie commands.
+	 */
+	static class CountingSocketFactory extends SSLSocketFactory {
+
+		private volatile SSLSocketFactory	delegate;
+
+		private SSLSocketFactory delegate() {
+			SSLSocketFactory d = delegate;
+			if (d==null) {
+				synchronized(this) {
+					if (delegate==null) {
+						delegate = (SSLSocketFactory)SSLSocketFactory.getDefault();
+					}
+					d = delegate;
+				}
+			}
+			return d;
+		}
+
+		private Socket counted(Socket socket) {
+
+			Fortnox4JMetrics.global().count(Fortnox4JMetrics.HTTP_CONNECTIONS, 1);
+			if (socket instanceof SSLSocket) {
+				final long start = System.nanoTime();
+				((SSLSocket)socket).addHandshakeCompletedListener(event ->
+					Fortnox4JMetrics.global().record(Fortnox4JMetrics.HTTP, "tlsHandshake", System.nanoTime() - start));
+			}
+			return socket;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return delegate().getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return delegate().getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return counted(delegate().createSocket());
+		}
+
+		@Override
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return counted(delegate().createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return counted(delegate().createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return counted(delegate().createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return counted(delegate().createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			return counted(delegate().createSocket(address, port, localAddress, localPort));
+		}
+
+	}
+
+}
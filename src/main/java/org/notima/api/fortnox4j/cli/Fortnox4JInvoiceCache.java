@@ -0,0 +1,277 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.notima.api.fortnox.entities3.Invoice;
+import org.notima.api.fortnox.entities3.InvoiceSubset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local on disk cache of full invoices for one Fortnox client (tenant).
+ *
+ * Each invoice is stored as a gzipped XML file named after the document number.
+ * The file starts with a fingerprint of the invoice subset it was fetched for.
+ * The invoice list doesn't carry a last modified stamp, so the fingerprint is made
+ * from the subset fields that change when the invoice changes (amounts, balance,
+ * dates, booked etc). If the fingerprint of the current subset differs from the
+ * stored one, the cached invoice is considered stale.
+ *
+ * Fields that aren't in the subset, ie OrderReference and YourOrderNumber, can
+ * change without changing the fingerprint. An entry is therefore also stale
+ * when it was fetched longer ago than the max age, and is fetched again.
+ *
+ * The tenant directory is named after a hash of the access token, as in
+ * {@link Fortnox4JMetadataCache}, so tenants never share entries.
+ *
+ * When the cache grows beyond its max size, the least recently used entries
+ * are removed.
+ */
+public class Fortnox4JInvoiceCache {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JInvoiceCache.class);
+
+	public static final long DEFAULT_MAX_SIZE = 512L*1024*1024;
+	/**
+	 * Longer than the interval of nightly exports, so that an invoice that
+	 * didn't change is fetched again once a week and not every night.
+	 */
+	public static final long DEFAULT_MAX_AGE = 7L*24*3600*1000;
+	public static final String FILE_SUFFIX = ".xml.gz";
+
+	private static JAXBContext	jaxbContext;
+
+	private File		cacheDir;
+	private long		maxSize;
+	private long		maxAge;
+	private AtomicLong	currentSize = new AtomicLong();
+
+	/**
+	 * Opens (and creates if necessary) the invoice cache for given tenant.
+	 *
+	 * @param baseDir		The base cache directory.
+	 * @param accessToken	The access token of the tenant.
+	 * @param maxSize		Max size of the cache in bytes.
+	 * @param maxAge		Max age of an entry in milliseconds.
+	 * @throws IOException	If the cache directory can't be created.
+	 */
+	public Fortnox4JInvoiceCache(File baseDir, String accessToken, long maxSize, long maxAge) throws IOException {
+
+		cacheDir = new File(new File(baseDir, "invoices"), Fortnox4JMetadataCache.tenantKey(accessToken));
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Can't create cache directory " + cacheDir.getAbsolutePath());
+		}
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+
+		long size = 0;
+		for (File f : listEntries()) {
+			size += f.length();
+		}
+		currentSize.set(size);
+
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public long getCurrentSize() {
+		return currentSize.get();
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Returns the cached invoice if it's still valid for given subset.
+	 *
+	 * @param is		The invoice subset from the invoice list.
+	 * @return	The cached invoice or null if not cached, stale or too old.
+	 */
+	public Invoice get(InvoiceSubset is) {
+
+		File f = getFile(is.getDocumentNumber());
+		if (!f.exists())
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(f))))) {
+
+			if (!fingerprint(is).equals(in.readUTF()))
+				return null;
+			long age = System.currentTimeMillis() - in.readLong();
+			if (age<0 || age>=maxAge)
+				return null;
+
+			Invoice result = getContext().createUnmarshaller().unmarshal(new StreamSource(in), Invoice.class).getValue();
+			// Mark as recently used
+			f.setLastModified(System.currentTimeMillis());
+			return result;
+
+		} catch (Exception e) {
+			log.warn("Can't read cached invoice {}: {}", is.getDocumentNumber(), e.getMessage());
+			return null;
+		}
+
+	}
+
+	/**
+	 * Stores an invoice in the cache.
+	 *
+	 * @param is		The invoice subset the invoice was fetched for.
+	 * @param invoice	The full invoice.
+	 */
+	public void put(InvoiceSubset is, Invoice invoice) {
+
+		if (invoice==null)
+			return;
+
+		File f = getFile(is.getDocumentNumber());
+		File tmp = new File(cacheDir, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		long oldSize = f.length();
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))) {
+				out.writeUTF(fingerprint(is));
+				out.writeLong(System.currentTimeMillis());
+				Marshaller m = getContext().createMarshaller();
+				m.marshal(new JAXBElement<Invoice>(new QName("Invoice"), Invoice.class, invoice), out);
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			log.warn("Can't cache invoice {}: {}", is.getDocumentNumber(), e.getMessage());
+			tmp.delete();
+			return;
+		}
+
+		if (currentSize.addAndGet(f.length() - oldSize) > maxSize) {
+			evict();
+		}
+
+	}
+
+	/**
+	 * Removes all entries, so that all invoices are fetched again.
+	 */
+	public synchronized void clear() {
+		for (File f : listEntries()) {
+			long len = f.length();
+			if (f.delete()) {
+				currentSize.addAndGet(-len);
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is below 90% of max size.
+	 */
+	public synchronized void evict() {
+
+		if (currentSize.get() <= maxSize)
+			return;
+
+		// Snapshot the timestamps since entries are touched while we sort
+		File[] entries = listEntries();
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for (File f : entries) {
+			lastUsed.put(f, f.lastModified());
+		}
+		Arrays.sort(entries, Comparator.comparing(lastUsed::get));
+
+		long target = maxSize / 10 * 9;
+		int removed = 0;
+		for (File f : entries) {
+			if (currentSize.get() <= target)
+				break;
+			long len = f.length();
+			if (f.delete()) {
+				currentSize.addAndGet(-len);
+				removed++;
+			}
+		}
+		log.debug("Evicted {} invoices from {}", removed, cacheDir);
+
+	}
+
+	/**
+	 * Creates a fingerprint of the fields in the invoice subset that change when
+	 * the invoice changes.
+	 *
+	 * @param is	The invoice subset
+	 * @return	A fingerprint string
+	 */
+	public static String fingerprint(InvoiceSubset is) {
+
+		StringBuilder buf = new StringBuilder(128);
+		buf.append(is.getDocumentNumber()).append('|');
+		buf.append(is.getInvoiceType()).append('|');
+		appendStamp(buf, is.getInvoiceDate());
+		appendStamp(buf, is.getDueDate());
+		buf.append(is.getCustomerNumber()).append('|');
+		buf.append(is.getCustomerName()).append('|');
+		buf.append(is.getTotal()).append('|');
+		buf.append(is.getBalance()).append('|');
+		buf.append(is.getCurrency()).append('|');
+		buf.append(is.getTermsOfPayment()).append('|');
+		buf.append(is.getExternalInvoiceReference1()).append('|');
+		buf.append(is.getExternalInvoiceReference2()).append('|');
+		buf.append(is.isBooked());
+		return buf.toString();
+
+	}
+
+	private static void appendStamp(StringBuilder buf, Date date) {
+		if (date!=null) {
+			buf.append(date.getTime());
+		}
+		buf.append('|');
+	}
+
+	private File[] listEntries() {
+		File[] entries = cacheDir.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+		return entries!=null ? entries : new File[0];
+	}
+
+	private File getFile(String documentNumber) {
+		return new File(cacheDir, toFileName(documentNumber) + FILE_SUFFIX);
+	}
+
+	private static String toFileName(String s) {
+		if (s==null || s.trim().length()==0)
+			return "_";
+		return s.trim().replaceAll("[^A-Za-z0-9\\-]", "_");
+	}
+
+	private static synchronized JAXBContext getContext() throws JAXBException {
+		if (jaxbContext==null) {
+			jaxbContext = JAXBContext.newInstance(Invoice.class);
+		}
+		return jaxbContext;
+	}
+
+}
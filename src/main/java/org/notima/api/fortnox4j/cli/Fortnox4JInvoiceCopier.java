@@ -0,0 +1,393 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.notima.api.fortnox.entities3.Customer;
+import org.notima.api.fortnox.entities3.Invoice;
+import org.notima.api.fortnox.entities3.InvoiceSubset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies customer invoices from one Fortnox client to another.
+ *
+ * The copy runs as a pipeline of three stages connected by bounded queues:
+ * <ul>
+ * <li>read - fetches the invoices from the source, using a number of threads.</li>
+ * <li>transform - makes sure the customer of the invoice exists in the destination
+ * and builds the invoice to create there, see {@link #toDestination}.</li>
+ * <li>write - creates the invoices in the destination, using a number of threads.</li>
+ * </ul>
+ * Failed reads are retried with backoff (see {@link Fortnox4JRetry}). Writes
+ * are only retried when they surely weren't processed, since a retry of a
+ * write that reached the server creates a duplicate. Invoices that still fail
+ * are reported and skipped.
+ *
+ * If a journal is set, each copied invoice is recorded in it (see
+ * {@link Fortnox4JCopyJournal}). An invoice whose write failed but could
+ * still have been created is recorded with an unknown destination, so that
+ * a resumed copy doesn't create it again.
+ *
+ */
+public class Fortnox4JInvoiceCopier {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JInvoiceCopier.class);
+
+	public static final int DEFAULT_QUEUE_SIZE = 100;
+	public static final long DEFAULT_REPORT_INTERVAL_MS = 5000;
+
+	/**
+	 * An invoice to create in the destination and the number of the source
+	 * invoice it's copied from.
+	 */
+	private static class Copy {
+		final String	sourceNo;
+		final Invoice	invoice;
+		Copy(String sourceNo, Invoice invoice) {
+			this.sourceNo = sourceNo;
+			this.invoice = invoice;
+		}
+	}
+
+	/**
+	 * Marks the end of a queue
+	 */
+	private static final Invoice END = new Invoice();
+	private static final Copy END_COPY = new Copy(null, null);
+
+	private Fortnox4JClient		src;
+	private Fortnox4JClient		dst;
+
+	private int					readers = Fortnox4JParallelFetcher.DEFAULT_PARALLELISM;
+	private int					writers = Fortnox4JParallelFetcher.DEFAULT_PARALLELISM;
+	private int					queueSize = DEFAULT_QUEUE_SIZE;
+	private long				reportInterval = DEFAULT_REPORT_INTERVAL_MS;
+	private Fortnox4JRetry		retry = new Fortnox4JRetry();
+	private PrintStream			progress;
+	private Fortnox4JCopyJournal	journal;
+
+	private AtomicInteger		copied = new AtomicInteger();
+	private List<String>		failures = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * @param src		The client to copy from.
+	 * @param dst		The client to copy to.
+	 */
+	public Fortnox4JInvoiceCopier(Fortnox4JClient src, Fortnox4JClient dst) {
+		this.src = src;
+		this.dst = dst;
+	}
+
+	/**
+	 * Sets the number of threads reading from the source and writing to the destination.
+	 *
+	 * @param parallelism		Threads per stage.
+	 */
+	public void setParallelism(int parallelism) {
+		readers = Math.max(1, parallelism);
+		writers = readers;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	public void setRetry(Fortnox4JRetry retry) {
+		this.retry = retry;
+	}
+
+	/**
+	 * @param progress			Where the progress is reported. If null, no progress is reported.
+	 * @param reportInterval	How often progress is reported in milliseconds.
+	 */
+	public void setProgress(PrintStream progress, long reportInterval) {
+		this.progress = progress;
+		this.reportInterval = reportInterval;
+	}
+
+	/**
+	 * @param journal		Journal where copied invoices are recorded. Can be null.
+	 */
+	public void setJournal(Fortnox4JCopyJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return	Descriptions of the invoices that couldn't be copied.
+	 */
+	public List<String> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Copies given invoices.
+	 *
+	 * @param invoices		The invoices to copy.
+	 * @return	The number of invoices copied.
+	 * @throws InterruptedException	If interrupted while copying.
+	 */
+	public int copy(final List<InvoiceSubset> invoices) throws InterruptedException {
+
+		copied.set(0);
+		failures.clear();
+		if (invoices==null || invoices.isEmpty())
+			return 0;
+
+		final BlockingQueue<Invoice> readQueue = new ArrayBlockingQueue<Invoice>(queueSize);
+		final BlockingQueue<Copy> writeQueue = new ArrayBlockingQueue<Copy>(queueSize);
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch readersDone = new CountDownLatch(readers);
+		final CountDownLatch writersDone = new CountDownLatch(writers);
+
+		ExecutorService executor = Executors.newFixedThreadPool(readers + 1 + writers, r -> {
+			Thread t = new Thread(r, "fortnox4j-copy");
+			t.setDaemon(true);
+			return t;
+		});
+
+		ScheduledExecutorService reporter = null;
+		final long start = System.nanoTime();
+		if (progress!=null) {
+			reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "fortnox4j-copy-progress");
+				t.setDaemon(true);
+				return t;
+			});
+			reporter.scheduleAtFixedRate(new Runnable() {
+				private int lastCount = 0;
+				private long lastTime = start;
+				@Override
+				public void run() {
+					long now = System.nanoTime();
+					int count = copied.get();
+					progress.println(String.format("Copied %d of %d invoices, %.1f invoices/s (%.1f average)",
+							count, invoices.size(),
+							rate(count - lastCount, now - lastTime),
+							rate(count, now - start)));
+					lastCount = count;
+					lastTime = now;
+				}
+			}, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+		}
+
+		try {
+
+			// Read
+			for (int i=0; i<readers; i++) {
+				executor.submit(() -> {
+					try {
+						int idx;
+						while ((idx = next.getAndIncrement()) < invoices.size()) {
+							final String invoiceNo = invoices.get(idx).getDocumentNumber();
+							try {
+								readQueue.put(retry.call("Read invoice " + invoiceNo, () -> src.getInvoice(invoiceNo)));
+							} catch (InterruptedException ie) {
+								throw ie;
+							} catch (Exception e) {
+								fail(invoiceNo, "read", e);
+							}
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					} finally {
+						readersDone.countDown();
+					}
+				});
+			}
+			executor.submit(() -> {
+				try {
+					readersDone.await();
+					readQueue.put(END);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			});
+
+			// Transform
+			executor.submit(() -> {
+				Map<String, String> knownCustomers = new HashMap<String, String>();
+				try {
+					Invoice invoice;
+					while ((invoice = readQueue.take())!=END) {
+						String sourceNo = invoice.getDocumentNumber();
+						try {
+							String customerNo = ensureCustomer(invoice.getCustomerNumber(), knownCustomers);
+							writeQueue.put(new Copy(sourceNo, toDestination(invoice, customerNo)));
+						} catch (InterruptedException ie) {
+							throw ie;
+						} catch (Exception e) {
+							fail(sourceNo, "customer " + invoice.getCustomerNumber(), e);
+						}
+					}
+					for (int i=0; i<writers; i++) {
+						writeQueue.put(END_COPY);
+					}
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			});
+
+			// Write
+			for (int i=0; i<writers; i++) {
+				executor.submit(() -> {
+					try {
+						Copy copy;
+						while ((copy = writeQueue.take())!=END_COPY) {
+							final Invoice toWrite = copy.invoice;
+							final String sourceNo = copy.sourceNo;
+							Invoice created;
+							try {
+								created = retry.callWrite("Write invoice " + sourceNo, () -> dst.setInvoice(toWrite));
+								copied.incrementAndGet();
+							} catch (InterruptedException ie) {
+								throw ie;
+							} catch (Exception e) {
+								if (!Fortnox4JRetry.mayHaveReachedServer(e)) {
+									fail(sourceNo, "write", e);
+									continue;
+								}
+								fail(sourceNo, "write, check if it was created in the destination", e);
+								if (journal!=null) {
+									try {
+										journal.record(sourceNo, Fortnox4JCopyJournal.UNKNOWN);
+									} catch (IOException ioe) {
+										fail(sourceNo, "journal", ioe);
+									}
+								}
+								continue;
+							}
+							if (journal!=null) {
+								try {
+									journal.record(sourceNo, created!=null ? created.getDocumentNumber() : null);
+								} catch (IOException e) {
+									fail(sourceNo, "journal", e);
+								}
+							}
+						}
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+					} finally {
+						writersDone.countDown();
+					}
+				});
+			}
+
+			writersDone.await();
+
+		} finally {
+			executor.shutdownNow();
+			if (reporter!=null)
+				reporter.shutdownNow();
+		}
+
+		if (progress!=null) {
+			progress.println(String.format("Copied %d of %d invoices in %.1f s",
+					copied.get(), invoices.size(), (System.nanoTime() - start) / 1e9));
+		}
+
+		return copied.get();
+
+	}
+
+	/**
+	 * Builds the invoice to create in the destination from a source invoice.
+	 * The destination assigns the document number. The fields that the
+	 * server sets when the invoice is booked, sent or paid, and the
+	 * references to documents of the source, are cleared. The customer is
+	 * the customer of the destination.
+	 *
+	 * @param invoice		The source invoice. It's changed and returned.
+	 * @param customerNo	The customer number in the destination.
+	 * @return	The invoice to create.
+	 */
+	static Invoice toDestination(Invoice invoice, String customerNo) {
+
+		invoice.setDocumentNumber(null);
+		invoice.setCustomerNumber(customerNo);
+
+		// Set by the server
+		invoice.setOCR(null);
+		invoice.setBooked(false);
+		invoice.setCancelled(false);
+		invoice.setSent(false);
+		invoice.setFinalPayDate(null);
+		invoice.setVoucherSeries(null);
+
+		// Documents of the source
+		invoice.setCreditInvoiceReference(null);
+		invoice.setOrderReference(null);
+		invoice.setOfferReference(null);
+		invoice.setContractReference(null);
+		invoice.setInvoiceReference(null);
+
+		return invoice;
+
+	}
+
+	/**
+	 * Creates the customer in the destination if it doesn't exist there.
+	 * Only called from the transform stage.
+	 *
+	 * @return	The customer number in the destination.
+	 */
+	private String ensureCustomer(final String customerNo, Map<String, String> knownCustomers) throws Exception {
+
+		if (customerNo==null)
+			return null;
+		String known = knownCustomers.get(customerNo);
+		if (known!=null)
+			return known;
+
+		Customer existing = null;
+		try {
+			existing = dst.getCustomerByCustNo(customerNo);
+		} catch (Exception e) {
+			log.debug("Customer {} not found in destination: {}", customerNo, e.getMessage());
+		}
+
+		if (existing==null) {
+			final Customer customer = retry.call("Read customer " + customerNo, () -> src.getCustomerByCustNo(customerNo));
+			if (customer==null) {
+				throw new Exception("Customer " + customerNo + " not found in source");
+			}
+			try {
+				existing = retry.callWrite("Write customer " + customerNo, () -> dst.setCustomer(customer));
+			} catch (Exception e) {
+				// The customer number is kept, so check if it was created after all
+				if (!Fortnox4JRetry.mayHaveReachedServer(e))
+					throw e;
+				existing = retry.call("Read customer " + customerNo, () -> dst.getCustomerByCustNo(customerNo));
+				if (existing==null)
+					throw e;
+			}
+		}
+		String dstCustomerNo = existing!=null && existing.getCustomerNumber()!=null ? existing.getCustomerNumber() : customerNo;
+		knownCustomers.put(customerNo, dstCustomerNo);
+		return dstCustomerNo;
+
+	}
+
+	private void fail(String invoiceNo, String stage, Exception e) {
+		log.warn("Can't copy invoice {} ({}): {}", invoiceNo, stage, e.getMessage());
+		failures.add("Invoice " + invoiceNo + " (" + stage + "): " + e.getMessage());
+	}
+
+	private static double rate(int count, long nanos) {
+		return nanos > 0 ? count * 1e9 / nanos : 0;
+	}
+
+}
@@ -0,0 +1,264 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.notima.api.fortnox.entities3.Invoice;
+
+/**
+ * Exports full invoices as XML.
+ *
+ * The invoices are fetched concurrently (see {@link Fortnox4JParallelFetcher})
+ * and marshalled by the fetching threads, each with its own Marshaller from
+ * one shared JAXBContext. They are written in the order given, either as one
+ * XML document with an Invoices root element or as one invoice per line.
+ * Only the invoices in flight are kept in memory.
+ *
+ * If the output is a rotated {@link Fortnox4JOutputFile}, each chunk is a
+ * complete document.
+ *
+ */
+public class Fortnox4JInvoiceExport {
+
+	public static final String ROOT_ELEMENT = "Invoices";
+
+	private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ROOT_START = ("<" + ROOT_ELEMENT + ">\n").getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ROOT_END = ("</" + ROOT_ELEMENT + ">\n").getBytes(StandardCharsets.US_ASCII);
+
+	private static JAXBContext	context;
+
+	private final Fortnox4JClient	client;
+	private boolean				lines;
+	private int					parallelism = Fortnox4JParallelFetcher.DEFAULT_PARALLELISM;
+	private List<String>		failures = new ArrayList<String>();
+
+	// One marshaller per fetching thread
+	private final ThreadLocal<Marshaller>	marshallers = new ThreadLocal<Marshaller>();
+
+	/**
+	 * @param client	The client to fetch the invoices from.
+	 */
+	public Fortnox4JInvoiceExport(Fortnox4JClient client) {
+		this.client = client;
+	}
+
+	public boolean isLines() {
+		return lines;
+	}
+
+	/**
+	 * @param lines		If true, each invoice is written as a document of its own
+	 * 					on one line instead of in one document.
+	 */
+	public void setLines(boolean lines) {
+		this.lines = lines;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * @return	The invoices that couldn't be exported, with the reason.
+	 */
+	public List<String> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return	The JAXBContext of invoices. Created once, it's expensive.
+	 */
+	static synchronized JAXBContext getContext() throws JAXBException {
+		if (context==null) {
+			context = JAXBContext.newInstance(Invoice.class);
+		}
+		return context;
+	}
+
+	/**
+	 * Marshals an invoice as a formatted XML document, as JAXB.marshal does
+	 * but without creating a new JAXBContext.
+	 */
+	public static void marshal(Invoice invoice, OutputStream os) throws JAXBException {
+		Marshaller m = getContext().createMarshaller();
+		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+		m.marshal(invoice, os);
+	}
+
+	/**
+	 * Exports the invoices.
+	 *
+	 * @param invoiceNos	The invoice numbers.
+	 * @param out			Where the XML is written. Not closed.
+	 * @return	The number of invoices exported.
+	 * @throws Exception	If the output can't be written.
+	 */
+	public int export(List<String> invoiceNos, final OutputStream out) throws Exception {
+
+		failures.clear();
+		final Fortnox4JOutputFile rotating = out instanceof Fortnox4JOutputFile && ((Fortnox4JOutputFile)out).isRotating()
+				? (Fortnox4JOutputFile)out : null;
+		final int[] count = new int[1];
+		final boolean[] open = new boolean[1];
+
+		Fortnox4JParallelFetcher<String, byte[]> fetcher = new Fortnox4JParallelFetcher<String, byte[]>(parallelism);
+		fetcher.fetch(invoiceNos,
+				invoiceNo -> {
+					Invoice invoice = client.getInvoice(invoiceNo);
+					if (invoice==null)
+						throw new Exception("Not found");
+					long start = System.nanoTime();
+					byte[] record = toRecord(invoice);
+					Fortnox4JMetrics.global().record(Fortnox4JMetrics.FORMAT, "xml.marshal", System.nanoTime() - start);
+					return record;
+				},
+				(invoiceNo, record, error) -> {
+					if (error!=null) {
+						failures.add("Invoice " + invoiceNo + ": " + error.getMessage());
+						return;
+					}
+					if (!lines && !open[0]) {
+						out.write(XML_DECLARATION);
+						out.write(ROOT_START);
+						open[0] = true;
+					}
+					out.write(record);
+					count[0]++;
+					Fortnox4JMetrics.global().count(Fortnox4JMetrics.ROWS, 1);
+					if (rotating!=null && rotating.endRow()) {
+						if (open[0]) {
+							out.write(ROOT_END);
+							open[0] = false;
+						}
+						rotating.rotate();
+					}
+				});
+
+		if (!lines) {
+			if (!open[0] && (count[0]==0 || rotating==null)) {
+				out.write(XML_DECLARATION);
+				out.write(ROOT_START);
+				open[0] = true;
+			}
+			if (open[0]) {
+				out.write(ROOT_END);
+			}
+		}
+		out.flush();
+
+		return count[0];
+
+	}
+
+	/**
+	 * Marshals an invoice as it's written to the export, as an element of the
+	 * document or as a line.
+	 */
+	protected byte[] toRecord(Invoice invoice) throws JAXBException, IOException {
+
+		Marshaller m = marshallers.get();
+		if (m==null) {
+			m = getContext().createMarshaller();
+			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.valueOf(!lines));
+			// Each line is a document of its own
+			m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.valueOf(!lines));
+			m.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+			marshallers.set(m);
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+		m.marshal(invoice, buf);
+		byte[] record = buf.toByteArray();
+		if (!lines) {
+			return endWithNewline(record);
+		}
+
+		// Non formatted output only has line breaks in values, they're
+		// written as character references to keep the invoice on one line.
+		ByteArrayOutputStream line = new ByteArrayOutputStream(record.length + 16);
+		for (byte b : record) {
+			if (b=='\n') {
+				line.write("&#10;".getBytes(StandardCharsets.US_ASCII));
+			} else if (b=='\r') {
+				line.write("&#13;".getBytes(StandardCharsets.US_ASCII));
+			} else {
+				line.write(b);
+			}
+		}
+		line.write('\n');
+		return line.toByteArray();
+
+	}
+
+	private static byte[] endWithNewline(byte[] record) {
+		if (record.length>0 && record[record.length - 1]=='\n')
+			return record;
+		byte[] result = new byte[record.length + 1];
+		System.arraycopy(record, 0, result, 0, record.length);
+		result[record.length] = '\n';
+		return result;
+	}
+
+	/**
+	 * Parses invoice numbers and ranges, ie "1001,1005-1010".
+	 */
+	public static List<String> parseInvoiceNumbers(String spec) {
+
+		List<String> result = new ArrayList<String>();
+		for (String part : spec.split("[,\\s]+")) {
+			part = part.trim();
+			if (part.length()==0)
+				continue;
+			int dash = part.indexOf('-', 1);
+			if (dash>0) {
+				long from = Long.parseLong(part.substring(0, dash).trim());
+				long until = Long.parseLong(part.substring(dash + 1).trim());
+				if (until<from) {
+					throw new IllegalArgumentException("Invalid invoice range " + part);
+				}
+				for (long n=from; n<=until; n++) {
+					result.add(Long.toString(n));
+				}
+			} else {
+				result.add(part);
+			}
+		}
+		return result;
+
+	}
+
+	/**
+	 * Reads invoice numbers and ranges, one or more per line. Lines starting
+	 * with # are ignored.
+	 */
+	public static List<String> readInvoiceNumbers(Reader in) throws IOException {
+
+		List<String> result = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		while ((line = reader.readLine())!=null) {
+			line = line.trim();
+			if (line.length()>0 && !line.startsWith("#")) {
+				result.addAll(parseInvoiceNumbers(line));
+			}
+		}
+		return result;
+
+	}
+
+}
@@ -0,0 +1,328 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes reports as JSON. Each row is written as a JSON object as soon as it's
+ * reported, by default one object per line (JSON Lines). If array is set, the
+ * rows are written as one JSON array instead.
+ *
+ * Numbers and booleans are written as JSON numbers and booleans. Dates are
+ * written as ISO dates (yyyy-MM-dd). The keys are the column headers without
+ * spaces, ie "Inv Date" becomes "InvDate".
+ *
+ */
+public class Fortnox4JJson extends Fortnox4JText {
+
+	private boolean		array;
+
+	private Writer		out;
+	private String[]	keys;
+	private Object[]	currentHeader;
+	private boolean		firstRow;
+	
+	// The output file if it's rotated, and if a new chunk must be started before the next row
+	private Fortnox4JOutputFile	rotatingOutput;
+	private boolean			chunkPending;
+
+	private DateFormat	isoDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+	
+	// Quoted JSON strings per dictionary code
+	private Fortnox4JReportTable.FormatCache	quotedValues = new Fortnox4JReportTable.FormatCache();
+	
+	// Looked up by the first writeRow, not per row
+	private Fortnox4JMetrics.Recorder	rowMetrics;
+
+	public boolean isArray() {
+		return array;
+	}
+
+	/**
+	 * @param array		If true, the rows are written as a JSON array instead of JSON Lines.
+	 */
+	public void setArray(boolean array) {
+		this.array = array;
+	}
+
+	@Override
+	public void beginReport(Object[] header) throws Exception {
+
+		if (out==null) {
+			OutputStream os = Fortnox4JMetrics.global().countBytes(outputStream!=null ? outputStream : System.out);
+			out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+			firstRow = true;
+			rotatingOutput = getRotatingOutput();
+			chunkPending = false;
+			if (array) {
+				out.write('[');
+			}
+		}
+
+		if (currentHeader!=header) {
+			keys = new String[header.length];
+			for (int i=0; i<header.length; i++) {
+				keys[i] = toKey(header[i]);
+			}
+			currentHeader = header;
+		}
+
+	}
+
+	@Override
+	public void writeRow(Object[] row) throws Exception {
+
+		if (out==null) {
+			throw new IllegalStateException("beginReport must be called before writeRow");
+		}
+
+		long start = System.nanoTime();
+		
+		beginRow();
+		if (array) {
+			if (!firstRow) {
+				out.write(',');
+			}
+			out.write('\n');
+		}
+		firstRow = false;
+
+		out.write('{');
+		for (int i=0; i<row.length && i<keys.length; i++) {
+			if (i>0) {
+				out.write(',');
+			}
+			writeString(out, keys[i]);
+			out.write(':');
+			writeValue(row[i]);
+		}
+		out.write('}');
+
+		if (!array) {
+			out.write('\n');
+		}
+		endRow();
+
+		if (rowMetrics==null) {
+			rowMetrics = Fortnox4JMetrics.global().recorder(Fortnox4JMetrics.FORMAT, "json.writeRow", Fortnox4JMetrics.ROWS);
+		}
+		rowMetrics.record(System.nanoTime() - start, 1);
+
+	}
+
+	/**
+	 * Writes the rows of the table. Dictionary encoded values are quoted once
+	 * per distinct value.
+	 */
+	@Override
+	public void writeTable(Fortnox4JReportTable table) throws Exception {
+
+		if (out==null) {
+			throw new IllegalStateException("beginReport must be called before writeTable");
+		}
+
+		long start = System.nanoTime();
+
+		int rows = table.getRowCount();
+		int columns = Math.min(table.getColumnCount(), keys.length);
+		for (int r=0; r<rows; r++) {
+			beginRow();
+			if (array) {
+				if (!firstRow) {
+					out.write(',');
+				}
+				out.write('\n');
+			}
+			firstRow = false;
+
+			out.write('{');
+			for (int c=0; c<columns; c++) {
+				if (c>0) {
+					out.write(',');
+				}
+				writeString(out, keys[c]);
+				out.write(':');
+				switch(table.getType(c)) {
+					case Fortnox4JReportTable.STRING:
+						String value = table.getString(r, c);
+						if (value!=null) {
+							writeString(out, value);
+						} else {
+							out.write("null");
+						}
+						break;
+					case Fortnox4JReportTable.DICT:
+					case Fortnox4JReportTable.DATE:
+						out.write(quote(table, c, table.getCode(r, c)));
+						break;
+					case Fortnox4JReportTable.DOUBLE:
+					case Fortnox4JReportTable.AMOUNT:
+						writeDouble(table.getDouble(r, c));
+						break;
+					case Fortnox4JReportTable.LONG:
+						out.write(Long.toString(table.getLong(r, c)));
+						break;
+					case Fortnox4JReportTable.BOOLEAN:
+						out.write(table.getBoolean(r, c) ? "true" : "false");
+						break;
+				}
+			}
+			out.write('}');
+
+			if (!array) {
+				out.write('\n');
+			}
+			endRow();
+		}
+
+		Fortnox4JMetrics.global().record(Fortnox4JMetrics.FORMAT, "json.writeTable", System.nanoTime() - start);
+		Fortnox4JMetrics.global().count(Fortnox4JMetrics.ROWS, rows);
+
+	}
+
+	/**
+	 * Starts a new chunk before the first row written to it.
+	 */
+	private void beginRow() throws Exception {
+		if (chunkPending) {
+			if (array) {
+				out.write('[');
+			}
+			firstRow = true;
+			chunkPending = false;
+		}
+	}
+	
+	/**
+	 * Rotates the output after a row if the chunk is full. The array
+	 * is closed so that each chunk is a JSON document of its own.
+	 */
+	private void endRow() throws Exception {
+		if (rotatingOutput!=null && rotatingOutput.endRow()) {
+			if (array) {
+				out.write("\n]\n");
+			}
+			out.flush();
+			rotatingOutput.rotate();
+			chunkPending = true;
+		}
+	}
+
+	/**
+	 * @return	The dictionary value of the code as a JSON value.
+	 */
+	private String quote(Fortnox4JReportTable table, int col, int code) throws Exception {
+
+		if (code==Fortnox4JReportTable.NULL_CODE)
+			return "null";
+		String result = quotedValues.get(table, col, code);
+		if (result==null) {
+			Object value = table.getDictionaryValue(col, code);
+			StringBuilder buf = new StringBuilder();
+			writeString(buf, value instanceof Date ? isoDateFormat.format((Date)value) : value.toString());
+			result = buf.toString();
+			quotedValues.put(col, code, result);
+		}
+		return result;
+
+	}
+
+	@Override
+	public void endReport() throws Exception {
+
+		if (out==null)
+			return;
+
+		if (array && !chunkPending) {
+			out.write("\n]\n");
+		}
+		out.flush();
+		out = null;
+		currentHeader = null;
+		rotatingOutput = null;
+
+	}
+
+	@Override
+	public List<StringBuffer> writeResult() throws Exception {
+		endReport();
+		return new ArrayList<StringBuffer>();
+	}
+
+	private void writeValue(Object value) throws Exception {
+
+		if (value==null) {
+			out.write("null");
+		} else if (value instanceof Double || value instanceof Float) {
+			writeDouble(((Number)value).doubleValue());
+		} else if (value instanceof Number || value instanceof Boolean) {
+			out.write(value.toString());
+		} else if (value instanceof Date) {
+			writeString(out, isoDateFormat.format((Date)value));
+		} else {
+			writeString(out, value.toString());
+		}
+
+	}
+
+	private void writeDouble(double d) throws Exception {
+
+		if (Double.isNaN(d) || Double.isInfinite(d)) {
+			out.write("null");
+		} else {
+			out.write(Double.toString(d));
+		}
+
+	}
+
+	private static void writeString(Appendable out, String s) throws IOException {
+
+		out.append('"');
+		int len = s.length();
+		for (int i=0; i<len; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': out.append("\\\""); break;
+				case '\\': out.append("\\\\"); break;
+				case '\n': out.append("\\n"); break;
+				case '\r': out.append("\\r"); break;
+				case '\t': out.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int)c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+
+	}
+
+	/**
+	 * Converts a column header to a JSON key
+	 */
+	static String toKey(Object header) {
+
+		String h = header!=null ? header.toString() : "";
+		StringBuilder buf = new StringBuilder(h.length());
+		for (int i=0; i<h.length(); i++) {
+			char c = h.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				buf.append(c);
+			}
+		}
+		return buf.toString();
+
+	}
+
+}
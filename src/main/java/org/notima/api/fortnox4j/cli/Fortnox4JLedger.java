@@ -0,0 +1,351 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In memory ledger index built from a SIE4 file. Answers account balances,
+ * period totals and trial balances of the current financial year without
+ * calling the Fortnox API.
+ *
+ * The index is kept in primitive arrays. Accounts are sorted account numbers,
+ * periods are sorted yyyyMM integers and the movements are a matrix of
+ * amounts in cents per account and period.
+ *
+ */
+public class Fortnox4JLedger implements Fortnox4JSieParser.Handler {
+
+	// Collected while parsing
+	private int		transCount;
+	private int[]	transAccount = new int[1024];
+	private int[]	transPeriod = new int[1024];
+	private long[]	transAmount = new long[1024];
+
+	private int		balanceCount;
+	private char[]	balanceType = new char[256];
+	private int[]	balanceAccount = new int[256];
+	private long[]	balanceAmount = new long[256];
+
+	private int			nameCount;
+	private int[]		nameAccount = new int[256];
+	private String[]	names = new String[256];
+
+	// The index
+	private int[]		accounts;
+	private String[]	accountNames;
+	private int[]		periods;
+	private long[]		opening;
+	private long[]		closing;
+	private long[]		movements;
+
+	private Fortnox4JLedger() {
+	}
+
+	/**
+	 * Loads a ledger from a SIE4 file.
+	 *
+	 * @param sieFile		The file, optionally gzipped.
+	 * @return	The ledger
+	 * @throws IOException	If the file can't be read or parsed.
+	 */
+	public static Fortnox4JLedger load(File sieFile) throws IOException {
+		Fortnox4JLedger ledger = new Fortnox4JLedger();
+		new Fortnox4JSieParser().parse(sieFile, ledger);
+		ledger.buildIndex();
+		return ledger;
+	}
+
+	@Override
+	public void account(int account, String name) {
+		if (nameCount==nameAccount.length) {
+			nameAccount = Arrays.copyOf(nameAccount, nameCount*2);
+			names = Arrays.copyOf(names, nameCount*2);
+		}
+		nameAccount[nameCount] = account;
+		names[nameCount++] = name;
+	}
+
+	@Override
+	public void balance(char type, int year, int account, long amount) {
+		// Only the current year is indexed
+		if (year!=0)
+			return;
+		if (balanceCount==balanceAccount.length) {
+			balanceType = Arrays.copyOf(balanceType, balanceCount*2);
+			balanceAccount = Arrays.copyOf(balanceAccount, balanceCount*2);
+			balanceAmount = Arrays.copyOf(balanceAmount, balanceCount*2);
+		}
+		balanceType[balanceCount] = type;
+		balanceAccount[balanceCount] = account;
+		balanceAmount[balanceCount++] = amount;
+	}
+
+	@Override
+	public void transaction(int account, int date, long amount) {
+		if (transCount==transAccount.length) {
+			transAccount = Arrays.copyOf(transAccount, transCount*2);
+			transPeriod = Arrays.copyOf(transPeriod, transCount*2);
+			transAmount = Arrays.copyOf(transAmount, transCount*2);
+		}
+		transAccount[transCount] = account;
+		transPeriod[transCount] = date / 100;
+		transAmount[transCount++] = amount;
+	}
+
+	/**
+	 * Builds the index from the collected records and releases them.
+	 */
+	private void buildIndex() {
+
+		int[] all = new int[transCount + balanceCount + nameCount];
+		System.arraycopy(transAccount, 0, all, 0, transCount);
+		System.arraycopy(balanceAccount, 0, all, transCount, balanceCount);
+		System.arraycopy(nameAccount, 0, all, transCount + balanceCount, nameCount);
+		accounts = distinct(all);
+		periods = distinct(Arrays.copyOf(transPeriod, transCount));
+
+		accountNames = new String[accounts.length];
+		for (int i=0; i<nameCount; i++) {
+			accountNames[Arrays.binarySearch(accounts, nameAccount[i])] = names[i];
+		}
+
+		opening = new long[accounts.length];
+		closing = new long[accounts.length];
+		for (int i=0; i<balanceCount; i++) {
+			int a = Arrays.binarySearch(accounts, balanceAccount[i]);
+			if (balanceType[i]=='I') {
+				opening[a] = balanceAmount[i];
+			} else {
+				closing[a] = balanceAmount[i];
+			}
+		}
+
+		movements = new long[accounts.length * periods.length];
+		for (int i=0; i<transCount; i++) {
+			int a = Arrays.binarySearch(accounts, transAccount[i]);
+			int p = Arrays.binarySearch(periods, transPeriod[i]);
+			movements[a * periods.length + p] += transAmount[i];
+		}
+
+		transAccount = null;
+		transPeriod = null;
+		transAmount = null;
+		balanceType = null;
+		balanceAccount = null;
+		balanceAmount = null;
+		nameAccount = null;
+		names = null;
+
+	}
+
+	private static int[] distinct(int[] values) {
+		if (values.length==0)
+			return values;
+		Arrays.sort(values);
+		int n = 1;
+		for (int i=1; i<values.length; i++) {
+			if (values[i]!=values[n-1])
+				values[n++] = values[i];
+		}
+		return Arrays.copyOf(values, n);
+	}
+
+	/**
+	 * @return	An estimate of the memory used by the ledger, in bytes.
+	 */
+	public long getMemorySize() {
+		long size = 64L + 4L * (accounts.length + periods.length)
+				+ 8L * (opening.length + closing.length + movements.length)
+				+ 4L * accountNames.length;
+		for (String name : accountNames) {
+			if (name!=null)
+				size += 40 + 2L * name.length();
+		}
+		return size;
+	}
+
+	/**
+	 * @return	The account numbers in the ledger, sorted.
+	 */
+	public int[] getAccounts() {
+		return accounts;
+	}
+
+	/**
+	 * @return	The periods (yyyyMM) with transactions, sorted.
+	 */
+	public int[] getPeriods() {
+		return periods;
+	}
+
+	/**
+	 * @return	The name of the account or null if unknown.
+	 */
+	public String getAccountName(int account) {
+		int a = Arrays.binarySearch(accounts, account);
+		return a >= 0 ? accountNames[a] : null;
+	}
+
+	/**
+	 * @return	The opening balance (#IB) of the account in cents.
+	 */
+	public long getOpeningBalance(int account) {
+		int a = Arrays.binarySearch(accounts, account);
+		return a >= 0 ? opening[a] : 0;
+	}
+
+	/**
+	 * @return	The closing balance (#UB or #RES) of the account in cents, as stated in the file.
+	 */
+	public long getClosingBalance(int account) {
+		int a = Arrays.binarySearch(accounts, account);
+		return a >= 0 ? closing[a] : 0;
+	}
+
+	/**
+	 * @param account		The account.
+	 * @param period		The period as yyyyMM.
+	 * @return	The sum of the transactions on the account in given period, in cents.
+	 */
+	public long getPeriodTotal(int account, int period) {
+		int a = Arrays.binarySearch(accounts, account);
+		int p = Arrays.binarySearch(periods, period);
+		return a >= 0 && p >= 0 ? movements[a * periods.length + p] : 0;
+	}
+
+	/**
+	 * @param account		The account.
+	 * @param untilPeriod	The last period (yyyyMM) included. 0 for all periods.
+	 * @return	The sum of the transactions on the account until given period, in cents.
+	 */
+	public long getMovement(int account, int untilPeriod) {
+		int a = Arrays.binarySearch(accounts, account);
+		if (a < 0)
+			return 0;
+		long sum = 0;
+		int base = a * periods.length;
+		for (int p=0; p<periods.length && (untilPeriod==0 || periods[p]<=untilPeriod); p++) {
+			sum += movements[base + p];
+		}
+		return sum;
+	}
+
+	/**
+	 * @param account		The account.
+	 * @param untilPeriod	The last period (yyyyMM) included. 0 for all periods.
+	 * @return	The balance of the account at the end of given period, in cents.
+	 */
+	public long getBalance(int account, int untilPeriod) {
+		return getOpeningBalance(account) + getMovement(account, untilPeriod);
+	}
+
+	/**
+	 * Reports the balance of accounts.
+	 *
+	 * @param sink			Where the report is written.
+	 * @param fromAccount	The first account.
+	 * @param toAccount		The last account.
+	 * @param untilPeriod	The last period (yyyyMM) included. 0 for all periods.
+	 * @return	The number of accounts reported.
+	 */
+	public int reportBalances(Fortnox4JRowSink sink, int fromAccount, int toAccount, int untilPeriod) throws Exception {
+
+		sink.beginReport(new Object[] {"Account", "Name", "Balance"},
+				new int[] {Fortnox4JReportTable.LONG, Fortnox4JReportTable.STRING, Fortnox4JReportTable.AMOUNT});
+		Object[] row = new Object[3];
+		int count = 0;
+		for (int a=0; a<accounts.length; a++) {
+			if (accounts[a] < fromAccount || accounts[a] > toAccount)
+				continue;
+			row[0] = accounts[a];
+			row[1] = accountNames[a];
+			row[2] = toAmount(getBalance(accounts[a], untilPeriod));
+			sink.writeRow(row);
+			count++;
+		}
+		return count;
+
+	}
+
+	/**
+	 * Reports the totals per period of accounts. Periods without transactions are omitted.
+	 *
+	 * @param sink			Where the report is written.
+	 * @param fromAccount	The first account.
+	 * @param toAccount		The last account.
+	 * @return	The number of rows reported.
+	 */
+	public int reportPeriodTotals(Fortnox4JRowSink sink, int fromAccount, int toAccount) throws Exception {
+
+		sink.beginReport(new Object[] {"Account", "Name", "Period", "Amount"},
+				new int[] {Fortnox4JReportTable.LONG, Fortnox4JReportTable.STRING, Fortnox4JReportTable.LONG, Fortnox4JReportTable.AMOUNT});
+		Object[] row = new Object[4];
+		int count = 0;
+		for (int a=0; a<accounts.length; a++) {
+			if (accounts[a] < fromAccount || accounts[a] > toAccount)
+				continue;
+			int base = a * periods.length;
+			for (int p=0; p<periods.length; p++) {
+				if (movements[base + p]==0)
+					continue;
+				row[0] = accounts[a];
+				row[1] = accountNames[a];
+				row[2] = periods[p];
+				row[3] = toAmount(movements[base + p]);
+				sink.writeRow(row);
+				count++;
+			}
+		}
+		return count;
+
+	}
+
+	/**
+	 * Reports a trial balance. Accounts without balance or movement are omitted.
+	 *
+	 * @param sink			Where the report is written.
+	 * @param fromAccount	The first account.
+	 * @param toAccount		The last account.
+	 * @param untilPeriod	The last period (yyyyMM) included. 0 for all periods.
+	 * @return	The number of accounts reported.
+	 */
+	public int reportTrialBalance(Fortnox4JRowSink sink, int fromAccount, int toAccount, int untilPeriod) throws Exception {
+
+		sink.beginReport(new Object[] {"Account", "Name", "Opening Balance", "Movement", "Closing Balance"},
+				new int[] {Fortnox4JReportTable.LONG, Fortnox4JReportTable.STRING,
+						Fortnox4JReportTable.AMOUNT, Fortnox4JReportTable.AMOUNT, Fortnox4JReportTable.AMOUNT});
+		Object[] row = new Object[5];
+		int count = 0;
+		long totalOpening = 0, totalMovement = 0;
+		for (int a=0; a<accounts.length; a++) {
+			if (accounts[a] < fromAccount || accounts[a] > toAccount)
+				continue;
+			long movement = getMovement(accounts[a], untilPeriod);
+			if (opening[a]==0 && movement==0)
+				continue;
+			row[0] = accounts[a];
+			row[1] = accountNames[a];
+			row[2] = toAmount(opening[a]);
+			row[3] = toAmount(movement);
+			row[4] = toAmount(opening[a] + movement);
+			sink.writeRow(row);
+			totalOpening += opening[a];
+			totalMovement += movement;
+			count++;
+		}
+		row[0] = null;
+		row[1] = "Total";
+		row[2] = toAmount(totalOpening);
+		row[3] = toAmount(totalMovement);
+		row[4] = toAmount(totalOpening + totalMovement);
+		sink.writeRow(row);
+		return count;
+
+	}
+
+	private static Double toAmount(long cents) {
+		return Double.valueOf(cents / 100.0);
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local on disk cache of metadata for one Fortnox client (tenant), ie company
+ * settings and financial years. These rarely change, so they are kept for a
+ * time to live instead of being fetched for every command. The locked period
+ * isn't cached, see {@link Fortnox4JClient#getLockedPeriodUntil()}.
+ *
+ * Each value is stored as XML in a file named after its key. The age of a value is the last modified time of its file.
+ * The tenant directory is named after a hash of the access token, since the
+ * org number is one of the cached values.
+ */
+public class Fortnox4JMetadataCache {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JMetadataCache.class);
+
+	public static final long DEFAULT_TTL = 24L*3600*1000;
+
+	private static final Map<Class<?>, JAXBContext>	jaxbContexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+	private File		cacheDir;
+	private long		ttl;
+
+	/**
+	 * Loads a value that isn't cached.
+	 */
+	public interface Loader<T> {
+		public T load() throws Exception;
+	}
+
+	/**
+	 * Opens (and creates if necessary) the metadata cache for given tenant.
+	 *
+	 * @param baseDir		The base cache directory.
+	 * @param accessToken	The access token of the tenant.
+	 * @param ttl			Time to live of the values in milliseconds.
+	 * @throws IOException	If the cache directory can't be created.
+	 */
+	public Fortnox4JMetadataCache(File baseDir, String accessToken, long ttl) throws IOException {
+
+		cacheDir = new File(new File(baseDir, "metadata"), tenantKey(accessToken));
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Can't create cache directory " + cacheDir.getAbsolutePath());
+		}
+		this.ttl = ttl;
+
+	}
+
+	/**
+	 * @return	The default base cache directory, in the user's home directory.
+	 */
+	public static File getDefaultBaseDir() {
+		return new File(new File(System.getProperty("user.home"), ".fortnox4j-cli"), "cache");
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Returns a cached value or loads and caches it if it's not cached or
+	 * older than the time to live.
+	 *
+	 * @param key		The key of the value.
+	 * @param type		The type of the value, an XML entity.
+	 * @param loader	Loads the value.
+	 * @return	The value.
+	 * @throws Exception	If the value isn't cached and can't be loaded.
+	 */
+	public <T> T get(String key, Class<T> type, Loader<T> loader) throws Exception {
+
+		File f = getFile(key);
+		long age = System.currentTimeMillis() - f.lastModified();
+		if (f.exists() && age>=0 && age<ttl) {
+			try {
+				T result = read(f, type);
+				Fortnox4JMetrics.global().count(Fortnox4JMetrics.METADATA_HITS, 1);
+				return result;
+			} catch (Exception e) {
+				log.warn("Can't read cached {}: {}", key, e.getMessage());
+			}
+		}
+
+		T value = loader.load();
+		if (value!=null) {
+			put(f, type, value);
+		}
+		return value;
+
+	}
+
+	/**
+	 * Removes all cached values of the tenant.
+	 */
+	public void clear() {
+		File[] entries = cacheDir.listFiles();
+		if (entries!=null) {
+			for (File f : entries) {
+				f.delete();
+			}
+		}
+	}
+
+	private <T> T read(File f, Class<T> type) throws Exception {
+
+		return getContext(type).createUnmarshaller().unmarshal(new StreamSource(f), type).getValue();
+
+	}
+
+	private <T> void put(File f, Class<T> type, T value) {
+
+		File tmp = new File(cacheDir, f.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			getContext(type).createMarshaller().marshal(new JAXBElement<T>(new QName(type.getSimpleName()), type, value), tmp);
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			log.warn("Can't cache {}: {}", f.getName(), e.getMessage());
+			tmp.delete();
+		}
+
+	}
+
+	private File getFile(String key) {
+		return new File(cacheDir, key.replaceAll("[^A-Za-z0-9\\-]", "_"));
+	}
+
+	/**
+	 * @return	A hex hash of the access token
+	 */
+	static String tenantKey(String accessToken) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest((accessToken!=null ? accessToken : "").getBytes(StandardCharsets.UTF_8));
+			StringBuilder buf = new StringBuilder(32);
+			for (int i=0; i<16; i++) {
+				buf.append(String.format("%02x", digest[i] & 0xff));
+			}
+			return buf.toString();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static JAXBContext getContext(Class<?> type) throws JAXBException {
+		JAXBContext ctx = jaxbContexts.get(type);
+		if (ctx==null) {
+			ctx = JAXBContext.newInstance(type);
+			jaxbContexts.put(type, ctx);
+		}
+		return ctx;
+	}
+
+}
@@ -0,0 +1,469 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide metrics: latency histograms of API calls, rate limit waits
+ * and format stages, and counters of rows and bytes written.
+ *
+ * Metrics are always recorded in the process wide metrics. A command also
+ * gets metrics of its own (see {@link #beginCommand()}), so that commands
+ * running concurrently in server mode aren't included in each other's metrics.
+ *
+ * Histograms use 4 buckets per power of two, so percentiles are accurate
+ * within about 10 %.
+ *
+ */
+public class Fortnox4JMetrics {
+
+	public static final String API = "api";
+	public static final String RATELIMIT = "ratelimit";
+	public static final String FORMAT = "format";
+	public static final String CACHE = "cache";
+	public static final String HTTP = "http";
+
+	public static final String ROWS = "rows";
+	public static final String BYTES_WRITTEN = "bytes_written";
+	public static final String API_ERRORS = "api_errors";
+	public static final String HTTP_CONNECTIONS = "http_connections";
+	public static final String METADATA_HITS = "metadata_hits";
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+	private static final Fortnox4JMetrics GLOBAL = new Fortnox4JMetrics();
+
+	// The metrics of the command run by a thread, inherited by the threads it starts
+	private static final InheritableThreadLocal<Fortnox4JMetrics> COMMAND = new InheritableThreadLocal<Fortnox4JMetrics>();
+
+	private final Map<String, Timer>		timers = new ConcurrentHashMap<String, Timer>();
+	private final Map<String, LongAdder>	counters = new ConcurrentHashMap<String, LongAdder>();
+
+	/**
+	 * @return	The process wide metrics.
+	 */
+	public static Fortnox4JMetrics global() {
+		return GLOBAL;
+	}
+
+	/**
+	 * Starts recording the metrics of a command run by the current thread.
+	 * Everything recorded in the global metrics by this thread, and by the
+	 * threads it starts, is also recorded in the returned metrics until
+	 * {@link #endCommand()} is called.
+	 *
+	 * @return	The metrics of the command.
+	 */
+	public static Fortnox4JMetrics beginCommand() {
+		Fortnox4JMetrics m = new Fortnox4JMetrics();
+		COMMAND.set(m);
+		return m;
+	}
+
+	/**
+	 * Stops recording the metrics of the command run by the current thread.
+	 */
+	public static void endCommand() {
+		COMMAND.remove();
+	}
+
+	/**
+	 * Latency histogram
+	 */
+	static class Timer {
+
+		final AtomicLongArray	buckets = new AtomicLongArray(BUCKETS);
+		final LongAdder			sum = new LongAdder();
+
+		void record(long nanos) {
+			buckets.incrementAndGet(bucket(Math.max(0, nanos)));
+			sum.add(nanos);
+		}
+
+	}
+
+	/**
+	 * Records the duration of something.
+	 *
+	 * @param group		The group, ie api.
+	 * @param name		The name within the group, ie getInvoice.
+	 * @param nanos		The duration in nanoseconds.
+	 */
+	public void record(String group, String name, long nanos) {
+		String key = group + "|" + name;
+		Timer t = timers.get(key);
+		if (t==null) {
+			t = timers.computeIfAbsent(key, k -> new Timer());
+		}
+		t.record(nanos);
+		if (this==GLOBAL) {
+			Fortnox4JMetrics command = COMMAND.get();
+			if (command!=null)
+				command.record(group, name, nanos);
+		}
+	}
+
+	/**
+	 * Looks up a timer and a counter once, for recording in a hot loop.
+	 *
+	 * @param group		The group of the timer, ie format.
+	 * @param name		The name of the timer within the group, ie csv.writeRow.
+	 * @param counter	The counter, ie rows.
+	 * @return	A recorder of the timer and counter, in these metrics and in
+	 * 			the metrics of the command run by the current thread.
+	 */
+	public Recorder recorder(String group, String name, String counter) {
+		Recorder command = null;
+		if (this==GLOBAL) {
+			Fortnox4JMetrics m = COMMAND.get();
+			if (m!=null)
+				command = m.recorder(group, name, counter);
+		}
+		return new Recorder(
+				timers.computeIfAbsent(group + "|" + name, k -> new Timer()),
+				counters.computeIfAbsent(counter, k -> new LongAdder()),
+				command);
+	}
+
+	/**
+	 * A timer and a counter looked up by {@link #recorder(String, String, String)}.
+	 */
+	public static class Recorder {
+
+		private final Timer		timer;
+		private final LongAdder	counter;
+		private final Recorder	command;
+
+		Recorder(Timer timer, LongAdder counter, Recorder command) {
+			this.timer = timer;
+			this.counter = counter;
+			this.command = command;
+		}
+
+		/**
+		 * Records a duration and adds to the counter.
+		 *
+		 * @param nanos		The duration in nanoseconds.
+		 * @param n			The amount to add to the counter.
+		 */
+		public void record(long nanos, long n) {
+			timer.record(nanos);
+			counter.add(n);
+			if (command!=null)
+				command.record(nanos, n);
+		}
+
+	}
+
+	/**
+	 * Calls and records the duration of the call.
+	 */
+	public <T> T time(String group, String name, Callable<T> call) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return call.call();
+		} finally {
+			record(group, name, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Adds to a counter.
+	 */
+	public void count(String counter, long n) {
+		LongAdder c = counters.get(counter);
+		if (c==null) {
+			c = counters.computeIfAbsent(counter, k -> new LongAdder());
+		}
+		c.add(n);
+		if (this==GLOBAL) {
+			Fortnox4JMetrics command = COMMAND.get();
+			if (command!=null)
+				command.count(counter, n);
+		}
+	}
+
+	/**
+	 * Wraps a stream so that the bytes written are counted in bytes_written.
+	 */
+	public OutputStream countBytes(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				count(BYTES_WRITTEN, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				count(BYTES_WRITTEN, len);
+			}
+		};
+	}
+
+	/**
+	 * @return	A copy of the current metrics.
+	 */
+	public Snapshot snapshot() {
+		Snapshot s = new Snapshot();
+		for (Map.Entry<String, Timer> e : timers.entrySet()) {
+			long[] b = new long[BUCKETS];
+			for (int i=0; i<BUCKETS; i++) {
+				b[i] = e.getValue().buckets.get(i);
+			}
+			s.buckets.put(e.getKey(), b);
+			s.sums.put(e.getKey(), e.getValue().sum.sum());
+		}
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			s.counters.put(e.getKey(), e.getValue().sum());
+		}
+		return s;
+	}
+
+	private static int bucket(long nanos) {
+		if (nanos < (1 << SUB_BUCKET_BITS))
+			return (int)nanos;
+		int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int)(nanos >>> (exp - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+		return ((exp - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+	}
+
+	/**
+	 * @return	The middle value of a bucket.
+	 */
+	private static double bucketValue(int bucket) {
+		if (bucket < (1 << SUB_BUCKET_BITS))
+			return bucket;
+		int exp = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+		int sub = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+		double width = Math.pow(2, exp - SUB_BUCKET_BITS);
+		return Math.pow(2, exp) + sub * width + width / 2;
+	}
+
+	/**
+	 * Metrics at a point in time
+	 */
+	public static class Snapshot {
+
+		private final Map<String, long[]>	buckets = new TreeMap<String, long[]>();
+		private final Map<String, Long>		sums = new TreeMap<String, Long>();
+		private final Map<String, Long>		counters = new TreeMap<String, Long>();
+
+		/**
+		 * @return	The metrics recorded since given snapshot.
+		 */
+		public Snapshot since(Snapshot before) {
+			Snapshot s = new Snapshot();
+			for (Map.Entry<String, long[]> e : buckets.entrySet()) {
+				long[] b = e.getValue().clone();
+				long[] prev = before.buckets.get(e.getKey());
+				long n = 0;
+				for (int i=0; i<b.length; i++) {
+					if (prev!=null)
+						b[i] -= prev[i];
+					n += b[i];
+				}
+				if (n==0)
+					continue;
+				s.buckets.put(e.getKey(), b);
+				Long prevSum = before.sums.get(e.getKey());
+				s.sums.put(e.getKey(), sums.get(e.getKey()) - (prevSum!=null ? prevSum : 0));
+			}
+			for (Map.Entry<String, Long> e : counters.entrySet()) {
+				Long prev = before.counters.get(e.getKey());
+				long v = e.getValue() - (prev!=null ? prev : 0);
+				if (v!=0)
+					s.counters.put(e.getKey(), v);
+			}
+			return s;
+		}
+
+		public long getCount(String group, String name) {
+			long[] b = buckets.get(group + "|" + name);
+			long n = 0;
+			if (b!=null) {
+				for (long c : b)
+					n += c;
+			}
+			return n;
+		}
+
+		public long getCounter(String counter) {
+			Long v = counters.get(counter);
+			return v!=null ? v : 0;
+		}
+
+		/**
+		 * @param q		The quantile, ie 0.95
+		 * @return	The approximate quantile in nanoseconds.
+		 */
+		public double getQuantile(String group, String name, double q) {
+			long[] b = buckets.get(group + "|" + name);
+			long n = getCount(group, name);
+			if (b==null || n==0)
+				return 0;
+			long rank = (long)Math.ceil(q * n);
+			long seen = 0;
+			for (int i=0; i<b.length; i++) {
+				seen += b[i];
+				if (seen >= rank)
+					return bucketValue(i);
+			}
+			return bucketValue(b.length - 1);
+		}
+
+		/**
+		 * Prints a summary.
+		 *
+		 * @param out			Where the summary is printed.
+		 * @param wallNanos		The wall time of the command.
+		 */
+		public void printSummary(PrintStream out, long wallNanos) {
+
+			out.println(String.format(Locale.ROOT, "%-28s %8s %10s %10s %10s %10s", "Timer", "Count", "Total ms", "p50 ms", "p95 ms", "p99 ms"));
+			for (String key : buckets.keySet()) {
+				String[] gn = key.split("\\|", 2);
+				out.println(String.format(Locale.ROOT, "%-28s %8d %10.1f %10.2f %10.2f %10.2f",
+						gn[0] + "." + gn[1],
+						getCount(gn[0], gn[1]),
+						sums.get(key) / 1e6,
+						getQuantile(gn[0], gn[1], 0.50) / 1e6,
+						getQuantile(gn[0], gn[1], 0.95) / 1e6,
+						getQuantile(gn[0], gn[1], 0.99) / 1e6));
+			}
+			double seconds = wallNanos / 1e9;
+			out.println(String.format(Locale.ROOT, "Wall time %.2f s, %d rows (%.0f rows/s), %d bytes written, %d API errors",
+					seconds,
+					getCounter(ROWS),
+					seconds > 0 ? getCounter(ROWS) / seconds : 0,
+					getCounter(BYTES_WRITTEN),
+					getCounter(API_ERRORS)));
+			long apiCalls = 0;
+			for (String key : buckets.keySet()) {
+				if (key.startsWith(API + "|")) {
+					String[] gn = key.split("\\|", 2);
+					apiCalls += getCount(gn[0], gn[1]);
+				}
+			}
+			out.println(String.format(Locale.ROOT, "%d new HTTP connections for %d API calls, %d metadata lookups from cache", 
+					getCounter(HTTP_CONNECTIONS), apiCalls, getCounter(METADATA_HITS)));
+
+		}
+
+		/**
+		 * Writes the metrics in Prometheus text format.
+		 *
+		 * @param out			The writer.
+		 * @param command		The command, used as label.
+		 * @param wallNanos		The wall time of the command.
+		 */
+		public void writePrometheus(Writer out, String command, long wallNanos) throws IOException {
+
+			String cmdLabel = "command=\"" + escape(command) + "\"";
+			String lastGroup = null;
+			for (String key : buckets.keySet()) {
+				String[] gn = key.split("\\|", 2);
+				String metric = "fortnox4j_" + gn[0] + "_seconds";
+				if (!gn[0].equals(lastGroup)) {
+					out.write("# TYPE " + metric + " summary\n");
+					lastGroup = gn[0];
+				}
+				String labels = cmdLabel + ",name=\"" + escape(gn[1]) + "\"";
+				for (double q : new double[] {0.5, 0.95, 0.99}) {
+					out.write(String.format(Locale.ROOT, "%s{%s,quantile=\"%s\"} %.6f\n", metric, labels, q, getQuantile(gn[0], gn[1], q) / 1e9));
+				}
+				out.write(String.format(Locale.ROOT, "%s_sum{%s} %.6f\n", metric, labels, sums.get(key) / 1e9));
+				out.write(String.format(Locale.ROOT, "%s_count{%s} %d\n", metric, labels, getCount(gn[0], gn[1])));
+			}
+			for (String counter : new String[] {ROWS, BYTES_WRITTEN, API_ERRORS, HTTP_CONNECTIONS, METADATA_HITS}) {
+				out.write("# TYPE fortnox4j_" + counter + "_total counter\n");
+				out.write(String.format(Locale.ROOT, "fortnox4j_%s_total{%s} %d\n", counter, cmdLabel, getCounter(counter)));
+			}
+			out.write("# TYPE fortnox4j_command_seconds gauge\n");
+			out.write(String.format(Locale.ROOT, "fortnox4j_command_seconds{%s} %.6f\n", cmdLabel, wallNanos / 1e9));
+			out.write("# TYPE fortnox4j_command_timestamp_seconds gauge\n");
+			out.write(String.format(Locale.ROOT, "fortnox4j_command_timestamp_seconds{%s} %d\n", cmdLabel, System.currentTimeMillis() / 1000));
+
+		}
+
+		/**
+		 * Writes the metrics as a JSON object.
+		 *
+		 * @param out			The writer.
+		 * @param command		The command.
+		 * @param wallNanos		The wall time of the command.
+		 */
+		public void writeJson(Writer out, String command, long wallNanos) throws IOException {
+
+			out.write("{\"command\":\"" + escape(command) + "\"");
+			out.write(String.format(Locale.ROOT, ",\"wallSeconds\":%.6f", wallNanos / 1e9));
+			out.write(",\"timers\":{");
+			boolean first = true;
+			for (String key : buckets.keySet()) {
+				String[] gn = key.split("\\|", 2);
+				if (!first)
+					out.write(',');
+				first = false;
+				out.write(String.format(Locale.ROOT,
+						"\"%s.%s\":{\"count\":%d,\"sumSeconds\":%.6f,\"p50Seconds\":%.6f,\"p95Seconds\":%.6f,\"p99Seconds\":%.6f}",
+						escape(gn[0]), escape(gn[1]),
+						getCount(gn[0], gn[1]),
+						sums.get(key) / 1e9,
+						getQuantile(gn[0], gn[1], 0.50) / 1e9,
+						getQuantile(gn[0], gn[1], 0.95) / 1e9,
+						getQuantile(gn[0], gn[1], 0.99) / 1e9));
+			}
+			out.write("},\"counters\":{");
+			first = true;
+			for (Map.Entry<String, Long> e : counters.entrySet()) {
+				if (!first)
+					out.write(',');
+				first = false;
+				out.write("\"" + escape(e.getKey()) + "\":" + e.getValue());
+			}
+			out.write("}}\n");
+
+		}
+
+		/**
+		 * Writes the metrics to a file, replacing it atomically so a node
+		 * exporter never reads a partial file. Files ending with .json are
+		 * written as JSON, other files in Prometheus text format.
+		 */
+		public void writeFile(File file, String command, long wallNanos) throws IOException {
+
+			File tmp = new File(file.getAbsolutePath() + ".tmp");
+			try (Writer out = new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8)) {
+				if (file.getName().toLowerCase().endsWith(".json")) {
+					writeJson(out, command, wallNanos);
+				} else {
+					writePrometheus(out, command, wallNanos);
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		}
+
+		private static String escape(String s) {
+			return s==null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+		}
+
+	}
+
+}
@@ -0,0 +1,224 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * An output file that is optionally compressed and rotated into numbered
+ * chunks.
+ *
+ * The compression is gzip or zstd, by default taken from the file extension
+ * (.gz or .zst). With rotation, the output is written to chunks named after
+ * the file, ie invoices.csv.gz becomes invoices-00001.csv.gz,
+ * invoices-00002.csv.gz etc. The formats call {@link #endRow()} after each
+ * row and {@link #rotate()} when it returns true, so that every chunk only
+ * holds whole rows and can be read on its own. A chunk is written with the
+ * extension .part and renamed when it's complete, so a loader can pick up
+ * complete chunks while the export is running.
+ *
+ */
+public class Fortnox4JOutputFile extends OutputStream {
+
+	public static final String NONE = "none";
+	public static final String GZIP = "gzip";
+	public static final String ZSTD = "zstd";
+
+	private static final String PART = ".part";
+
+	private final File		file;
+	private final String	compression;
+	private final long		maxRows;
+	private final long		maxBytes;
+
+	private OutputStream	out;
+	private File			current;
+	private long			chunkRows;
+	private long			chunkBytes;
+	private int				chunk;
+	private List<File>		files = new ArrayList<File>();
+
+	/**
+	 * Creates an output file. Nothing is written until the first byte is.
+	 *
+	 * @param file			The file.
+	 * @param compression	NONE, GZIP or ZSTD. Null takes the compression from the file extension.
+	 * @param maxRows		Max rows per chunk. 0 for no limit.
+	 * @param maxBytes		Max bytes per chunk (after compression). 0 for no limit.
+	 * 						A chunk can be somewhat larger since rows are never split
+	 * 						and the bytes held by the compressor aren't counted yet.
+	 */
+	public Fortnox4JOutputFile(File file, String compression, long maxRows, long maxBytes) {
+
+		this.file = file;
+		this.compression = compression!=null ? compression.toLowerCase() : getCompression(file);
+		if (!NONE.equals(this.compression) && !GZIP.equals(this.compression) && !ZSTD.equals(this.compression)) {
+			throw new IllegalArgumentException("Unknown compression " + compression + ". Use gzip, zstd or none.");
+		}
+		this.maxRows = Math.max(0, maxRows);
+		this.maxBytes = Math.max(0, maxBytes);
+
+	}
+
+	/**
+	 * @return	The compression given by the extension of the file.
+	 */
+	public static String getCompression(File file) {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".gz"))
+			return GZIP;
+		if (name.endsWith(".zst"))
+			return ZSTD;
+		return NONE;
+	}
+
+	/**
+	 * Adds a suffix to a file name before its extension, ie report.csv.gz
+	 * with suffix -1 becomes report-1.csv.gz.
+	 */
+	public static File withSuffix(File file, String suffix) {
+
+		String name = file.getName();
+		String compressed = "";
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".gz") || lower.endsWith(".zst")) {
+			int dot = name.lastIndexOf('.');
+			compressed = name.substring(dot);
+			name = name.substring(0, dot);
+		}
+		int dot = name.lastIndexOf('.');
+		String result = dot>0
+				? name.substring(0, dot) + suffix + name.substring(dot) + compressed
+				: name + suffix + compressed;
+		return new File(file.getAbsoluteFile().getParentFile(), result);
+
+	}
+
+	public String getCompressionName() {
+		return compression;
+	}
+
+	/**
+	 * @return	True if the output is rotated into chunks.
+	 */
+	public boolean isRotating() {
+		return maxRows>0 || maxBytes>0;
+	}
+
+	/**
+	 * @return	The files written so far, including the current chunk.
+	 */
+	public List<File> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Counts a row written to the current chunk.
+	 *
+	 * @return	True if the chunk is full and should be rotated.
+	 */
+	public boolean endRow() {
+		chunkRows++;
+		return (maxRows>0 && chunkRows>=maxRows) || (maxBytes>0 && chunkBytes>=maxBytes);
+	}
+
+	/**
+	 * Completes the current chunk. The next byte written starts a new chunk.
+	 */
+	public void rotate() throws IOException {
+
+		if (out==null)
+			return;
+
+		out.close();
+		out = null;
+		if (isRotating()) {
+			File complete = files.get(files.size() - 1);
+			Files.move(current.toPath(), complete.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		current = null;
+		chunkRows = 0;
+		chunkBytes = 0;
+
+	}
+
+	private OutputStream open() throws IOException {
+
+		if (out!=null)
+			return out;
+
+		File f;
+		if (isRotating()) {
+			f = withSuffix(file, String.format("-%05d", ++chunk));
+			current = new File(f.getPath() + PART);
+		} else {
+			f = file;
+			current = f;
+		}
+		files.add(f);
+
+		OutputStream os = new FileOutputStream(current);
+		os = new FilterOutputStream(os) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				chunkBytes++;
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				chunkBytes += len;
+			}
+		};
+		if (GZIP.equals(compression)) {
+			// Sync flush, so that flush() writes what the compressor holds
+			os = new GZIPOutputStream(os, Fortnox4JText.WRITE_BUFFER_SIZE, true);
+		} else if (ZSTD.equals(compression)) {
+			os = new ZstdOutputStream(os, 3);
+		}
+		out = new BufferedOutputStream(os, Fortnox4JText.WRITE_BUFFER_SIZE);
+		return out;
+
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		open().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		open().write(b, off, len);
+	}
+
+	/**
+	 * Flushes the buffered bytes through the compressor to the file. The
+	 * file is readable up to the flushed bytes, but each flush makes the
+	 * compression somewhat worse.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (out!=null) {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Completes the last chunk.
+	 */
+	@Override
+	public void close() throws IOException {
+		rotate();
+	}
+
+}
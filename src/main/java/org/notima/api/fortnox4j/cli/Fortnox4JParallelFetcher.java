@@ -0,0 +1,142 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches a list of items concurrently and hands the results back in the same
+ * order as the keys were given. No more than parallelism fetches are in flight
+ * at any time.
+ *
+ * A failing fetch doesn't abort the run. The error is passed to the result
+ * handler together with the key and it's up to the handler to decide what to do.
+ *
+ * @param <K>	The key used to fetch an item, ie a document number.
+ * @param <V>	The fetched item.
+ */
+public class Fortnox4JParallelFetcher<K,V> {
+
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * Fetches one item
+	 */
+	public interface Fetcher<K,V> {
+		public V fetch(K key) throws Exception;
+	}
+
+	/**
+	 * Receives the fetched items in key order. Always called from the thread
+	 * that called fetch.
+	 */
+	public interface ResultHandler<K,V> {
+		/**
+		 * @param key		The key
+		 * @param value		The fetched value. Null if the fetch failed.
+		 * @param error		The error if the fetch failed, otherwise null.
+		 */
+		public void handle(K key, V value, Exception error) throws Exception;
+	}
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	private int		parallelism;
+
+	/**
+	 * @param parallelism	Max number of fetches in flight. Values less than 1 are treated as 1.
+	 */
+	public Fortnox4JParallelFetcher(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Fetches all keys and passes the results to the handler in key order.
+	 *
+	 * @param keys			The keys to fetch.
+	 * @param fetcher		Fetches a single key.
+	 * @param handler		Receives the results.
+	 * @return				The number of keys handled.
+	 * @throws Exception	If the handler throws an exception.
+	 */
+	public int fetch(List<K> keys, final Fetcher<K,V> fetcher, ResultHandler<K,V> handler) throws Exception {
+
+		if (keys==null || keys.isEmpty())
+			return 0;
+
+		int count = 0;
+
+		if (parallelism==1 || keys.size()==1) {
+			for (K key : keys) {
+				V value = null;
+				Exception error = null;
+				try {
+					value = fetcher.fetch(key);
+				} catch (Exception e) {
+					error = e;
+				}
+				handler.handle(key, value, error);
+				count++;
+			}
+			return count;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, keys.size()), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fortnox4j-fetch-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		Deque<K> keysInFlight = new ArrayDeque<K>();
+		Deque<Future<V>> inFlight = new ArrayDeque<Future<V>>();
+		Iterator<K> it = keys.iterator();
+
+		try {
+
+			while (it.hasNext() || !inFlight.isEmpty()) {
+
+				// Fill the window
+				while (inFlight.size()<parallelism && it.hasNext()) {
+					final K key = it.next();
+					keysInFlight.add(key);
+					inFlight.add(executor.submit(() -> fetcher.fetch(key)));
+				}
+
+				// Wait for the oldest fetch to keep the order
+				K key = keysInFlight.poll();
+				V value = null;
+				Exception error = null;
+				try {
+					value = inFlight.poll().get();
+				} catch (ExecutionException ee) {
+					Throwable cause = ee.getCause();
+					error = cause instanceof Exception ? (Exception)cause : new Exception(cause);
+				}
+				handler.handle(key, value, error);
+				count++;
+
+			}
+
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return count;
+
+	}
+
+}
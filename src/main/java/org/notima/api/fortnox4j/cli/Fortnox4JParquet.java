@@ -0,0 +1,407 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes reports as Parquet, to be loaded into a warehouse or queried directly
+ * by engines like DuckDB or Spark.
+ *
+ * The columns are typed by the report. Dates are written as DATE, amounts as
+ * DECIMAL(18,2), other numbers as INT64 or DOUBLE, booleans as BOOLEAN and
+ * columns with few distinct values (currency, terms of payment etc) are
+ * dictionary encoded. Columns of reports that don't give their types are
+ * written as strings. The column names are the column headers without
+ * spaces, as for JSON.
+ *
+ * The rows are written in row groups as they're reported, so memory is
+ * bounded by the row group size. A Parquet file holds one table, so a report
+ * with more than one section can only be written to an out file. The
+ * following sections are then written to files named name-2.parquet etc.
+ *
+ * If the output is rotated (see {@link Fortnox4JOutputFile}), each chunk is
+ * a complete Parquet file with the same schema.
+ *
+ */
+public class Fortnox4JParquet extends Fortnox4JText {
+
+	private int			rowGroupSize = Fortnox4JParquetWriter.DEFAULT_ROW_GROUP_SIZE;
+	private boolean		compress = true;
+
+	private Fortnox4JParquetWriter	writer;
+	private Object[]	currentHeader;
+	private int[]		headerTypes;
+	private String[]	names;
+	private int[]		kinds;
+	private int			section;
+	private List<File>	files = new ArrayList<File>();
+
+	// Epoch days per dictionary code of date columns, for the current table
+	private Fortnox4JReportTable	daysTable;
+	private int[][]					days;
+
+	private SimpleDateFormat	isoDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+	// Looked up by the first writeRow, not per row
+	private Fortnox4JMetrics.Recorder	rowMetrics;
+
+	public int getRowGroupSize() {
+		return rowGroupSize;
+	}
+
+	/**
+	 * Sets the number of rows per row group. A row group is kept in memory
+	 * until it's written.
+	 */
+	public void setRowGroupSize(int rowGroupSize) {
+		this.rowGroupSize = Math.max(1, rowGroupSize);
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * @param compress	If true (default), the pages are compressed with gzip.
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Starts the report. A header other than the current one starts a new
+	 * section, which is written to a new file. Rows written with writeRow
+	 * are written as strings.
+	 */
+	@Override
+	public void beginReport(Object[] header) throws Exception {
+		beginReport(header, null);
+	}
+
+	/**
+	 * Starts the report with the types of the columns.
+	 */
+	@Override
+	public void beginReport(Object[] header, int[] types) throws Exception {
+
+		if (currentHeader!=null && Arrays.equals(currentHeader, header) && Arrays.equals(headerTypes, types)) {
+			return;
+		}
+		closeWriter();
+		currentHeader = header;
+		headerTypes = types;
+		kinds = null;
+		names = new String[header.length];
+		for (int i=0; i<header.length; i++) {
+			names[i] = Fortnox4JJson.toKey(header[i]);
+		}
+
+	}
+
+	/**
+	 * Writes a row. The column types are given by beginReport.
+	 */
+	@Override
+	public void writeRow(Object[] row) throws Exception {
+
+		if (currentHeader==null) {
+			throw new IllegalStateException("beginReport must be called before writeRow");
+		}
+
+		long start = System.nanoTime();
+
+		if (writer==null) {
+			int[] k = new int[names.length];
+			for (int c=0; c<k.length; c++) {
+				k[c] = headerTypes!=null && c<headerTypes.length ? kindOf(headerTypes[c]) : Fortnox4JParquetWriter.STRING;
+			}
+			openWriter(k);
+		}
+		for (int c=0; c<names.length; c++) {
+			setValue(c, c<row.length ? row[c] : null);
+		}
+		writer.endRow();
+		endRow();
+
+		if (rowMetrics==null) {
+			rowMetrics = Fortnox4JMetrics.global().recorder(Fortnox4JMetrics.FORMAT, "parquet.writeRow", Fortnox4JMetrics.ROWS);
+		}
+		rowMetrics.record(System.nanoTime() - start, 1);
+
+	}
+
+	/**
+	 * Writes the rows of the table. Dictionary encoded values are only
+	 * converted once per distinct value and row group.
+	 */
+	@Override
+	public void writeTable(Fortnox4JReportTable table) throws Exception {
+
+		if (currentHeader==null) {
+			throw new IllegalStateException("beginReport must be called before writeTable");
+		}
+
+		long start = System.nanoTime();
+
+		int columns = Math.min(table.getColumnCount(), names.length);
+		int[] k = new int[names.length];
+		for (int c=0; c<k.length; c++) {
+			k[c] = c<columns ? kindOf(table.getType(c)) : Fortnox4JParquetWriter.STRING;
+		}
+		if (daysTable!=table) {
+			daysTable = table;
+			days = new int[columns][];
+		}
+
+		int rows = table.getRowCount();
+		for (int r=0; r<rows; r++) {
+			if (writer==null) {
+				openWriter(k);
+			}
+			for (int c=0; c<columns; c++) {
+				switch(table.getType(c)) {
+					case Fortnox4JReportTable.STRING:
+						writer.setString(c, table.getString(r, c));
+						break;
+					case Fortnox4JReportTable.DICT:
+						int code = table.getCode(r, c);
+						writer.setCode(c, code, table.getDictionaryValue(c, code));
+						break;
+					case Fortnox4JReportTable.DATE:
+						setDate(table, r, c);
+						break;
+					case Fortnox4JReportTable.DOUBLE:
+						writer.setDouble(c, table.getDouble(r, c));
+						break;
+					case Fortnox4JReportTable.AMOUNT:
+						writer.setLong(c, toCents(table.getDouble(r, c)));
+						break;
+					case Fortnox4JReportTable.LONG:
+						writer.setLong(c, table.getLong(r, c));
+						break;
+					case Fortnox4JReportTable.BOOLEAN:
+						writer.setBoolean(c, table.getBoolean(r, c));
+						break;
+				}
+			}
+			writer.endRow();
+			endRow();
+		}
+
+		Fortnox4JMetrics.global().record(Fortnox4JMetrics.FORMAT, "parquet.writeTable", System.nanoTime() - start);
+		Fortnox4JMetrics.global().count(Fortnox4JMetrics.ROWS, rows);
+
+	}
+
+	/**
+	 * Completes the file after a row if the output is rotated and the chunk
+	 * is full. The next row starts a new file.
+	 */
+	private void endRow() throws IOException {
+
+		Fortnox4JOutputFile rotating = getRotatingOutput();
+		if (rotating!=null && rotating.endRow()) {
+			writer.close();
+			writer = null;
+			rotating.rotate();
+		}
+
+	}
+
+	/**
+	 * Sets a date column, the epoch day is computed once per distinct date.
+	 */
+	private void setDate(Fortnox4JReportTable table, int r, int c) {
+
+		int code = table.getCode(r, c);
+		if (code==Fortnox4JReportTable.NULL_CODE) {
+			writer.setNull(c);
+			return;
+		}
+		int[] d = days[c];
+		if (d==null || code>=d.length) {
+			int[] grown = new int[Math.max(64, code*2 + 1)];
+			Arrays.fill(grown, Integer.MIN_VALUE);
+			if (d!=null) {
+				System.arraycopy(d, 0, grown, 0, d.length);
+			}
+			d = grown;
+			days[c] = d;
+		}
+		if (d[code]==Integer.MIN_VALUE) {
+			d[code] = toEpochDay((Date)table.getDictionaryValue(c, code));
+		}
+		writer.setDate(c, d[code]);
+
+	}
+
+	/**
+	 * Sets a column from an object, converted to the type of the column.
+	 *
+	 * @throws IllegalArgumentException	If the value doesn't match the type
+	 * 			given by beginReport.
+	 */
+	private void setValue(int c, Object value) {
+
+		if (value==null) {
+			writer.setNull(c);
+			return;
+		}
+		switch(writer.getKind(c)) {
+			case Fortnox4JParquetWriter.DATE:
+				if (!(value instanceof Date))
+					throw new IllegalArgumentException("Column " + names[c] + " is a date column, got " + value);
+				writer.setDate(c, toEpochDay((Date)value));
+				break;
+			case Fortnox4JParquetWriter.DECIMAL:
+				if (!(value instanceof Number))
+					throw new IllegalArgumentException("Column " + names[c] + " is a decimal column, got " + value);
+				writer.setLong(c, toCents(((Number)value).doubleValue()));
+				break;
+			case Fortnox4JParquetWriter.INT64:
+				if (!(value instanceof Number))
+					throw new IllegalArgumentException("Column " + names[c] + " is an integer column, got " + value);
+				writer.setLong(c, ((Number)value).longValue());
+				break;
+			case Fortnox4JParquetWriter.DOUBLE:
+				if (!(value instanceof Number))
+					throw new IllegalArgumentException("Column " + names[c] + " is a double column, got " + value);
+				writer.setDouble(c, ((Number)value).doubleValue());
+				break;
+			case Fortnox4JParquetWriter.BOOLEAN:
+				writer.setBoolean(c, Boolean.TRUE.equals(value));
+				break;
+			default:
+				writer.setString(c, value instanceof Date ? isoDateFormat.format((Date)value) : value.toString());
+		}
+
+	}
+
+	private static int kindOf(int tableType) {
+
+		switch(tableType) {
+			case Fortnox4JReportTable.DICT:
+				return Fortnox4JParquetWriter.DICTIONARY;
+			case Fortnox4JReportTable.DATE:
+				return Fortnox4JParquetWriter.DATE;
+			case Fortnox4JReportTable.AMOUNT:
+				return Fortnox4JParquetWriter.DECIMAL;
+			case Fortnox4JReportTable.DOUBLE:
+				return Fortnox4JParquetWriter.DOUBLE;
+			case Fortnox4JReportTable.LONG:
+				return Fortnox4JParquetWriter.INT64;
+			case Fortnox4JReportTable.BOOLEAN:
+				return Fortnox4JParquetWriter.BOOLEAN;
+			default:
+				return Fortnox4JParquetWriter.STRING;
+		}
+
+	}
+
+	/**
+	 * Opens the file of the current section. After a rotation the file is
+	 * opened with the column types of the section.
+	 *
+	 * @param k		The column types if this is the first file of the section.
+	 */
+	private void openWriter(int[] k) throws IOException {
+
+		if (kinds==null) {
+			kinds = k;
+			section++;
+		}
+		OutputStream os;
+		File outFile = getOutFile();
+		if (outFile!=null) {
+			String path = outFile.getAbsolutePath();
+			if (path.toLowerCase().endsWith(".parquet")) {
+				path = path.substring(0, path.length() - ".parquet".length());
+			}
+			File f = new File(section==1 ? path + ".parquet" : path + "-" + section + ".parquet");
+			os = new BufferedOutputStream(new FileOutputStream(f), WRITE_BUFFER_SIZE);
+			files.add(f);
+		} else {
+			if (section>1) {
+				throw new IllegalStateException("A Parquet file holds one table. Write reports with more than one section to an out file.");
+			}
+			// The writer closes its stream, the output stream is only flushed
+			os = new FilterOutputStream(new BufferedOutputStream(outputStream!=null ? outputStream : System.out, WRITE_BUFFER_SIZE)) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+		}
+		writer = new Fortnox4JParquetWriter(Fortnox4JMetrics.global().countBytes(os), names, kinds, rowGroupSize, compress);
+
+	}
+
+	private void closeWriter() throws IOException {
+
+		if (writer!=null) {
+			writer.close();
+			writer = null;
+		}
+		daysTable = null;
+		days = null;
+
+	}
+
+	/**
+	 * Writes the last row group and the footer. A report without rows is
+	 * written as a file without rows.
+	 */
+	@Override
+	public void endReport() throws Exception {
+
+		if (currentHeader==null)
+			return;
+
+		if (writer==null && section==0) {
+			int[] k = new int[names.length];
+			Arrays.fill(k, Fortnox4JParquetWriter.STRING);
+			openWriter(k);
+		}
+		closeWriter();
+		currentHeader = null;
+		headerTypes = null;
+		kinds = null;
+
+	}
+
+	@Override
+	public List<StringBuffer> writeResult() throws Exception {
+
+		endReport();
+
+		List<StringBuffer> result = new ArrayList<StringBuffer>();
+		for (File f : files) {
+			result.add(new StringBuffer(f.getAbsolutePath()));
+		}
+		return result;
+
+	}
+
+	private static int toEpochDay(Date date) {
+		return (int)date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+
+	private static long toCents(double amount) {
+		return Math.round(amount * 100);
+	}
+
+}
@@ -0,0 +1,842 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a Parquet file with a flat schema of optional columns.
+ *
+ * Rows are buffered in primitive arrays until a row group is full. The row
+ * group is then encoded and written, so memory is bounded by the row group
+ * size and not by the number of rows. The file is written front to back
+ * without seeking and can be written to any stream.
+ *
+ * Each column chunk is one data page (format v1). String columns can be
+ * dictionary encoded, the dictionary is built per row group. Dates are
+ * written as DATE, amounts as DECIMAL(18,2), other decimal numbers as
+ * DOUBLE and the metadata is encoded with
+ * the Thrift compact protocol as the format requires.
+ *
+ */
+public class Fortnox4JParquetWriter {
+
+	/** A plain encoded UTF-8 string. */
+	public static final int STRING = 0;
+	/** A dictionary encoded UTF-8 string. */
+	public static final int DICTIONARY = 1;
+	/** A date, as days since 1970-01-01. */
+	public static final int DATE = 2;
+	/** An amount with two decimals, as cents. */
+	public static final int DECIMAL = 3;
+	/** A 64 bit integer. */
+	public static final int INT64 = 4;
+	/** A boolean. */
+	public static final int BOOLEAN = 5;
+	/** A 64 bit floating point number. */
+	public static final int DOUBLE = 6;
+
+	public static final int DEFAULT_ROW_GROUP_SIZE = 64*1024;
+
+	private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+
+	// Physical types
+	private static final int TYPE_BOOLEAN = 0;
+	private static final int TYPE_INT32 = 1;
+	private static final int TYPE_INT64 = 2;
+	private static final int TYPE_DOUBLE = 5;
+	private static final int TYPE_BYTE_ARRAY = 6;
+
+	// Converted types
+	private static final int CONVERTED_UTF8 = 0;
+	private static final int CONVERTED_DECIMAL = 5;
+	private static final int CONVERTED_DATE = 6;
+
+	// Encodings
+	private static final int ENCODING_PLAIN = 0;
+	private static final int ENCODING_PLAIN_DICTIONARY = 2;
+	private static final int ENCODING_RLE = 3;
+
+	// Page types
+	private static final int PAGE_DATA = 0;
+	private static final int PAGE_DICTIONARY = 2;
+
+	// Compression codecs
+	private static final int CODEC_UNCOMPRESSED = 0;
+	private static final int CODEC_GZIP = 2;
+
+	private static final int DECIMAL_PRECISION = 18;
+	private static final int DECIMAL_SCALE = 2;
+
+	private final CountingOutputStream	out;
+	private final String[]		names;
+	private final int[]			kinds;
+	private final int			rowGroupSize;
+	private final boolean		gzip;
+
+	// The rows of the current row group
+	private int					rows;
+	private final boolean[][]	defined;
+	private final String[][]	strings;
+	private final int[][]		ints;
+	private final long[][]		longs;
+	private final boolean[][]	booleans;
+
+	// Dictionaries of the current row group
+	private final List<List<String>>			dictionaries = new ArrayList<List<String>>();
+	private final List<Map<String, Integer>>	dictionaryIndex = new ArrayList<Map<String, Integer>>();
+	private final int[][]						sourceCodes;
+
+	private long				totalRows;
+	private final List<byte[]>	rowGroups = new ArrayList<byte[]>();
+	private boolean				closed;
+
+	/**
+	 * Creates a writer. The file header is written immediately.
+	 *
+	 * @param os			The stream to write to. Closed when the writer is closed.
+	 * @param names			The column names.
+	 * @param kinds			The kind of each column, ie STRING or DATE.
+	 * @param rowGroupSize	Rows per row group.
+	 * @param gzip			True to compress the pages with gzip.
+	 * @throws IOException	If the header can't be written.
+	 */
+	public Fortnox4JParquetWriter(OutputStream os, String[] names, int[] kinds, int rowGroupSize, boolean gzip) throws IOException {
+
+		if (names.length!=kinds.length) {
+			throw new IllegalArgumentException(names.length + " names and " + kinds.length + " kinds");
+		}
+		this.out = new CountingOutputStream(os);
+		this.names = names;
+		this.kinds = kinds;
+		this.rowGroupSize = Math.max(1, rowGroupSize);
+		this.gzip = gzip;
+
+		int n = kinds.length;
+		defined = new boolean[n][this.rowGroupSize];
+		strings = new String[n][];
+		ints = new int[n][];
+		longs = new long[n][];
+		booleans = new boolean[n][];
+		sourceCodes = new int[n][];
+		for (int c=0; c<n; c++) {
+			switch(kinds[c]) {
+				case STRING:
+					strings[c] = new String[this.rowGroupSize];
+					break;
+				case DICTIONARY:
+				case DATE:
+					ints[c] = new int[this.rowGroupSize];
+					break;
+				case DECIMAL:
+				case INT64:
+				case DOUBLE:
+					longs[c] = new long[this.rowGroupSize];
+					break;
+				case BOOLEAN:
+					booleans[c] = new boolean[this.rowGroupSize];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown column kind " + kinds[c]);
+			}
+			dictionaries.add(kinds[c]==DICTIONARY ? new ArrayList<String>() : null);
+			dictionaryIndex.add(kinds[c]==DICTIONARY ? new HashMap<String, Integer>() : null);
+		}
+
+		out.write(MAGIC);
+
+	}
+
+	public int getColumnCount() {
+		return kinds.length;
+	}
+
+	public int getKind(int col) {
+		return kinds[col];
+	}
+
+	public long getRowCount() {
+		return totalRows + rows;
+	}
+
+	/**
+	 * Sets a string column. Null sets the column to null.
+	 */
+	public void setString(int col, String value) {
+		if (value==null) {
+			setNull(col);
+		} else if (kinds[col]==DICTIONARY) {
+			ints[col][rows] = encode(col, value);
+			defined[col][rows] = true;
+		} else {
+			strings[col][rows] = value;
+			defined[col][rows] = true;
+		}
+	}
+
+	/**
+	 * Sets a dictionary column from a value that is already dictionary
+	 * encoded, ie a column of a {@link Fortnox4JReportTable}. The value is
+	 * only looked up the first time the code is seen in a row group.
+	 *
+	 * @param col		The column
+	 * @param code		The code of the value in the source dictionary. Negative for null.
+	 * @param value		The value.
+	 */
+	public void setCode(int col, int code, Object value) {
+		if (code<0 || value==null) {
+			setNull(col);
+			return;
+		}
+		int[] map = sourceCodes[col];
+		if (map==null || code>=map.length) {
+			int[] grown = new int[Math.max(64, code*2 + 1)];
+			Arrays.fill(grown, -1);
+			if (map!=null) {
+				System.arraycopy(map, 0, grown, 0, map.length);
+			}
+			map = grown;
+			sourceCodes[col] = map;
+		}
+		int index = map[code];
+		if (index<0) {
+			index = encode(col, value.toString());
+			map[code] = index;
+		}
+		ints[col][rows] = index;
+		defined[col][rows] = true;
+	}
+
+	/**
+	 * Sets a date column.
+	 *
+	 * @param epochDay	Days since 1970-01-01.
+	 */
+	public void setDate(int col, int epochDay) {
+		ints[col][rows] = epochDay;
+		defined[col][rows] = true;
+	}
+
+	/**
+	 * Sets an INT64 column, or a DECIMAL column in cents.
+	 */
+	public void setLong(int col, long value) {
+		longs[col][rows] = value;
+		defined[col][rows] = true;
+	}
+
+	public void setDouble(int col, double value) {
+		longs[col][rows] = Double.doubleToLongBits(value);
+		defined[col][rows] = true;
+	}
+
+	public void setBoolean(int col, boolean value) {
+		booleans[col][rows] = value;
+		defined[col][rows] = true;
+	}
+
+	public void setNull(int col) {
+		defined[col][rows] = false;
+		if (strings[col]!=null) {
+			strings[col][rows] = null;
+		}
+	}
+
+	/**
+	 * Ends the current row. Columns that weren't set are null. The row group
+	 * is written when it's full.
+	 */
+	public void endRow() throws IOException {
+		rows++;
+		if (rows>=rowGroupSize) {
+			writeRowGroup();
+		}
+	}
+
+	/**
+	 * Writes the last row group and the footer and closes the stream.
+	 */
+	public void close() throws IOException {
+
+		if (closed)
+			return;
+		closed = true;
+
+		try {
+			if (rows>0 || rowGroups.isEmpty()) {
+				writeRowGroup();
+			}
+
+			Thrift t = new Thrift();
+			// FileMetaData
+			t.fieldI32(1, 1);
+			t.fieldList(2, Thrift.STRUCT, names.length + 1);
+			// The root of the schema
+			t.beginStruct();
+			t.fieldBinary(4, "schema");
+			t.fieldI32(5, names.length);
+			t.endStruct();
+			for (int c=0; c<names.length; c++) {
+				writeSchemaElement(t, c);
+			}
+			t.fieldI64(3, totalRows);
+			t.fieldList(4, Thrift.STRUCT, rowGroups.size());
+			for (byte[] rg : rowGroups) {
+				t.raw(rg);
+			}
+			t.fieldBinary(6, "fortnox4j-cli");
+			t.stop();
+
+			byte[] footer = t.toByteArray();
+			out.write(footer);
+			writeIntLE(out, footer.length);
+			out.write(MAGIC);
+		} finally {
+			out.close();
+		}
+
+	}
+
+	private int encode(int col, String value) {
+		Map<String, Integer> index = dictionaryIndex.get(col);
+		Integer i = index.get(value);
+		if (i==null) {
+			List<String> dict = dictionaries.get(col);
+			i = dict.size();
+			dict.add(value);
+			index.put(value, i);
+		}
+		return i;
+	}
+
+	private void writeSchemaElement(Thrift t, int c) {
+
+		t.beginStruct();
+		switch(kinds[c]) {
+			case STRING:
+			case DICTIONARY:
+				t.fieldI32(1, TYPE_BYTE_ARRAY);
+				t.fieldI32(3, 1);
+				t.fieldBinary(4, names[c]);
+				t.fieldI32(6, CONVERTED_UTF8);
+				t.fieldStructBegin(10);
+				t.fieldStructBegin(1);	// StringType
+				t.endStruct();
+				t.endStruct();
+				break;
+			case DATE:
+				t.fieldI32(1, TYPE_INT32);
+				t.fieldI32(3, 1);
+				t.fieldBinary(4, names[c]);
+				t.fieldI32(6, CONVERTED_DATE);
+				t.fieldStructBegin(10);
+				t.fieldStructBegin(6);	// DateType
+				t.endStruct();
+				t.endStruct();
+				break;
+			case DECIMAL:
+				t.fieldI32(1, TYPE_INT64);
+				t.fieldI32(3, 1);
+				t.fieldBinary(4, names[c]);
+				t.fieldI32(6, CONVERTED_DECIMAL);
+				t.fieldI32(7, DECIMAL_SCALE);
+				t.fieldI32(8, DECIMAL_PRECISION);
+				t.fieldStructBegin(10);
+				t.fieldStructBegin(5);	// DecimalType
+				t.fieldI32(1, DECIMAL_SCALE);
+				t.fieldI32(2, DECIMAL_PRECISION);
+				t.endStruct();
+				t.endStruct();
+				break;
+			case INT64:
+				t.fieldI32(1, TYPE_INT64);
+				t.fieldI32(3, 1);
+				t.fieldBinary(4, names[c]);
+				break;
+			case BOOLEAN:
+				t.fieldI32(1, TYPE_BOOLEAN);
+				t.fieldI32(3, 1);
+				t.fieldBinary(4, names[c]);
+				break;
+			case DOUBLE:
+				t.fieldI32(1, TYPE_DOUBLE);
+				t.fieldI32(3, 1);
+				t.fieldBinary(4, names[c]);
+				break;
+		}
+		t.endStruct();
+
+	}
+
+	private static int physicalType(int kind) {
+		switch(kind) {
+			case DATE:
+				return TYPE_INT32;
+			case DECIMAL:
+			case INT64:
+				return TYPE_INT64;
+			case BOOLEAN:
+				return TYPE_BOOLEAN;
+			case DOUBLE:
+				return TYPE_DOUBLE;
+			default:
+				return TYPE_BYTE_ARRAY;
+		}
+	}
+
+	/**
+	 * Writes the buffered rows as a row group and keeps its metadata for the footer.
+	 */
+	private void writeRowGroup() throws IOException {
+
+		long groupStart = out.getCount();
+		long uncompressedTotal = 0;
+
+		Thrift rg = new Thrift();
+		// RowGroup.columns
+		rg.fieldList(1, Thrift.STRUCT, kinds.length);
+
+		for (int c=0; c<kinds.length; c++) {
+
+			long chunkStart = out.getCount();
+			long uncompressed = 0;
+			long dictionaryOffset = -1;
+			int nulls = 0;
+			for (int r=0; r<rows; r++) {
+				if (!defined[c][r])
+					nulls++;
+			}
+
+			// Definition levels, 1 if the value is defined
+			ByteArrayOutputStream page = new ByteArrayOutputStream();
+			byte[] levels = encodeLevels(defined[c], rows);
+			writeIntLE(page, levels.length);
+			page.write(levels);
+
+			int encoding = ENCODING_PLAIN;
+			boolean hasStats = false;
+			long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+
+			switch(kinds[c]) {
+				case STRING:
+					for (int r=0; r<rows; r++) {
+						if (defined[c][r]) {
+							writeByteArray(page, strings[c][r]);
+						}
+					}
+					break;
+				case DICTIONARY:
+					List<String> dict = dictionaries.get(c);
+					ByteArrayOutputStream dictPage = new ByteArrayOutputStream();
+					for (String s : dict) {
+						writeByteArray(dictPage, s);
+					}
+					dictionaryOffset = out.getCount();
+					uncompressed += writePage(PAGE_DICTIONARY, dictPage.toByteArray(), dict.size(), ENCODING_PLAIN_DICTIONARY);
+					encoding = ENCODING_PLAIN_DICTIONARY;
+					int bitWidth = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(0, dict.size() - 1)));
+					page.write(bitWidth);
+					encodeBitPacked(page, ints[c], defined[c], rows, bitWidth);
+					break;
+				case DATE:
+					for (int r=0; r<rows; r++) {
+						if (defined[c][r]) {
+							int v = ints[c][r];
+							writeIntLE(page, v);
+							min = Math.min(min, v);
+							max = Math.max(max, v);
+							hasStats = true;
+						}
+					}
+					break;
+				case DECIMAL:
+				case INT64:
+					for (int r=0; r<rows; r++) {
+						if (defined[c][r]) {
+							long v = longs[c][r];
+							writeLongLE(page, v);
+							min = Math.min(min, v);
+							max = Math.max(max, v);
+							hasStats = true;
+						}
+					}
+					break;
+				case DOUBLE:
+					// The bits of the doubles, written without statistics
+					for (int r=0; r<rows; r++) {
+						if (defined[c][r]) {
+							writeLongLE(page, longs[c][r]);
+						}
+					}
+					break;
+				case BOOLEAN:
+					int bits = 0, n = 0;
+					for (int r=0; r<rows; r++) {
+						if (defined[c][r]) {
+							if (booleans[c][r])
+								bits |= 1 << n;
+							if (++n==8) {
+								page.write(bits);
+								bits = 0;
+								n = 0;
+							}
+						}
+					}
+					if (n>0)
+						page.write(bits);
+					break;
+			}
+
+			long dataOffset = out.getCount();
+			uncompressed += writePage(PAGE_DATA, page.toByteArray(), rows, encoding);
+			long compressed = out.getCount() - chunkStart;
+			uncompressedTotal += uncompressed;
+
+			// ColumnChunk
+			rg.beginStruct();
+			rg.fieldI64(2, chunkStart);
+			rg.fieldStructBegin(3);
+			// ColumnMetaData
+			rg.fieldI32(1, physicalType(kinds[c]));
+			rg.fieldList(2, Thrift.I32, 2);
+			rg.i32(encoding);
+			rg.i32(ENCODING_RLE);
+			rg.fieldList(3, Thrift.BINARY, 1);
+			rg.binary(names[c]);
+			rg.fieldI32(4, gzip ? CODEC_GZIP : CODEC_UNCOMPRESSED);
+			rg.fieldI64(5, rows);
+			rg.fieldI64(6, uncompressed);
+			rg.fieldI64(7, compressed);
+			rg.fieldI64(9, dataOffset);
+			if (dictionaryOffset>=0) {
+				rg.fieldI64(11, dictionaryOffset);
+			}
+			// Statistics
+			rg.fieldStructBegin(12);
+			rg.fieldI64(3, nulls);
+			if (hasStats) {
+				byte[] maxBytes = kinds[c]==DATE ? intLE((int)max) : longLE(max);
+				byte[] minBytes = kinds[c]==DATE ? intLE((int)min) : longLE(min);
+				rg.fieldBinary(5, maxBytes);
+				rg.fieldBinary(6, minBytes);
+			}
+			rg.endStruct();
+			rg.endStruct();
+			rg.endStruct();
+
+		}
+
+		rg.fieldI64(2, uncompressedTotal);
+		rg.fieldI64(3, rows);
+		rg.fieldI64(5, groupStart);
+		rg.fieldI64(6, out.getCount() - groupStart);
+		rg.stop();
+		rowGroups.add(rg.toByteArray());
+
+		totalRows += rows;
+		rows = 0;
+		for (int c=0; c<kinds.length; c++) {
+			if (strings[c]!=null) {
+				Arrays.fill(strings[c], null);
+			}
+			if (kinds[c]==DICTIONARY) {
+				dictionaries.get(c).clear();
+				dictionaryIndex.get(c).clear();
+				if (sourceCodes[c]!=null) {
+					Arrays.fill(sourceCodes[c], -1);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Writes a page with its header.
+	 *
+	 * @return	The uncompressed size of the page including the header.
+	 */
+	private long writePage(int type, byte[] data, int values, int encoding) throws IOException {
+
+		byte[] body = data;
+		if (gzip) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length/4 + 64);
+			try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+				gz.write(data);
+			}
+			body = bos.toByteArray();
+		}
+
+		Thrift t = new Thrift();
+		t.fieldI32(1, type);
+		t.fieldI32(2, data.length);
+		t.fieldI32(3, body.length);
+		if (type==PAGE_DATA) {
+			t.fieldStructBegin(5);
+			t.fieldI32(1, values);
+			t.fieldI32(2, encoding);
+			t.fieldI32(3, ENCODING_RLE);
+			t.fieldI32(4, ENCODING_RLE);
+			t.endStruct();
+		} else {
+			t.fieldStructBegin(7);
+			t.fieldI32(1, values);
+			t.fieldI32(2, encoding);
+			t.endStruct();
+		}
+		t.stop();
+
+		byte[] header = t.toByteArray();
+		out.write(header);
+		out.write(body);
+		return header.length + data.length;
+
+	}
+
+	/**
+	 * Encodes definition levels (bit width 1) as RLE runs.
+	 */
+	private static byte[] encodeLevels(boolean[] defined, int rows) {
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int r = 0;
+		while (r<rows) {
+			boolean value = defined[r];
+			int run = 1;
+			while (r + run<rows && defined[r + run]==value) {
+				run++;
+			}
+			writeVarInt(buf, run << 1);
+			buf.write(value ? 1 : 0);
+			r += run;
+		}
+		return buf.toByteArray();
+
+	}
+
+	/**
+	 * Encodes the defined values as one bit packed run. The last group of
+	 * eight values is padded with zeros.
+	 */
+	private static void encodeBitPacked(ByteArrayOutputStream buf, int[] values, boolean[] defined, int rows, int bitWidth) {
+
+		int count = 0;
+		for (int r=0; r<rows; r++) {
+			if (defined[r])
+				count++;
+		}
+		if (count==0)
+			return;
+
+		int groups = (count + 7) / 8;
+		writeVarInt(buf, (groups << 1) | 1);
+
+		long acc = 0;
+		int accBits = 0;
+		int written = 0;
+		for (int r=0; r<rows; r++) {
+			if (!defined[r])
+				continue;
+			acc |= ((long)values[r]) << accBits;
+			accBits += bitWidth;
+			while (accBits>=8) {
+				buf.write((int)(acc & 0xff));
+				acc >>>= 8;
+				accBits -= 8;
+			}
+			written++;
+		}
+		// Pad the last group
+		for (; written<groups*8; written++) {
+			accBits += bitWidth;
+			while (accBits>=8) {
+				buf.write((int)(acc & 0xff));
+				acc >>>= 8;
+				accBits -= 8;
+			}
+		}
+
+	}
+
+	private static void writeByteArray(OutputStream os, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeIntLE(os, b.length);
+		os.write(b);
+	}
+
+	private static void writeIntLE(OutputStream os, int v) throws IOException {
+		os.write(v);
+		os.write(v >>> 8);
+		os.write(v >>> 16);
+		os.write(v >>> 24);
+	}
+
+	private static void writeLongLE(OutputStream os, long v) throws IOException {
+		for (int i=0; i<8; i++) {
+			os.write((int)(v >>> (8*i)));
+		}
+	}
+
+	private static byte[] intLE(int v) {
+		return new byte[] {(byte)v, (byte)(v >>> 8), (byte)(v >>> 16), (byte)(v >>> 24)};
+	}
+
+	private static byte[] longLE(long v) {
+		byte[] b = new byte[8];
+		for (int i=0; i<8; i++) {
+			b[i] = (byte)(v >>> (8*i));
+		}
+		return b;
+	}
+
+	private static void writeVarInt(ByteArrayOutputStream buf, long v) {
+		while ((v & ~0x7FL)!=0) {
+			buf.write((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.write((int)v);
+	}
+
+	/**
+	 * Counts the bytes written to know the offsets of the pages.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+
+		private long	count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+
+	}
+
+	/**
+	 * The parts of the Thrift compact protocol used by the Parquet metadata.
+	 */
+	static class Thrift {
+
+		static final int BOOLEAN_TRUE = 1;
+		static final int I32 = 5;
+		static final int I64 = 6;
+		static final int BINARY = 8;
+		static final int LIST = 9;
+		static final int STRUCT = 12;
+
+		private final ByteArrayOutputStream	buf = new ByteArrayOutputStream();
+		private final int[]	lastField = new int[16];
+		private int			depth;
+
+		private void fieldHeader(int id, int type) {
+			int delta = id - lastField[depth];
+			if (delta>0 && delta<=15) {
+				buf.write((delta << 4) | type);
+			} else {
+				buf.write(type);
+				writeVarInt(buf, zigzag(id));
+			}
+			lastField[depth] = id;
+		}
+
+		void fieldI32(int id, int v) {
+			fieldHeader(id, I32);
+			i32(v);
+		}
+
+		void fieldI64(int id, long v) {
+			fieldHeader(id, I64);
+			writeVarInt(buf, zigzag(v));
+		}
+
+		void fieldBinary(int id, String s) {
+			fieldHeader(id, BINARY);
+			binary(s);
+		}
+
+		void fieldBinary(int id, byte[] b) {
+			fieldHeader(id, BINARY);
+			writeVarInt(buf, b.length);
+			buf.write(b, 0, b.length);
+		}
+
+		void fieldList(int id, int elementType, int size) {
+			fieldHeader(id, LIST);
+			if (size<15) {
+				buf.write((size << 4) | elementType);
+			} else {
+				buf.write(0xF0 | elementType);
+				writeVarInt(buf, size);
+			}
+		}
+
+		void fieldStructBegin(int id) {
+			fieldHeader(id, STRUCT);
+			beginStruct();
+		}
+
+		/**
+		 * Begins a struct that is a list element.
+		 */
+		void beginStruct() {
+			lastField[++depth] = 0;
+		}
+
+		void endStruct() {
+			buf.write(0);
+			depth--;
+		}
+
+		void stop() {
+			buf.write(0);
+		}
+
+		void i32(int v) {
+			writeVarInt(buf, zigzag(v));
+		}
+
+		void binary(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(buf, b.length);
+			buf.write(b, 0, b.length);
+		}
+
+		/**
+		 * Writes an already encoded struct, ie a list element.
+		 */
+		void raw(byte[] b) {
+			buf.write(b, 0, b.length);
+		}
+
+		byte[] toByteArray() {
+			return buf.toByteArray();
+		}
+
+		private static long zigzag(long v) {
+			return (v << 1) ^ (v >> 63);
+		}
+
+	}
+
+}
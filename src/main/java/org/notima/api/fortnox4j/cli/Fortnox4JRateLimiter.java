@@ -0,0 +1,77 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sliding window limiting the number of requests made to the Fortnox API.
+ * Fortnox limits the number of requests per access token, so each client
+ * has its own limiter.
+ *
+ * The times of the last requests are kept, a request is allowed when the
+ * oldest of them is a period old. Unlike a token bucket there's no burst
+ * on top of the limit, neither at the start nor after an idle period.
+ *
+ */
+public class Fortnox4JRateLimiter {
+
+	/**
+	 * Fortnox allows 25 requests per 5 seconds per access token.
+	 */
+	public static final int DEFAULT_PERMITS = 25;
+	public static final long DEFAULT_PERIOD_MS = 5000;
+
+	private final long		periodNanos;
+
+	// The start times of the last requests, oldest at next when full
+	private final long[]	times;
+	private int				next;
+	private int				count;
+
+	public Fortnox4JRateLimiter() {
+		this(DEFAULT_PERMITS, DEFAULT_PERIOD_MS);
+	}
+
+	/**
+	 * @param permits		Number of requests allowed per period.
+	 * @param periodMs		The period in milliseconds.
+	 */
+	public Fortnox4JRateLimiter(int permits, long periodMs) {
+		times = new long[Math.max(1, permits)];
+		periodNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, periodMs));
+	}
+
+	/**
+	 * Waits until a request is allowed.
+	 *
+	 * @throws InterruptedException	If interrupted while waiting.
+	 */
+	public synchronized void acquire() throws InterruptedException {
+
+		long now = System.nanoTime();
+		if (count==times.length) {
+			long waitNanos = times[next] + periodNanos - now;
+			if (waitNanos > 0) {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+				now = System.nanoTime();
+			}
+		} else {
+			count++;
+		}
+		times[next] = now;
+		next = (next + 1) % times.length;
+
+	}
+
+	/**
+	 * Waits until given number of requests are allowed.
+	 *
+	 * @param permits				The number of requests.
+	 * @throws InterruptedException	If interrupted while waiting.
+	 */
+	public void acquire(int permits) throws InterruptedException {
+		for (int i=0; i<permits; i++) {
+			acquire();
+		}
+	}
+
+}
@@ -0,0 +1,336 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of report rows stored column by column. Numbers and booleans are
+ * kept in primitive arrays. Columns with few distinct values (currency, terms
+ * of payment, dates etc) are dictionary encoded, each row only holds the code
+ * of its value.
+ *
+ * The report methods fill a table and pass it to the format when it's full,
+ * see {@link Fortnox4JRowSink#writeTable(Fortnox4JReportTable)}. The table is
+ * then cleared and reused. The dictionaries are kept when the table is
+ * cleared, so a format can cache the formatted value of each code.
+ *
+ */
+public class Fortnox4JReportTable {
+
+	/** A string column. */
+	public static final int STRING = 0;
+	/** A dictionary encoded column. */
+	public static final int DICT = 1;
+	/** A dictionary encoded date column. */
+	public static final int DATE = 2;
+	/** A double column. */
+	public static final int DOUBLE = 3;
+	/** A boolean column. */
+	public static final int BOOLEAN = 4;
+	/** An amount column, kept as a double. */
+	public static final int AMOUNT = 5;
+	/** A 64 bit integer column. */
+	public static final int LONG = 6;
+
+	/** The code of a null value in dictionary encoded columns. */
+	public static final int NULL_CODE = -1;
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final Object[]		header;
+	private final int[]			types;
+	private final int			capacity;
+	private int					rowCount;
+
+	// One array per column, depending on the type
+	private final String[][]	strings;
+	private final int[][]		codes;
+	private final double[][]	doubles;
+	private final long[][]		longs;
+	private final boolean[][]	booleans;
+
+	private final Dictionary[]	dictionaries;
+
+	/**
+	 * The distinct values of a dictionary encoded column.
+	 */
+	public static class Dictionary {
+
+		private Map<Object, Integer>	index = new HashMap<Object, Integer>();
+		private List<Object>			values = new ArrayList<Object>();
+
+		/**
+		 * @param value		The value
+		 * @return	The code of the value. The value is added if it's new.
+		 */
+		public int encode(Object value) {
+			if (value==null)
+				return NULL_CODE;
+			Integer code = index.get(value);
+			if (code==null) {
+				code = values.size();
+				values.add(value);
+				index.put(value, code);
+			}
+			return code;
+		}
+
+		/**
+		 * @param code		The code
+		 * @return	The value of the code. Null for NULL_CODE.
+		 */
+		public Object decode(int code) {
+			return code==NULL_CODE ? null : values.get(code);
+		}
+
+		/**
+		 * @return	The number of distinct values.
+		 */
+		public int size() {
+			return values.size();
+		}
+
+	}
+
+	/**
+	 * Caches a formatted value per dictionary code, so that each distinct
+	 * value is only formatted once. The cache follows the table it was last
+	 * used with.
+	 */
+	public static class FormatCache {
+
+		private Fortnox4JReportTable	table;
+		private String[][]				values;
+
+		/**
+		 * @return	The cached value or null if the code isn't cached.
+		 */
+		public String get(Fortnox4JReportTable t, int col, int code) {
+			if (t!=table) {
+				table = t;
+				values = new String[t.getColumnCount()][];
+			}
+			String[] v = values[col];
+			return v!=null && code>=0 && code<v.length ? v[code] : null;
+		}
+
+		public void put(int col, int code, String value) {
+			String[] v = values[col];
+			if (v==null) {
+				v = new String[Math.max(16, code+1)];
+			} else if (code>=v.length) {
+				v = Arrays.copyOf(v, Math.max(v.length*2, code+1));
+			}
+			v[code] = value;
+			values[col] = v;
+		}
+
+		public void reset() {
+			table = null;
+			values = null;
+		}
+
+	}
+
+	/**
+	 * Creates a report table.
+	 *
+	 * @param header		The column headers.
+	 * @param types			The type of each column.
+	 * @param capacity		The max number of rows in the table.
+	 */
+	public Fortnox4JReportTable(Object[] header, int[] types, int capacity) {
+
+		if (header.length!=types.length) {
+			throw new IllegalArgumentException("Header has " + header.length + " columns, types has " + types.length);
+		}
+		this.header = header;
+		this.types = types;
+		this.capacity = Math.max(1, capacity);
+
+		strings = new String[types.length][];
+		codes = new int[types.length][];
+		doubles = new double[types.length][];
+		longs = new long[types.length][];
+		booleans = new boolean[types.length][];
+		dictionaries = new Dictionary[types.length];
+
+		for (int c=0; c<types.length; c++) {
+			switch(types[c]) {
+				case STRING:
+					strings[c] = new String[this.capacity];
+					break;
+				case DICT:
+				case DATE:
+					codes[c] = new int[this.capacity];
+					dictionaries[c] = new Dictionary();
+					break;
+				case DOUBLE:
+				case AMOUNT:
+					doubles[c] = new double[this.capacity];
+					break;
+				case LONG:
+					longs[c] = new long[this.capacity];
+					break;
+				case BOOLEAN:
+					booleans[c] = new boolean[this.capacity];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown column type " + types[c]);
+			}
+		}
+
+	}
+
+	public Object[] getHeader() {
+		return header;
+	}
+
+	public int getColumnCount() {
+		return types.length;
+	}
+
+	public int getType(int col) {
+		return types[col];
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public boolean isFull() {
+		return rowCount>=capacity;
+	}
+
+	/**
+	 * Adds a row. The columns of the new row must be set.
+	 *
+	 * @return	The index of the new row.
+	 */
+	public int addRow() {
+		if (rowCount>=capacity) {
+			throw new IllegalStateException("The table is full");
+		}
+		return rowCount++;
+	}
+
+	/**
+	 * Removes all rows. The dictionaries are kept.
+	 */
+	public void clear() {
+		for (String[] s : strings) {
+			if (s!=null) {
+				// Don't keep the strings alive
+				Arrays.fill(s, 0, rowCount, null);
+			}
+		}
+		rowCount = 0;
+	}
+
+	/**
+	 * Sets a string or dictionary encoded column.
+	 */
+	public void setString(int row, int col, String value) {
+		if (types[col]==STRING) {
+			strings[col][row] = value;
+		} else {
+			setValue(row, col, value);
+		}
+	}
+
+	/**
+	 * Sets a dictionary encoded column, ie a date column.
+	 */
+	public void setValue(int row, int col, Object value) {
+		codes[col][row] = dictionaries[col].encode(value);
+	}
+
+	public void setDate(int row, int col, Date value) {
+		setValue(row, col, value);
+	}
+
+	public void setDouble(int row, int col, double value) {
+		doubles[col][row] = value;
+	}
+
+	public void setLong(int row, int col, long value) {
+		longs[col][row] = value;
+	}
+
+	public void setBoolean(int row, int col, boolean value) {
+		booleans[col][row] = value;
+	}
+
+	/**
+	 * @return	The string of a string column or the value of a dictionary encoded column as a string.
+	 */
+	public String getString(int row, int col) {
+		if (types[col]==STRING)
+			return strings[col][row];
+		Object value = getDictionaryValue(col, codes[col][row]);
+		return value!=null ? value.toString() : null;
+	}
+
+	/**
+	 * @return	The code of a dictionary encoded column.
+	 */
+	public int getCode(int row, int col) {
+		return codes[col][row];
+	}
+
+	/**
+	 * @return	The dictionary of a dictionary encoded column, null for other columns.
+	 */
+	public Dictionary getDictionary(int col) {
+		return dictionaries[col];
+	}
+
+	public Object getDictionaryValue(int col, int code) {
+		return dictionaries[col].decode(code);
+	}
+
+	public Date getDate(int row, int col) {
+		return (Date)getDictionaryValue(col, codes[col][row]);
+	}
+
+	public double getDouble(int row, int col) {
+		return doubles[col][row];
+	}
+
+	public long getLong(int row, int col) {
+		return longs[col][row];
+	}
+
+	public boolean getBoolean(int row, int col) {
+		return booleans[col][row];
+	}
+
+	/**
+	 * Returns a column value as an object. Numbers and booleans are boxed,
+	 * this is for sinks that don't read the columns directly.
+	 */
+	public Object getValue(int row, int col) {
+		switch(types[col]) {
+			case STRING:
+				return strings[col][row];
+			case DOUBLE:
+			case AMOUNT:
+				return doubles[col][row];
+			case LONG:
+				return longs[col][row];
+			case BOOLEAN:
+				return booleans[col][row];
+			default:
+				return getDictionaryValue(col, codes[col][row]);
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+import org.notima.api.fortnox.FortnoxException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries calls with exponential backoff.
+ *
+ * Only transient failures are retried. Reads ({@link #call}) are retried on
+ * network errors, rate limiting and server errors. Writes that create
+ * something ({@link #callWrite}) are only retried when the request surely
+ * wasn't processed: the connection couldn't be made or the request was
+ * rejected by the rate limit. Otherwise a retry could create a duplicate.
+ * Errors returned by the API for the request itself, ie validation errors,
+ * are never retried.
+ *
+ * fortnox4j doesn't expose the HTTP status of a failed call, so rate limiting
+ * and server errors are recognized by the messages of the exception and its
+ * causes.
+ *
+ */
+public class Fortnox4JRetry {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JRetry.class);
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_INITIAL_DELAY_MS = 1000;
+
+	private static final Pattern RATE_LIMITED = Pattern.compile("\\b429\\b|too many requests");
+	private static final Pattern SERVER_ERROR = Pattern.compile("\\b(http|status|code)\\W{0,3}5\\d\\d\\b"
+			+ "|internal server error|bad gateway|service unavailable|gateway time-?out");
+
+	private int		maxRetries;
+	private long	initialDelayMs;
+
+	/**
+	 * Decides if a failed attempt is retried.
+	 */
+	private interface Policy {
+		boolean isRetryable(Exception e);
+	}
+
+	public Fortnox4JRetry() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_DELAY_MS);
+	}
+
+	/**
+	 * @param maxRetries		Number of retries after the first attempt.
+	 * @param initialDelayMs	Delay before the first retry. Doubled for each retry.
+	 */
+	public Fortnox4JRetry(int maxRetries, long initialDelayMs) {
+		this.maxRetries = Math.max(0, maxRetries);
+		this.initialDelayMs = initialDelayMs;
+	}
+
+	/**
+	 * Calls given idempotent callable, ie a read, until it succeeds, fails
+	 * with a failure that isn't transient or the retries are used up.
+	 *
+	 * @param what			Description used in the log.
+	 * @param call			The call
+	 * @return	The result of the call.
+	 * @throws Exception	The exception of the last attempt.
+	 */
+	public <T> T call(String what, Callable<T> call) throws Exception {
+		return call(what, call, Fortnox4JRetry::isTransient);
+	}
+
+	/**
+	 * Calls given callable that creates something, ie an invoice. It's only
+	 * retried if the request surely wasn't processed. If it fails, use
+	 * {@link #mayHaveReachedServer(Exception)} to tell if it could still
+	 * have been created.
+	 *
+	 * @param what			Description used in the log.
+	 * @param call			The call
+	 * @return	The result of the call.
+	 * @throws Exception	The exception of the last attempt.
+	 */
+	public <T> T callWrite(String what, Callable<T> call) throws Exception {
+		return call(what, call, e -> isNotSent(e) || isRateLimited(e));
+	}
+
+	private <T> T call(String what, Callable<T> call, Policy policy) throws Exception {
+
+		long delay = initialDelayMs;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return call.call();
+			} catch (InterruptedException ie) {
+				throw ie;
+			} catch (Exception e) {
+				if (attempt>=maxRetries || !policy.isRetryable(e))
+					throw e;
+				log.info("{} failed ({}), retrying in {} ms", what, e.getMessage(), delay);
+				Thread.sleep(delay);
+				delay *= 2;
+			}
+		}
+
+	}
+
+	/**
+	 * @return	True if the failure is worth retrying for an idempotent call.
+	 */
+	public static boolean isTransient(Exception e) {
+		if (isNotSent(e) || isRateLimited(e) || isServerError(e))
+			return true;
+		// Network errors after the request was sent, ie timeouts
+		return find(e, IOException.class)!=null && find(e, FortnoxException.class)==null;
+	}
+
+	/**
+	 * @return	True if the request failed before it was sent.
+	 */
+	public static boolean isNotSent(Exception e) {
+		return find(e, ConnectException.class)!=null
+				|| find(e, UnknownHostException.class)!=null
+				|| find(e, NoRouteToHostException.class)!=null;
+	}
+
+	/**
+	 * @return	True if the request was rejected by the rate limit (HTTP 429).
+	 */
+	public static boolean isRateLimited(Exception e) {
+		return matches(e, RATE_LIMITED);
+	}
+
+	/**
+	 * @return	True if the request failed with a server error (HTTP 5xx).
+	 */
+	public static boolean isServerError(Exception e) {
+		return matches(e, SERVER_ERROR);
+	}
+
+	/**
+	 * @return	True if a failed write could still have been processed by the
+	 * 			server. False if the request wasn't sent or was rejected.
+	 */
+	public static boolean mayHaveReachedServer(Exception e) {
+		if (isNotSent(e) || isRateLimited(e))
+			return false;
+		// An error answer from the API means the request was rejected
+		return find(e, FortnoxException.class)==null || isServerError(e);
+	}
+
+	private static <T extends Throwable> T find(Throwable e, Class<T> type) {
+		for (Throwable t = e; t!=null; t = t.getCause()!=t ? t.getCause() : null) {
+			if (type.isInstance(t))
+				return type.cast(t);
+		}
+		return null;
+	}
+
+	private static boolean matches(Throwable e, Pattern pattern) {
+		for (Throwable t = e; t!=null; t = t.getCause()!=t ? t.getCause() : null) {
+			String msg = t.getMessage();
+			if (msg!=null && pattern.matcher(msg.toLowerCase(Locale.ROOT)).find())
+				return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.notima.api.fortnox4j.cli;
+
+/**
+ * Push based contract for writing report rows. The rows are written as they
+ * are produced and are not kept in memory after they're written.
+ * 
+ * A report is started with beginReport, followed by any number of writeRow
+ * and finished with endReport. beginReport can be called again with another
+ * header to start a new section of the same report.
+ *
+ */
+public interface Fortnox4JRowSink {
+
+	/**
+	 * Starts a report (or a new section of the report)
+	 * 
+	 * @param header		The column headers.
+	 * @throws Exception	If the report can't be started.
+	 */
+	public void beginReport(Object[] header) throws Exception;
+	
+	/**
+	 * Starts a report (or a new section of the report) with the types of
+	 * the columns. Formats with typed columns use them, the default ignores
+	 * them. The values of the rows must match the types.
+	 * 
+	 * @param header		The column headers.
+	 * @param types			The type of each column, as in {@link Fortnox4JReportTable}.
+	 * @throws Exception	If the report can't be started.
+	 */
+	public default void beginReport(Object[] header, int[] types) throws Exception {
+		beginReport(header);
+	}
+	
+	/**
+	 * Writes a row. The row array is owned by the caller and may be reused
+	 * after the call returns.
+	 * 
+	 * @param row			The column values of the row.
+	 * @throws Exception	If the row can't be written.
+	 */
+	public void writeRow(Object[] row) throws Exception;
+	
+	/**
+	 * Writes all rows of a report table. The table is owned by the caller and
+	 * is cleared after the call returns. Formats should read the columns
+	 * directly, the default writes each row with writeRow.
+	 * 
+	 * @param table			The rows to write.
+	 * @throws Exception	If the rows can't be written.
+	 */
+	public default void writeTable(Fortnox4JReportTable table) throws Exception {
+		Object[] row = new Object[table.getColumnCount()];
+		for (int r=0; r<table.getRowCount(); r++) {
+			for (int c=0; c<row.length; c++) {
+				row[c] = table.getValue(r, c);
+			}
+			writeRow(row);
+		}
+	}
+	
+	/**
+	 * Ends the report and flushes all output.
+	 * 
+	 * @throws Exception	If the output can't be written.
+	 */
+	public void endReport() throws Exception;
+	
+}
@@ -0,0 +1,310 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many commands in one JVM. The commands are read from a script file,
+ * stdin or a socket on localhost, one command per line, using the same
+ * arguments as the command line. Clients and client files are reused between
+ * commands (see {@link Fortnox4Jcli#getFortnox4JClient}).
+ *
+ * Empty lines and lines starting with # are ignored.
+ *
+ * In server mode, each connection can send any number of commands. After
+ * the output of each command the server sends a line "#END rc" where rc is
+ * the return code of the command. Errors are sent to the connection. The
+ * command "quit" closes the connection and "shutdown" stops the server.
+ *
+ * Commands run with the permissions of the server, ie they can write files
+ * wherever the server can. A connection must therefore first send the line
+ * "auth secret" with the secret of the server (see {@link #loadSecret(File)}).
+ * The secret file is only readable by its owner, so only the user running
+ * the server, or whoever it gives the secret, can run commands.
+ *
+ */
+public class Fortnox4JServer {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JServer.class);
+
+	public static final String END_MARKER = "#END";
+	public static final String CMD_QUIT = "quit";
+	public static final String CMD_SHUTDOWN = "shutdown";
+	public static final String CMD_AUTH = "auth";
+
+	private Fortnox4Jcli	cli;
+
+	private volatile boolean	running;
+	private ServerSocket		serverSocket;
+	private String				secret;
+
+	public Fortnox4JServer(Fortnox4Jcli cli) {
+		this.cli = cli;
+		// Nobody is there to answer questions
+		this.cli.setInteractive(false);
+	}
+
+	/**
+	 * @param secret	The secret connections must send before any command.
+	 */
+	public void setSecret(String secret) {
+		this.secret = secret;
+	}
+
+	/**
+	 * @return	The default secret file, in the user's home directory.
+	 */
+	public static File getDefaultSecretFile() {
+		return new File(new File(System.getProperty("user.home"), ".fortnox4j-cli"), "server.secret");
+	}
+
+	/**
+	 * Reads the secret from a file. If the file doesn't exist, it's created
+	 * readable only by its owner and then written with a random secret.
+	 *
+	 * @param secretFile	The secret file.
+	 * @return	The secret.
+	 * @throws IOException	If the file can't be read or created.
+	 */
+	public static String loadSecret(File secretFile) throws IOException {
+
+		if (!secretFile.exists()) {
+			byte[] random = new byte[24];
+			new SecureRandom().nextBytes(random);
+			StringBuilder buf = new StringBuilder(48);
+			for (byte b : random) {
+				buf.append(String.format("%02x", b & 0xff));
+			}
+			File dir = secretFile.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Can't create directory " + dir.getAbsolutePath());
+			}
+			Path path = secretFile.toPath();
+			// Created with its permissions, so the secret is never readable by others
+			try {
+				Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} catch (UnsupportedOperationException e) {
+				// Not a POSIX file system, restrict the empty file before writing
+				Files.createFile(path);
+				secretFile.setReadable(false, false);
+				secretFile.setWritable(false, false);
+				secretFile.setReadable(true, true);
+				secretFile.setWritable(true, true);
+			}
+			Files.write(path, buf.toString().getBytes(StandardCharsets.US_ASCII), StandardOpenOption.TRUNCATE_EXISTING);
+			log.info("Created secret file {}", secretFile.getAbsolutePath());
+		}
+		String result = new String(Files.readAllBytes(secretFile.toPath()), StandardCharsets.UTF_8).trim();
+		if (result.length()==0) {
+			throw new IOException("Secret file " + secretFile.getAbsolutePath() + " is empty");
+		}
+		return result;
+
+	}
+
+	/**
+	 * Runs the commands in a script.
+	 *
+	 * @param scriptFile	The script file. If "-" the commands are read from stdin.
+	 * @param console		Where the output is printed.
+	 * @return	0 if all commands succeeded, otherwise the return code of the last failing command.
+	 * @throws IOException	If the script can't be read.
+	 */
+	public int runScript(String scriptFile, PrintStream console) throws IOException {
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				"-".equals(scriptFile) ? System.in : new FileInputStream(scriptFile), StandardCharsets.UTF_8));
+
+		int result = 0;
+		try {
+			String line;
+			while ((line = in.readLine())!=null) {
+				String[] args = tokenize(line);
+				if (args.length==0)
+					continue;
+				int rc = cli.runCommand(args, console);
+				if (rc!=0)
+					result = rc;
+			}
+		} finally {
+			if (!"-".equals(scriptFile))
+				in.close();
+		}
+		return result;
+
+	}
+
+	/**
+	 * Listens for commands on given port on localhost until a shutdown command
+	 * is received. Connections are served concurrently.
+	 *
+	 * @param port		The port to listen to.
+	 * @throws IOException	If the server socket can't be opened.
+	 * @throws IllegalStateException	If no secret is set.
+	 */
+	public void listen(int port) throws IOException {
+
+		if (secret==null) {
+			throw new IllegalStateException("A secret is required in server mode");
+		}
+
+		ExecutorService executor = Executors.newCachedThreadPool();
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		running = true;
+		log.info("Listening for commands on {}", serverSocket.getLocalSocketAddress());
+
+		try {
+			while (running) {
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					if (running)
+						log.warn("Accept failed: {}", e.getMessage());
+					continue;
+				}
+				executor.submit(() -> serve(socket));
+			}
+		} finally {
+			executor.shutdown();
+			if (!serverSocket.isClosed())
+				serverSocket.close();
+		}
+
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void shutdown() {
+		running = false;
+		try {
+			if (serverSocket!=null)
+				serverSocket.close();
+		} catch (IOException e) {
+			log.warn("Can't close server socket: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Serves one connection
+	 */
+	private void serve(Socket socket) {
+
+		try (Socket s = socket;
+			 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			 PrintStream out = new PrintStream(s.getOutputStream(), false, "UTF-8")) {
+
+			String line;
+			boolean authorized = false;
+			while ((line = in.readLine())!=null) {
+				String[] args = tokenize(line);
+				if (args.length==0)
+					continue;
+				if (!authorized) {
+					authorized = args.length==2 && CMD_AUTH.equalsIgnoreCase(args[0]) && isSecret(args[1]);
+					if (!authorized) {
+						log.warn("Connection from {} not authorized", s.getRemoteSocketAddress());
+						out.println("Not authorized. Send " + CMD_AUTH + " <secret> first.");
+						out.println(END_MARKER + " 1");
+						out.flush();
+						break;
+					}
+					out.println(END_MARKER + " 0");
+					out.flush();
+					continue;
+				}
+				if (CMD_QUIT.equalsIgnoreCase(args[0]))
+					break;
+				if (CMD_SHUTDOWN.equalsIgnoreCase(args[0])) {
+					out.println(END_MARKER + " 0");
+					out.flush();
+					shutdown();
+					break;
+				}
+				int rc = cli.runCommand(args, out);
+				out.println(END_MARKER + " " + rc);
+				out.flush();
+			}
+
+		} catch (IOException e) {
+			log.warn("Connection failed: {}", e.getMessage());
+		}
+
+	}
+
+	private boolean isSecret(String s) {
+		return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Splits a command line into arguments. Arguments containing spaces can
+	 * be quoted with single or double quotes.
+	 *
+	 * @param line		The command line
+	 * @return	The arguments. Empty if the line is empty or a comment.
+	 */
+	public static String[] tokenize(String line) {
+
+		List<String> args = new ArrayList<String>();
+		if (line==null)
+			return new String[0];
+		line = line.trim();
+		if (line.length()==0 || line.startsWith("#"))
+			return new String[0];
+
+		StringBuilder current = new StringBuilder();
+		boolean inArg = false;
+		char quote = 0;
+		for (int i=0; i<line.length(); i++) {
+			char c = line.charAt(i);
+			if (quote!=0) {
+				if (c==quote) {
+					quote = 0;
+				} else {
+					current.append(c);
+				}
+			} else if (c=='"' || c=='\'') {
+				quote = c;
+				inArg = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inArg) {
+					args.add(current.toString());
+					current.setLength(0);
+					inArg = false;
+				}
+			} else {
+				current.append(c);
+				inArg = true;
+			}
+		}
+		if (inArg) {
+			args.add(current.toString());
+		}
+
+		return args.toArray(new String[args.size()]);
+
+	}
+
+}
@@ -0,0 +1,246 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.notima.api.fortnox.entities3.CompanySetting;
+import org.notima.api.fortnox.entities3.FinancialYearSubset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Archives SIE4 files of all (or a range of) financial years of a client.
+ *
+ * The years are downloaded concurrently and each year is written gzipped to
+ * <code>&lt;orgNo&gt;-&lt;yearId&gt;.se.gz</code> in the archive directory.
+ * The SHA-256 of each year's content is kept in the index file
+ * <code>&lt;orgNo&gt;-sie4.index</code>, and years whose content hasn't
+ * changed since the last run are not rewritten.
+ *
+ */
+public class Fortnox4JSieArchive {
+
+	private static final Logger log = LoggerFactory.getLogger(Fortnox4JSieArchive.class);
+
+	public static final int SIE_TYPE = 4;
+	public static final String INDEX_SUFFIX = "-sie4.index";
+
+	private Fortnox4JClient		client;
+	private File				archiveDir;
+	private int					parallelism = Fortnox4JParallelFetcher.DEFAULT_PARALLELISM;
+
+	/**
+	 * @param client		The client to archive.
+	 * @param archiveDir	The archive directory. Created if it doesn't exist.
+	 */
+	public Fortnox4JSieArchive(Fortnox4JClient client, File archiveDir) {
+		this.client = client;
+		this.archiveDir = archiveDir;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Archives the financial years that overlap given date range.
+	 *
+	 * @param fromDate		The first date. If null, all financial years are archived.
+	 * @param untilDate		The last date. If null, today.
+	 * @param out			Where a line per year is printed.
+	 * @return	The number of years written (new or changed).
+	 * @throws Exception	If the years can't be listed or the archive can't be written.
+	 */
+	public int archive(Date fromDate, Date untilDate, final PrintStream out) throws Exception {
+
+		if (!archiveDir.isDirectory() && !archiveDir.mkdirs()) {
+			throw new IOException("Can't create archive directory " + archiveDir.getAbsolutePath());
+		}
+
+		CompanySetting cs = client.getCompanySetting();
+		final String orgNo = cs!=null && cs.getOrganizationNumber()!=null
+				? cs.getOrganizationNumber().trim().replaceAll("[^A-Za-z0-9\\-]", "_") : "_";
+
+		List<Integer> years = listFinancialYears(fromDate, untilDate);
+
+		final File indexFile = new File(archiveDir, orgNo + INDEX_SUFFIX);
+		final Map<String, String> index = readIndex(indexFile);
+		final int[] written = new int[1];
+
+		try {
+			new Fortnox4JParallelFetcher<Integer, ByteBuffer>(parallelism).fetch(
+					years,
+					yearId -> client.retrieveSieFile(SIE_TYPE, yearId),
+					(yearId, content, error) -> {
+						String name = orgNo + "-" + yearId + ".se.gz";
+						if (error!=null) {
+							log.warn("Can't retrieve SIE file for year {}: {}", yearId, error.getMessage());
+							out.println(name + " failed: " + error.getMessage());
+							return;
+						}
+						String hash = sha256(content);
+						File file = new File(archiveDir, name);
+						if (hash.equals(index.get(name)) && file.exists()) {
+							out.println(name + " unchanged");
+							return;
+						}
+						writeGzipped(content, file);
+						index.put(name, hash);
+						written[0]++;
+						out.println(name + " written");
+					});
+		} finally {
+			writeIndex(indexFile, index);
+		}
+
+		return written[0];
+
+	}
+
+	/**
+	 * Lists the ids of the financial years overlapping given range, latest first.
+	 *
+	 * The years are found by stepping back from the until date. After a year
+	 * is found, the search continues the day before it starts, so there's one
+	 * call per year. If no year covers a date, ie there's a gap between
+	 * years, the search steps back a month.
+	 */
+	private List<Integer> listFinancialYears(Date fromDate, Date untilDate) throws Exception {
+
+		Map<Integer, Boolean> years = new LinkedHashMap<Integer, Boolean>();
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(untilDate!=null ? untilDate : new Date());
+
+		while (fromDate==null || !cal.getTime().before(fromDate)) {
+			FinancialYearSubset fs;
+			try {
+				fs = client.getFinancialYear(cal.getTime());
+			} catch (Exception e) {
+				if (fromDate!=null)
+					throw e;
+				fs = null;
+			}
+			if (fs==null) {
+				// Without a from date, the first missing year ends the search
+				if (fromDate==null)
+					break;
+				cal.add(Calendar.MONTH, -1);
+				continue;
+			}
+			years.put(fs.getId(), Boolean.TRUE);
+			Date start = fs.getFromDate();
+			if (start!=null && start.before(cal.getTime())) {
+				cal.setTime(start);
+				cal.add(Calendar.DAY_OF_MONTH, -1);
+			} else {
+				cal.add(Calendar.MONTH, -1);
+			}
+		}
+
+		return new ArrayList<Integer>(years.keySet());
+
+	}
+
+	/**
+	 * Writes the remaining content of a buffer to a stream.
+	 *
+	 * @param content		The content.
+	 * @param out			The stream.
+	 * @throws IOException	If the content can't be written.
+	 */
+	public static void write(ByteBuffer content, OutputStream out) throws IOException {
+
+		ByteBuffer buf = content.duplicate();
+		if (buf.hasArray()) {
+			out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+		} else {
+			WritableByteChannel ch = Channels.newChannel(out);
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+		}
+		out.flush();
+
+	}
+
+	private static void writeGzipped(ByteBuffer content, File file) throws IOException {
+
+		File tmp = new File(file.getAbsolutePath() + ".tmp");
+		try (OutputStream out = new GZIPOutputStream(Channels.newOutputStream(FileChannel.open(tmp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)), 64*1024)) {
+			write(content, out);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	private static String sha256(ByteBuffer content) throws Exception {
+
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(content.duplicate());
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+
+	}
+
+	private static Map<String, String> readIndex(File indexFile) throws IOException {
+
+		Map<String, String> index = new TreeMap<String, String>();
+		if (!indexFile.exists())
+			return index;
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine())!=null) {
+				int sep = line.indexOf(';');
+				if (sep > 0) {
+					index.put(line.substring(0, sep), line.substring(sep + 1));
+				}
+			}
+		}
+		return index;
+
+	}
+
+	private static void writeIndex(File indexFile, Map<String, String> index) throws IOException {
+
+		File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+		try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp.toPath()), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, String> e : index.entrySet()) {
+				out.write(e.getKey());
+				out.write(';');
+				out.write(e.getValue());
+				out.newLine();
+			}
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+}
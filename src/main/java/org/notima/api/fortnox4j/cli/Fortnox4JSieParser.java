@@ -0,0 +1,291 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming parser of SIE4 files. Only the records needed for balances are
+ * parsed: #KONTO, #IB, #UB, #RES, #VER and #TRANS. Other records are skipped.
+ *
+ * The file is read a line at a time into a reused buffer and the fields are
+ * parsed directly from the bytes. Amounts are passed as cents and dates
+ * as yyyyMMdd integers.
+ *
+ */
+public class Fortnox4JSieParser {
+
+	/**
+	 * Receives the parsed records.
+	 */
+	public interface Handler {
+
+		/**
+		 * #KONTO
+		 */
+		public void account(int account, String name);
+
+		/**
+		 * #IB, #UB and #RES
+		 *
+		 * @param type		'I', 'U' or 'R'
+		 * @param year		Year number, 0 is the current year, -1 the previous.
+		 */
+		public void balance(char type, int year, int account, long amount);
+
+		/**
+		 * #TRANS
+		 *
+		 * @param date		Transaction date or, if missing, the date of the voucher.
+		 */
+		public void transaction(int account, int date, long amount);
+
+	}
+
+	/**
+	 * SIE files are encoded in IBM PC 8-bit extended ASCII (codepage 437)
+	 */
+	private static final Charset SIE_CHARSET = Charset.isSupported("IBM437")
+			? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+
+	private static final int MAX_FIELDS = 16;
+
+	private byte[]		line = new byte[1024];
+	private int			lineLength;
+	private int[]		fieldStart = new int[MAX_FIELDS];
+	private int[]		fieldEnd = new int[MAX_FIELDS];
+	private int			fieldCount;
+
+	private int			voucherDate;
+	private int			lineNo;
+
+	/**
+	 * Parses a SIE file. Gzipped files (ie from archiveSie4) are recognized.
+	 *
+	 * @param file			The file.
+	 * @param handler		The handler of parsed records.
+	 * @throws IOException	If the file can't be read or parsed.
+	 */
+	public void parse(File file, Handler handler) throws IOException {
+
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64*1024)) {
+			in.mark(2);
+			int b1 = in.read();
+			int b2 = in.read();
+			in.reset();
+			if (b1==0x1f && b2==0x8b) {
+				parse(new BufferedInputStream(new GZIPInputStream(in, 64*1024), 64*1024), handler);
+			} else {
+				parse(in, handler);
+			}
+		}
+
+	}
+
+	/**
+	 * Parses a SIE stream.
+	 *
+	 * @param in			The stream. Should be buffered.
+	 * @param handler		The handler of parsed records.
+	 * @throws IOException	If the stream can't be read or parsed.
+	 */
+	public void parse(InputStream in, Handler handler) throws IOException {
+
+		lineNo = 0;
+		voucherDate = 0;
+		while (readLine(in)) {
+			lineNo++;
+			split();
+			if (fieldCount==0 || line[fieldStart[0]]!='#')
+				continue;
+
+			if (is("#TRANS")) {
+				if (fieldCount < 4)
+					throw error("#TRANS");
+				int date = voucherDate;
+				if (fieldCount > 4 && fieldEnd[4] > fieldStart[4] && line[fieldStart[4]]!='"') {
+					date = parseInt(4);
+				}
+				handler.transaction(parseInt(1), date, parseAmount(3));
+			} else if (is("#VER")) {
+				voucherDate = fieldCount > 3 ? parseInt(3) : 0;
+			} else if (is("#IB") || is("#UB") || is("#RES")) {
+				if (fieldCount < 4)
+					throw error(new String(line, fieldStart[0], fieldEnd[0] - fieldStart[0], StandardCharsets.US_ASCII));
+				handler.balance((char)line[fieldStart[0]+1], parseInt(1), parseInt(2), parseAmount(3));
+			} else if (is("#KONTO")) {
+				if (fieldCount < 2)
+					throw error("#KONTO");
+				handler.account(parseInt(1), fieldCount > 2 ? unquote(2) : "");
+			}
+		}
+
+	}
+
+	/**
+	 * Reads the next line into the line buffer without the line terminator.
+	 *
+	 * @return	False at end of stream.
+	 */
+	private boolean readLine(InputStream in) throws IOException {
+
+		lineLength = 0;
+		int c;
+		while ((c = in.read())!=-1) {
+			if (c=='\n')
+				return true;
+			if (c=='\r')
+				continue;
+			if (lineLength==line.length) {
+				byte[] larger = new byte[line.length*2];
+				System.arraycopy(line, 0, larger, 0, lineLength);
+				line = larger;
+			}
+			line[lineLength++] = (byte)c;
+		}
+		return lineLength > 0;
+
+	}
+
+	/**
+	 * Splits the line into fields. Quoted strings and object lists in braces
+	 * are one field each.
+	 */
+	private void split() {
+
+		fieldCount = 0;
+		int i = 0;
+		while (i < lineLength && fieldCount < MAX_FIELDS) {
+			byte c = line[i];
+			if (c==' ' || c=='\t') {
+				i++;
+				continue;
+			}
+			int start = i;
+			if (c=='"') {
+				i++;
+				while (i < lineLength && line[i]!='"') {
+					if (line[i]=='\\')
+						i++;
+					i++;
+				}
+				i++;
+			} else if (c=='{') {
+				while (i < lineLength && line[i]!='}')
+					i++;
+				i++;
+			} else {
+				while (i < lineLength && line[i]!=' ' && line[i]!='\t')
+					i++;
+			}
+			fieldStart[fieldCount] = start;
+			fieldEnd[fieldCount] = Math.min(i, lineLength);
+			fieldCount++;
+		}
+
+	}
+
+	private boolean is(String label) {
+		int len = fieldEnd[0] - fieldStart[0];
+		if (len!=label.length())
+			return false;
+		for (int i=0; i<len; i++) {
+			if (Character.toUpperCase((char)line[fieldStart[0]+i])!=label.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private int parseInt(int field) throws IOException {
+
+		int i = fieldStart[field];
+		int end = fieldEnd[field];
+		if (i < end && line[i]=='"') {
+			i++;
+			end--;
+		}
+		boolean negative = false;
+		if (i < end && line[i]=='-') {
+			negative = true;
+			i++;
+		}
+		if (i>=end)
+			throw error("number");
+		int result = 0;
+		for (; i<end; i++) {
+			int d = line[i] - '0';
+			if (d < 0 || d > 9)
+				throw error("number");
+			result = result*10 + d;
+		}
+		return negative ? -result : result;
+
+	}
+
+	/**
+	 * Parses an amount with up to two decimals into cents. More decimals are rounded.
+	 */
+	private long parseAmount(int field) throws IOException {
+
+		int i = fieldStart[field];
+		int end = fieldEnd[field];
+		boolean negative = false;
+		if (i < end && line[i]=='-') {
+			negative = true;
+			i++;
+		}
+		if (i>=end)
+			throw error("amount");
+		long units = 0;
+		int decimals = -1;
+		long fraction = 0;
+		for (; i<end; i++) {
+			byte c = line[i];
+			if (c=='.') {
+				decimals = 0;
+				continue;
+			}
+			int d = c - '0';
+			if (d < 0 || d > 9)
+				throw error("amount");
+			if (decimals < 0) {
+				units = units*10 + d;
+			} else {
+				if (decimals < 2) {
+					fraction = fraction*10 + d;
+				} else if (decimals==2 && d>=5) {
+					fraction++;
+				}
+				decimals++;
+			}
+		}
+		if (decimals==1)
+			fraction *= 10;
+		long result = units*100 + fraction;
+		return negative ? -result : result;
+
+	}
+
+	private String unquote(int field) {
+
+		int start = fieldStart[field];
+		int end = fieldEnd[field];
+		if (end - start >= 2 && line[start]=='"' && line[end-1]=='"') {
+			start++;
+			end--;
+		}
+		String s = new String(line, start, end - start, SIE_CHARSET);
+		return s.indexOf('\\') >= 0 ? s.replace("\\\"", "\"") : s;
+
+	}
+
+	private IOException error(String what) {
+		return new IOException("Invalid " + what + " on line " + lineNo);
+	}
+
+}
@@ -1,27 +1,59 @@
 package org.notima.api.fortnox4j.cli;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
+import org.notima.api.fortnox.entities3.Customer;
+import org.notima.api.fortnox.entities3.Customers;
 import org.notima.api.fortnox.entities3.Invoice;
 import org.notima.api.fortnox.entities3.InvoiceSubset;
 import org.notima.api.fortnox.entities3.Invoices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Fortnox4JText implements Fortnox4JFormat {
 
+	protected Logger	log = LoggerFactory.getLogger(Fortnox4JText.class);
+
 	// The FortnoxClient used for this report
 	protected Fortnox4JClient		fortnox4JClient;	
 	
 	// If result should be written to outfile
 	private File	outFile;	
 	
+	// Stream to write the result to if no outfile is set
+	protected OutputStream	outputStream;
+	
+	public static final int WRITE_BUFFER_SIZE = 64*1024;
+	
+	// Current printer and the header last written
+	private CSVPrinter		printer;
+	private Object[]		currentHeader;
+	private Object[]		formattedRow;
+	
+	// The output file if it's rotated, and if the header must be written to the new chunk
+	private Fortnox4JOutputFile	rotatingOutput;
+	private boolean			headerPending;
+	
+	// Columns added first in every row
+	private Object[]		prefixHeaders = new Object[0];
+	private Object[]		prefixValues = new Object[0];
+	
+	// Looked up by the first writeRow, not per row
+	private Fortnox4JMetrics.Recorder	rowMetrics;
+	
 	public static final int INVOICE_DATE_COL = 2;
 	public static final int DUE_DATE_COL = 3; 
 	
@@ -60,8 +92,145 @@ public class Fortnox4JText implements Fortnox4JFormat {
 	};
 	
 	
-	protected List<Object[]>	 invoiceReportLines;
+	/*
+	 * The column types of the reports. Columns with few distinct values are
+	 * dictionary encoded.
+	 */
+	private static final int[] compactInvoiceColumnTypes = new int[] {
+			Fortnox4JReportTable.STRING,	// InvoiceNo
+			Fortnox4JReportTable.DICT,		// InvoiceType
+			Fortnox4JReportTable.DATE,		// Inv Date
+			Fortnox4JReportTable.DATE,		// Due Date
+			Fortnox4JReportTable.DICT,		// Cust No
+			Fortnox4JReportTable.DICT,		// Cust Name
+			Fortnox4JReportTable.AMOUNT,	// Total
+			Fortnox4JReportTable.AMOUNT,	// Balance
+			Fortnox4JReportTable.DICT,		// Currency
+			Fortnox4JReportTable.DICT,		// TermsOfPayment
+			Fortnox4JReportTable.STRING,	// ExtRef1
+			Fortnox4JReportTable.STRING,	// ExtRef2
+			Fortnox4JReportTable.BOOLEAN	// Booked
+	};
+	
+	private static final int[] invoiceColumnTypes = new int[] {
+			Fortnox4JReportTable.STRING,	// InvoiceNo
+			Fortnox4JReportTable.DICT,		// InvoiceType
+			Fortnox4JReportTable.DATE,		// Inv Date
+			Fortnox4JReportTable.DATE,		// Due Date
+			Fortnox4JReportTable.DICT,		// Cust No
+			Fortnox4JReportTable.DICT,		// Cust Name
+			Fortnox4JReportTable.AMOUNT,	// Total
+			Fortnox4JReportTable.AMOUNT,	// Balance
+			Fortnox4JReportTable.DICT,		// Currency
+			Fortnox4JReportTable.DICT,		// TermsOfPayment
+			Fortnox4JReportTable.STRING,	// OrderReference
+			Fortnox4JReportTable.STRING,	// YourOrderNumber
+			Fortnox4JReportTable.STRING,	// ExtRef1
+			Fortnox4JReportTable.STRING,	// ExtRef2
+			Fortnox4JReportTable.BOOLEAN	// Booked
+	};
+	
+	private static final int[] customerColumnTypes = new int[] {
+			Fortnox4JReportTable.STRING,	// Cust No
+			Fortnox4JReportTable.STRING,	// Name
+			Fortnox4JReportTable.STRING,	// Address
+			Fortnox4JReportTable.STRING,	// Email
+			Fortnox4JReportTable.STRING,	// OrgNo
+			Fortnox4JReportTable.STRING,	// Phone
+			Fortnox4JReportTable.DICT		// TermsOfPayment
+	};
+	
+	// Max number of rows kept before they're written
+	private int		tableCapacity = Fortnox4JReportTable.DEFAULT_CAPACITY;
+	
+	// Dates formatted with the date format, per dictionary code
+	private Fortnox4JReportTable.FormatCache	formattedDates = new Fortnox4JReportTable.FormatCache();
+	
+	public String[] customerLineHeaders = new String[] {
+			"Cust No",
+			"Name",
+			"Address",
+			"Email",
+			"OrgNo",
+			"Phone",
+			"TermsOfPayment"
+	};
+
 
+	/**
+	 * Creates a header starting with the prefix columns, if any.
+	 */
+	private Object[] createHeader(String[] headers) {
+		
+		Object[] reportLine = new Object[prefixHeaders.length + headers.length];
+		for (int i=0; i<prefixHeaders.length; i++) {
+			reportLine[i] = prefixHeaders[i];
+		}
+		for (int i=0; i<headers.length; i++) {
+			reportLine[prefixHeaders.length + i] = headers[i];
+		}
+		
+		return reportLine;
+	}
+	
+	/**
+	 * Creates a report table with the prefix columns, if any, first.
+	 * 
+	 * @param header	The header including the prefix columns.
+	 * @param types		The column types excluding the prefix columns.
+	 */
+	private Fortnox4JReportTable createTable(Object[] header, int[] types) {
+		
+		int[] tableTypes = new int[prefixValues.length + types.length];
+		Arrays.fill(tableTypes, 0, prefixValues.length, Fortnox4JReportTable.DICT);
+		System.arraycopy(types, 0, tableTypes, prefixValues.length, types.length);
+		return new Fortnox4JReportTable(header, tableTypes, tableCapacity);
+	}
+	
+	/**
+	 * Adds a row to the table with the prefix columns, if any, filled in.
+	 * 
+	 * @return	The index of the row.
+	 */
+	private int addRow(Fortnox4JReportTable table) {
+		
+		int row = table.addRow();
+		for (int i=0; i<prefixValues.length; i++) {
+			table.setValue(row, i, prefixValues[i]);
+		}
+		return row;
+	}
+	
+	/**
+	 * Writes the rows of the table and clears it.
+	 */
+	private void flushTable(Fortnox4JReportTable table) throws Exception {
+		
+		if (table.getRowCount()>0) {
+			writeTable(table);
+			table.clear();
+		}
+	}
+	
+	/**
+	 * Adds a column first in every row, ie the org number when many clients
+	 * are reported together. Must be set before the report is started.
+	 * 
+	 * @param header	The column header
+	 * @param value		The column value.
+	 */
+	public void setPrefixColumn(String header, Object value) {
+		prefixHeaders = new Object[] { header };
+		prefixValues = new Object[] { value };
+	}
+	
+	/**
+	 * @return	The number of prefix columns.
+	 */
+	public int getPrefixColumnCount() {
+		return prefixHeaders.length;
+	}
+	
 	/**
 	 * Creates header for compact invoice report.
 	 * 
@@ -69,12 +238,7 @@ public class Fortnox4JText implements Fortnox4JFormat {
 	 */
 	public Object[] getCompactInvoiceReportHeader() {
 		
-		Object[] reportLine = new Object[compactInvoiceLineHeaders.length];
-		for (int i=0; i<compactInvoiceLineHeaders.length; i++) {
-			reportLine[i] = compactInvoiceLineHeaders[i];
-		}
-		
-		return reportLine;
+		return createHeader(compactInvoiceLineHeaders);
 	}
 	
 	/**
@@ -84,12 +248,18 @@ public class Fortnox4JText implements Fortnox4JFormat {
 	 */
 	public Object[] getInvoiceReportHeader() {
 		
-		Object[] reportLine = new Object[invoiceLineHeaders.length];
-		for (int i=0; i<invoiceLineHeaders.length; i++) {
-			reportLine[i] = invoiceLineHeaders[i];
-		}
+		return createHeader(invoiceLineHeaders);
+	}
+	
+
+	/**
+	 * Creates header for customer report.
+	 * 
+	 * @return		The customer report header.
+	 */
+	public Object[] getCustomerReportHeader() {
 		
-		return reportLine;
+		return createHeader(customerLineHeaders);
 	}
 	
 
@@ -104,6 +274,20 @@ public class Fortnox4JText implements Fortnox4JFormat {
 
 	public void setDateFormat(DateFormat dateFormat) {
 		this.dateFormat = dateFormat;
+		formattedDates.reset();
+	}
+	
+	public int getTableCapacity() {
+		return tableCapacity;
+	}
+
+	/**
+	 * Sets the max number of rows kept in memory before they're written.
+	 * 
+	 * @param tableCapacity		Values less than 1 are treated as 1.
+	 */
+	public void setTableCapacity(int tableCapacity) {
+		this.tableCapacity = Math.max(1, tableCapacity);
 	}
 	
 	/**
@@ -114,6 +298,31 @@ public class Fortnox4JText implements Fortnox4JFormat {
 		outFile = of;
 	}
 
+	public File getOutFile() {
+		return outFile;
+	}
+
+	/**
+	 * Sets the stream to write to when no out file is set. 
+	 * Defaults to System.out. The stream is flushed but not closed.
+	 * If the stream is a rotated {@link Fortnox4JOutputFile}, it's rotated
+	 * between rows.
+	 */
+	@Override
+	public void setOutputStream(OutputStream os) {
+		outputStream = os;
+	}
+	
+	/**
+	 * @return	The output stream if it's rotated into chunks, otherwise null.
+	 */
+	protected Fortnox4JOutputFile getRotatingOutput() {
+		if (outFile==null && outputStream instanceof Fortnox4JOutputFile && ((Fortnox4JOutputFile)outputStream).isRotating()) {
+			return (Fortnox4JOutputFile)outputStream;
+		}
+		return null;
+	}
+
 	/**
 	 * Return current Fortnox4JClient
 	 * 
@@ -131,7 +340,9 @@ public class Fortnox4JText implements Fortnox4JFormat {
 	}
 
 	/**
-	 * Create an invoice list
+	 * Create an invoice list. The full invoices are fetched concurrently, 
+	 * see {@link Fortnox4JClient#setParallelism(int)}. An invoice that can't be
+	 * fetched is reported without the enriched columns.
 	 * 
 	 * @param 	invoices	The invoices to create the list
 	 */
@@ -141,48 +352,65 @@ public class Fortnox4JText implements Fortnox4JFormat {
 		if (invoices==null || invoices.getInvoiceSubset()==null)
 			return 0;
 
-		if (invoiceReportLines==null) {
-			invoiceReportLines = new ArrayList<Object[]>();
-		}
-
-		// Add header
 		Object[] header = getInvoiceReportHeader();
-		invoiceReportLines.add(header);
+		beginReport(header);
 		
-		int count = 0, col = 0;
-		Object[] reportLine;
+		final int[] failed = new int[1];
+		final Fortnox4JReportTable table = createTable(header, invoiceColumnTypes);
 		List<InvoiceSubset> isList = invoices.getInvoiceSubset();
-		Invoice invoice;
-		for (InvoiceSubset is : isList) {
-			col = 0;
-			invoice = fortnox4JClient.getClient().getInvoice(is.getDocumentNumber());
-			reportLine = new Object[invoiceLineHeaders.length];
-			
-			reportLine[col++] = is.getDocumentNumber();
-			reportLine[col++] = is.getInvoiceType();
-			reportLine[col++] = is.getInvoiceDate();
-			reportLine[col++] = is.getDueDate();
-			reportLine[col++] = is.getCustomerNumber();
-			reportLine[col++] = is.getCustomerName();
-			reportLine[col++] = new Double(is.getTotal());
-			reportLine[col++] = new Double(is.getBalance());
-			reportLine[col++] = is.getCurrency();
-			reportLine[col++] = is.getTermsOfPayment();
-			reportLine[col++] = invoice.getOrderReference();
-			reportLine[col++] = invoice.getYourOrderNumber();
-			reportLine[col++] = is.getExternalInvoiceReference1();
-			reportLine[col++] = is.getExternalInvoiceReference2();
-			reportLine[col++] = new Boolean(is.isBooked());
-			
-			
-			count++;
-			invoiceReportLines.add(reportLine);
+		Fortnox4JParallelFetcher<InvoiceSubset, Invoice> fetcher = 
+				new Fortnox4JParallelFetcher<InvoiceSubset, Invoice>(fortnox4JClient.getParallelism());
+		
+		int count = fetcher.fetch(isList, 
+				is -> fortnox4JClient.getInvoice(is), 
+				(is, invoice, error) -> {
+					if (error!=null) {
+						log.warn("Can't enrich invoice {}: {}", is.getDocumentNumber(), error.getMessage());
+						failed[0]++;
+					}
+					addInvoiceRow(table, is, invoice);
+					if (table.isFull())
+						flushTable(table);
+				});
+		flushTable(table);
+		
+		if (failed[0]>0) {
+			log.warn("{} of {} invoices could not be enriched.", failed[0], count);
 		}
-
 		
 		return count;
 	}
 	
+	/**
+	 * Adds an invoice report row
+	 * 
+	 * @param table		The table to add the row to.
+	 * @param is		The invoice subset
+	 * @param invoice	The full invoice. If null, the enriched columns are left empty.
+	 */
+	private void addInvoiceRow(Fortnox4JReportTable table, InvoiceSubset is, Invoice invoice) {
+		
+		int row = addRow(table);
+		int col = prefixValues.length;
+		
+		table.setString(row, col++, is.getDocumentNumber());
+		table.setString(row, col++, is.getInvoiceType());
+		table.setDate(row, col++, is.getInvoiceDate());
+		table.setDate(row, col++, is.getDueDate());
+		table.setString(row, col++, is.getCustomerNumber());
+		table.setString(row, col++, is.getCustomerName());
+		table.setDouble(row, col++, is.getTotal());
+		table.setDouble(row, col++, is.getBalance());
+		table.setString(row, col++, is.getCurrency());
+		table.setString(row, col++, is.getTermsOfPayment());
+		table.setString(row, col++, invoice!=null ? invoice.getOrderReference() : null);
+		table.setString(row, col++, invoice!=null ? invoice.getYourOrderNumber() : null);
+		table.setString(row, col++, is.getExternalInvoiceReference1());
+		table.setString(row, col++, is.getExternalInvoiceReference2());
+		table.setBoolean(row, col++, is.isBooked());
+		
+	}
+	
 	
 	/**
 	 * Create a compact invoice list
@@ -190,90 +418,281 @@ public class Fortnox4JText implements Fortnox4JFormat {
 	 * @param 	invoices	The invoices to create the list
 	 */
 	@Override
-	public int reportCustomerInvoicesCompact(Invoices invoices) {
+	public int reportCustomerInvoicesCompact(Invoices invoices) throws Exception {
 		
 		if (invoices==null || invoices.getInvoiceSubset()==null)
 			return 0;
 
-		if (invoiceReportLines==null) {
-			invoiceReportLines = new ArrayList<Object[]>();
-		}
-
-		// Add header
 		Object[] header = getCompactInvoiceReportHeader();
-		invoiceReportLines.add(header);
+		beginReport(header);
 		
-		int count = 0, col = 0;
-		Object[] reportLine;
+		int count = 0, col = 0, row = 0;
+		Fortnox4JReportTable table = createTable(header, compactInvoiceColumnTypes);
 		List<InvoiceSubset> isList = invoices.getInvoiceSubset();
 		for (InvoiceSubset is : isList) {
-			col = 0;
-			reportLine = new Object[compactInvoiceLineHeaders.length];
-			
-			reportLine[col++] = is.getDocumentNumber();
-			reportLine[col++] = is.getInvoiceType();
-			reportLine[col++] = is.getInvoiceDate();
-			reportLine[col++] = is.getDueDate();
-			reportLine[col++] = is.getCustomerNumber();
-			reportLine[col++] = is.getCustomerName();
-			reportLine[col++] = new Double(is.getTotal());
-			reportLine[col++] = new Double(is.getBalance());
-			reportLine[col++] = is.getCurrency();
-			reportLine[col++] = is.getTermsOfPayment();
-			reportLine[col++] = is.getExternalInvoiceReference1();
-			reportLine[col++] = is.getExternalInvoiceReference2();
-			reportLine[col++] = new Boolean(is.isBooked());
+			row = addRow(table);
+			col = prefixValues.length;
 			
+			table.setString(row, col++, is.getDocumentNumber());
+			table.setString(row, col++, is.getInvoiceType());
+			table.setDate(row, col++, is.getInvoiceDate());
+			table.setDate(row, col++, is.getDueDate());
+			table.setString(row, col++, is.getCustomerNumber());
+			table.setString(row, col++, is.getCustomerName());
+			table.setDouble(row, col++, is.getTotal());
+			table.setDouble(row, col++, is.getBalance());
+			table.setString(row, col++, is.getCurrency());
+			table.setString(row, col++, is.getTermsOfPayment());
+			table.setString(row, col++, is.getExternalInvoiceReference1());
+			table.setString(row, col++, is.getExternalInvoiceReference2());
+			table.setBoolean(row, col++, is.isBooked());
 			
 			count++;
-			invoiceReportLines.add(reportLine);
+			if (table.isFull())
+				flushTable(table);
 		}
-
+		flushTable(table);
 		
 		return count;
 	}
 
+	/**
+	 * Create a customer list. The customer details are fetched concurrently, 
+	 * see {@link Fortnox4JClient#setParallelism(int)}.
+	 * 
+	 * @param	customers	The customers to create the list
+	 */
 	@Override
-	public List<StringBuffer> writeResult() throws Exception {
+	public int reportCustomers(Customers customers) throws Exception {
 		
-		List<StringBuffer> result = new ArrayList<StringBuffer>();
-		StringBuffer buf = new StringBuffer();
-		result.add(buf);
+		if (customers==null || customers.getCustomerSubset()==null)
+			return 0;
 		
-		List<Object[]> rows = invoiceReportLines;
+		Object[] header = getCustomerReportHeader();
+		beginReport(header);
 		
+		final int[] count = new int[1];
+		final Fortnox4JReportTable table = createTable(header, customerColumnTypes);
+		fortnox4JClient.fetchCustomers(customers.getCustomerSubset(), (cs, customer, error) -> {
+			if (error!=null || customer==null) {
+				log.warn("Can't fetch customer {}: {}", cs.getCustomerNumber(), error!=null ? error.getMessage() : "Not found");
+				return;
+			}
+			addCustomerRow(table, customer);
+			count[0]++;
+			if (table.isFull())
+				flushTable(table);
+		});
+		flushTable(table);
 		
-		CSVPrinter printer = new CSVPrinter(buf, CSVFormat.EXCEL);
-		int rowCount = 0;
-		for (Object[] r : rows) {
-			// Convert date
-			if (dateFormat!=null && rowCount>0) {
-				if (r[INVOICE_DATE_COL]!=null && r[DUE_DATE_COL] instanceof Date) {
-					r[INVOICE_DATE_COL] = dateFormat.format((Date)r[INVOICE_DATE_COL]);
-				}
-				if (r[DUE_DATE_COL]!=null && r[DUE_DATE_COL] instanceof Date) {
-					r[DUE_DATE_COL] = dateFormat.format((Date)r[DUE_DATE_COL]);
+		return count[0];
+	}
+	
+	/**
+	 * Adds a customer report row
+	 * 
+	 * @param table		The table to add the row to.
+	 * @param customer	The customer
+	 */
+	private void addCustomerRow(Fortnox4JReportTable table, Customer customer) {
+		
+		int row = addRow(table);
+		int col = prefixValues.length;
+		
+		table.setString(row, col++, customer.getCustomerNumber());
+		table.setString(row, col++, customer.getName());
+		if (customer.getDeliveryAddress1()!=null && customer.getDeliveryAddress1().trim().length()>0)
+			table.setString(row, col++, customer.getDeliveryAddress1());
+		else
+			table.setString(row, col++, customer.getAddress1());
+		table.setString(row, col++, customer.getEmail());
+		table.setString(row, col++, customer.getOrganisationNumber());
+		table.setString(row, col++, customer.getPhone1());
+		table.setString(row, col++, customer.getTermsOfPayment());
+		
+	}
+
+	/**
+	 * Starts the report. The header is written unless it's the same as
+	 * the header last written.
+	 */
+	@Override
+	public void beginReport(Object[] header) throws Exception {
+		
+		if (printer==null) {
+			OutputStream os;
+			if (outFile!=null) {
+				if (!outFile.getAbsolutePath().toLowerCase().endsWith(".csv")) {
+					outFile = new File(outFile.getAbsolutePath() + ".csv");
 				}
+				os = new FileOutputStream(outFile);
+			} else {
+				os = outputStream!=null ? outputStream : System.out;
 			}
-			printer.printRecord(r);
-			rowCount++;
+			os = Fortnox4JMetrics.global().countBytes(os);
+			rotatingOutput = getRotatingOutput();
+			headerPending = false;
+			printer = new CSVPrinter(
+					new BufferedWriter(new OutputStreamWriter(os, Charset.defaultCharset()), WRITE_BUFFER_SIZE), 
+					CSVFormat.EXCEL);
 		}
 		
-		printer.close();
+		if (currentHeader==null || !Arrays.equals(currentHeader, header)) {
+			printer.printRecord(header);
+			currentHeader = header;
+			headerPending = false;
+		}
 		
-		if (outFile!=null) {
-			
-			if (!outFile.getAbsolutePath().toLowerCase().endsWith(".csv")) {
-				outFile = new File(outFile.getAbsolutePath() + ".csv");
+	}
+	
+	/**
+	 * Writes the header to a new chunk before its first row.
+	 */
+	private void beginRow() throws Exception {
+		if (headerPending) {
+			printer.printRecord(currentHeader);
+			headerPending = false;
+		}
+	}
+	
+	/**
+	 * Rotates the output after a row if the chunk is full.
+	 */
+	private void endRow() throws Exception {
+		if (rotatingOutput!=null && rotatingOutput.endRow()) {
+			printer.flush();
+			rotatingOutput.rotate();
+			headerPending = true;
+		}
+	}
+
+	/**
+	 * Writes a row. Dates are formatted using the date format.
+	 */
+	@Override
+	public void writeRow(Object[] row) throws Exception {
+		
+		if (printer==null) {
+			throw new IllegalStateException("beginReport must be called before writeRow");
+		}
+		
+		long start = System.nanoTime();
+		
+		// Convert dates without touching the caller's row
+		if (formattedRow==null || formattedRow.length!=row.length) {
+			formattedRow = new Object[row.length];
+		}
+		for (int i=0; i<row.length; i++) {
+			if (dateFormat!=null && row[i] instanceof Date) {
+				formattedRow[i] = dateFormat.format((Date)row[i]);
+			} else {
+				formattedRow[i] = row[i];
 			}
-			
-			PrintWriter fp = new PrintWriter(outFile);
-			for (StringBuffer s : result) {
-				fp.append(s.toString());
-				fp.append("\n");
+		}
+		beginRow();
+		printer.printRecord(formattedRow);
+		endRow();
+		
+		if (rowMetrics==null) {
+			rowMetrics = Fortnox4JMetrics.global().recorder(Fortnox4JMetrics.FORMAT, "csv.writeRow", Fortnox4JMetrics.ROWS);
+		}
+		rowMetrics.record(System.nanoTime() - start, 1);
+		
+	}
+
+	/**
+	 * Writes the rows of the table. Dates are formatted once per distinct date.
+	 */
+	@Override
+	public void writeTable(Fortnox4JReportTable table) throws Exception {
+		
+		if (printer==null) {
+			throw new IllegalStateException("beginReport must be called before writeTable");
+		}
+		
+		long start = System.nanoTime();
+		
+		int rows = table.getRowCount();
+		int columns = table.getColumnCount();
+		for (int r=0; r<rows; r++) {
+			beginRow();
+			for (int c=0; c<columns; c++) {
+				switch(table.getType(c)) {
+					case Fortnox4JReportTable.STRING:
+						printer.print(table.getString(r, c));
+						break;
+					case Fortnox4JReportTable.DICT:
+						printer.print(table.getDictionaryValue(c, table.getCode(r, c)));
+						break;
+					case Fortnox4JReportTable.DATE:
+						printer.print(formatDate(table, c, table.getCode(r, c)));
+						break;
+					case Fortnox4JReportTable.DOUBLE:
+					case Fortnox4JReportTable.AMOUNT:
+						printer.print(Double.toString(table.getDouble(r, c)));
+						break;
+					case Fortnox4JReportTable.LONG:
+						printer.print(Long.toString(table.getLong(r, c)));
+						break;
+					case Fortnox4JReportTable.BOOLEAN:
+						printer.print(table.getBoolean(r, c) ? "true" : "false");
+						break;
+				}
 			}
-			fp.close();
-			result.clear();
+			printer.println();
+			endRow();
+		}
+		
+		Fortnox4JMetrics.global().record(Fortnox4JMetrics.FORMAT, "csv.writeTable", System.nanoTime() - start);
+		Fortnox4JMetrics.global().count(Fortnox4JMetrics.ROWS, rows);
+		
+	}
+	
+	/**
+	 * Formats a date of a date column using the date format.
+	 * 
+	 * @return	The formatted date or null if the date is null.
+	 */
+	private String formatDate(Fortnox4JReportTable table, int col, int code) {
+		
+		if (code==Fortnox4JReportTable.NULL_CODE)
+			return null;
+		String result = formattedDates.get(table, col, code);
+		if (result==null) {
+			Object date = table.getDictionaryValue(col, code);
+			result = dateFormat!=null ? dateFormat.format((Date)date) : date.toString();
+			formattedDates.put(col, code, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Flushes the report. The out file is closed, the output stream is only flushed.
+	 */
+	@Override
+	public void endReport() throws Exception {
+		
+		if (printer==null)
+			return;
+		
+		if (outFile!=null) {
+			printer.close();
+		} else {
+			printer.flush();
+		}
+		printer = null;
+		currentHeader = null;
+		rotatingOutput = null;
+		
+	}
+	
+	@Override
+	public List<StringBuffer> writeResult() throws Exception {
+		
+		endReport();
+		
+		List<StringBuffer> result = new ArrayList<StringBuffer>();
+		if (outFile!=null && outFile.exists()) {
 			result.add(new StringBuffer(outFile.getAbsolutePath()));
 		}
 		
@@ -1,9 +1,18 @@
 package org.notima.api.fortnox4j.cli;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 /**
@@ -27,22 +36,33 @@ import java.util.Date;
  *
  */
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.cli.CommandLine;
-import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.MissingOptionException;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 import org.notima.api.fortnox.FortnoxClient3;
 import org.notima.api.fortnox.FortnoxException;
 import org.notima.api.fortnox.FortnoxUtil;
 import org.notima.api.fortnox.clients.FortnoxClientInfo;
 import org.notima.api.fortnox.clients.FortnoxClientList;
 import org.notima.api.fortnox.entities3.CompanySetting;
+import org.notima.api.fortnox.entities3.Customers;
 import org.notima.api.fortnox.entities3.FinancialYearSubset;
+import org.notima.api.fortnox.entities3.InvoiceSubset;
 import org.notima.api.fortnox.entities3.Invoices;
 
 /**
@@ -62,29 +82,65 @@ public class Fortnox4Jcli {
 	public static final String CMD_COPY_UNPAID_AND_UNBOOKED_INVOICES = "copyUnpaidAndUnbookedInvoices";
 	public static final String CMD_GET_LOCKED_PERIOD = "getLockedPeriod";
 	public static final String CMD_GET_SIE4 = "getSie4";
+	public static final String CMD_ARCHIVE_SIE4 = "archiveSie4";
+	public static final String CMD_SIE_BALANCE = "sieBalance";
+	public static final String CMD_SIE_PERIOD_TOTALS = "siePeriodTotals";
+	public static final String CMD_SIE_TRIAL_BALANCE = "sieTrialBalance";
+	public static final String CMD_EXPORT_INVOICES = "exportInvoices";
 	
+	public static final int DEFAULT_CLIENT_PARALLELISM = 8;
+	public static final long DEFAULT_LEDGER_CACHE_SIZE = 256L * 1024 * 1024;
+	
+	/**
+	 * A parsed SIE file and the state of the file when it was parsed.
+	 */
+	private static class CachedLedger {
+		long				lastModified;
+		long				length;
+		long				size;
+		Fortnox4JLedger		ledger;
+	}
+	
+	// Clients and client lists are kept between commands in batch and server mode
+	private Map<String, Fortnox4JClient>		clientCache = new ConcurrentHashMap<String, Fortnox4JClient>();
+	private Map<String, FortnoxClientList>	clientListCache = new ConcurrentHashMap<String, FortnoxClientList>();
+	// Ledgers by file, least recently used first
+	private LinkedHashMap<String, CachedLedger>	ledgerCache = new LinkedHashMap<String, CachedLedger>(16, 0.75f, true);
+	private long		ledgerCacheBytes;
+	private long		ledgerCacheSize = DEFAULT_LEDGER_CACHE_SIZE;
+	
+	// If false, there's no user to answer questions on System.in
+	private boolean		interactive = true;
+	
+	public boolean isInteractive() {
+		return interactive;
+	}
+
+	public void setInteractive(boolean interactive) {
+		this.interactive = interactive;
+	}
+
 	/**
 	 * Parse auth details from command line.
 	 * 
 	 * @param cmd
 	 * @return	An auth object with clientSecret and accessToken.
+	 * @throws MissingOptionException	If secret or access token is missing.
 	 */
-	private FortnoxClientInfo parseAuthDetails(CommandLine cmd) {
+	private FortnoxClientInfo parseAuthDetails(CommandLine cmd) throws MissingOptionException {
 		
 		FortnoxClientInfo auth = new FortnoxClientInfo();
 
 		if (cmd.hasOption("s")) {
 			auth.setClientSecret(cmd.getOptionValue("s"));
 		} else {
-			System.out.println("Client Secret must be supplied. Use option s.");
-			System.exit(1);
+			throw new MissingOptionException("Client Secret must be supplied. Use option s.");
 		}
 		
 		if (cmd.hasOption("t")) {
 			auth.setAccessToken(cmd.getOptionValue("t"));
 		} else {
-			System.out.println("Access Token must be supplied. Use option t.");
-			System.exit(1);
+			throw new MissingOptionException("Access Token must be supplied. Use option t.");
 		}
 
 		return auth;
@@ -96,8 +152,9 @@ public class Fortnox4Jcli {
 	 * 
 	 * @param cmd
 	 * @return	An auth object with clientSecret and accessToken.
+	 * @throws MissingOptionException	If secret or access token is missing.
 	 */
-	private FortnoxClientInfo parseDestAuthDetails(CommandLine cmd) {
+	private FortnoxClientInfo parseDestAuthDetails(CommandLine cmd) throws MissingOptionException {
 		
 		FortnoxClientInfo auth = new FortnoxClientInfo();
 
@@ -107,27 +164,189 @@ public class Fortnox4Jcli {
 			if (cmd.hasOption("s")) {
 				auth.setClientSecret(cmd.getOptionValue("s"));
 			} else {
-				System.out.println("Client secret must be supplied. Use option s.");
-				System.exit(1);
+				throw new MissingOptionException("Client secret must be supplied. Use option s.");
 			}
 		}
 		
 		if (cmd.hasOption("destaccesstoken")) {
 			auth.setAccessToken(cmd.getOptionValue("destaccesstoken"));
 		} else {
-			System.out.println("Destination Access Token must be supplied. Use option -destaccesstoken.");
-			System.exit(1);
+			throw new MissingOptionException("Destination Access Token must be supplied. Use option -destaccesstoken.");
 		}
 
 		return auth;
 		
 	}
 	
+	/**
+	 * Returns a client for given client info. The client is reused by later
+	 * commands using the same credentials.
+	 * 
+	 * @param ci	The client info
+	 * @return	A Fortnox4JClient
+	 */
+	public Fortnox4JClient getFortnox4JClient(FortnoxClientInfo ci) {
+		
+		String key = ci.getAccessToken() + "|" + ci.getClientSecret();
+		Fortnox4JClient cl = clientCache.get(key);
+		if (cl==null) {
+			cl = new Fortnox4JClient(ci);
+			Fortnox4JClient existing = clientCache.putIfAbsent(key, cl);
+			if (existing!=null)
+				cl = existing;
+		}
+		return cl;
+		
+	}
 	
+	/**
+	 * Returns a client for one command with the metadata cache set up
+	 * according to the command options. The client shares the connection and
+	 * rate limiter of the reused client, but has its own settings, so commands
+	 * running concurrently in server mode don't change each other's settings.
+	 */
+	private Fortnox4JClient getFortnox4JClient(FortnoxClientInfo ci, CommandLine cmd) throws Exception {
+		
+		Fortnox4JClient cl = new Fortnox4JClient(getFortnox4JClient(ci));
+		
+		long ttl = Fortnox4JMetadataCache.DEFAULT_TTL;
+		if (cmd.hasOption("metadatattl")) {
+			ttl = Long.parseLong(cmd.getOptionValue("metadatattl"))*60*1000;
+		}
+		if (ttl>0) {
+			File baseDir = cmd.hasOption("cachedir") ? new File(cmd.getOptionValue("cachedir")) : Fortnox4JMetadataCache.getDefaultBaseDir();
+			cl.enableMetadataCache(baseDir, ttl);
+		} else {
+			cl.disableMetadataCache();
+		}
+		if (cmd.hasOption("refresh")) {
+			cl.refreshMetadata();
+		}
+		return cl;
+		
+	}
 	
-	public static void main(String[] args) {
-
-		Fortnox4Jcli cli = new Fortnox4Jcli();
+	/**
+	 * Enables the invoice cache of a client according to the command options.
+	 * With -refresh, all cached invoices are fetched again.
+	 */
+	private static void enableInvoiceCache(Fortnox4JClient cl, CommandLine cmd, File cacheDir, long cacheSize) throws Exception {
+		
+		long maxAge = Fortnox4JInvoiceCache.DEFAULT_MAX_AGE;
+		if (cmd.hasOption("invoicettl")) {
+			maxAge = Long.parseLong(cmd.getOptionValue("invoicettl"))*60*1000;
+		}
+		cl.enableInvoiceCache(cacheDir, cacheSize, maxAge);
+		if (cmd.hasOption("refresh")) {
+			cl.getInvoiceCache().clear();
+		}
+		
+	}
+	
+	/**
+	 * Reads a client file. The file is only read once.
+	 * 
+	 * @param fortnoxClientFile		The client file.
+	 * @return	The client list
+	 * @throws Exception	If the file can't be read.
+	 */
+	public FortnoxClientList getFortnoxClientList(String fortnoxClientFile) throws Exception {
+		
+		FortnoxClientList clist = clientListCache.get(fortnoxClientFile);
+		if (clist==null) {
+			clist = FortnoxUtil.readFortnoxClientListFromFile(fortnoxClientFile);
+			if (clist!=null) {
+				clientListCache.put(fortnoxClientFile, clist);
+			}
+		}
+		return clist;
+		
+	}
+	
+	/**
+	 * Returns the ledger of a SIE file. The ledger is reused by later commands
+	 * as long as the file isn't modified. The least recently used ledgers are
+	 * evicted when the cached ledgers use more than the ledger cache size.
+	 * 
+	 * @param sieFile		The SIE file.
+	 * @return	The ledger
+	 * @throws IOException	If the file can't be read.
+	 */
+	public Fortnox4JLedger getLedger(File sieFile) throws IOException {
+		
+		String key = sieFile.getAbsolutePath();
+		long lastModified = sieFile.lastModified();
+		long length = sieFile.length();
+		synchronized(ledgerCache) {
+			CachedLedger cached = ledgerCache.get(key);
+			if (cached!=null && cached.lastModified==lastModified && cached.length==length) {
+				return cached.ledger;
+			}
+		}
+		
+		// Parsed outside the lock, other commands don't wait for it
+		CachedLedger cached = new CachedLedger();
+		cached.lastModified = lastModified;
+		cached.length = length;
+		cached.ledger = Fortnox4JLedger.load(sieFile);
+		cached.size = cached.ledger.getMemorySize();
+		
+		synchronized(ledgerCache) {
+			CachedLedger stale = ledgerCache.remove(key);
+			if (stale!=null) {
+				ledgerCacheBytes -= stale.size;
+			}
+			if (cached.size<=ledgerCacheSize) {
+				ledgerCache.put(key, cached);
+				ledgerCacheBytes += cached.size;
+			}
+			Iterator<CachedLedger> it = ledgerCache.values().iterator();
+			while (ledgerCacheBytes>ledgerCacheSize && it.hasNext()) {
+				ledgerCacheBytes -= it.next().size;
+				it.remove();
+			}
+		}
+		return cached.ledger;
+		
+	}
+	
+	public long getLedgerCacheSize() {
+		return ledgerCacheSize;
+	}
+	
+	/**
+	 * @param ledgerCacheSize	Max memory used by cached ledgers, in bytes.
+	 */
+	public void setLedgerCacheSize(long ledgerCacheSize) {
+		this.ledgerCacheSize = ledgerCacheSize;
+	}
+	
+	/**
+	 * Parses an account or an account range, ie 1910 or 3000-3999.
+	 * 
+	 * @return	The first and last account. All accounts if null.
+	 */
+	private static int[] parseAccountRange(String account) {
+		
+		if (account==null)
+			return new int[] {Integer.MIN_VALUE, Integer.MAX_VALUE};
+		int sep = account.indexOf('-');
+		if (sep > 0) {
+			return new int[] {
+					Integer.parseInt(account.substring(0, sep).trim()), 
+					Integer.parseInt(account.substring(sep + 1).trim())};
+		}
+		int a = Integer.parseInt(account.trim());
+		return new int[] {a, a};
+		
+	}
+	
+	/**
+	 * Creates the command line options
+	 * 
+	 * @return	The options
+	 */
+	public static Options createOptions() {
 		
 		Options opts = new Options();
 		opts.addOption("f", true, "Client file. A file containing credentials");
@@ -141,37 +360,300 @@ public class Fortnox4Jcli {
 				+ CMD_COPY_INVOICES + ", "
 				+ CMD_COPY_UNPAID_AND_UNBOOKED_INVOICES + ", "
 				+ CMD_GET_LOCKED_PERIOD + ", "
-				+ CMD_GET_SIE4);
+				+ CMD_GET_SIE4 + ", "
+				+ CMD_ARCHIVE_SIE4 + ", "
+				+ CMD_SIE_BALANCE + ", "
+				+ CMD_SIE_PERIOD_TOTALS + ", "
+				+ CMD_SIE_TRIAL_BALANCE + ", "
+				+ CMD_EXPORT_INVOICES);
 		opts.addOption("s", true, "Client Secret. This is the integrator's secret word.");
 		opts.addOption("a", "apicode", true, "The API-code recieved from the Fortnox client when adding the integration. Must be combined with -s");
 		opts.addOption("t", "accesstoken", true, "The access token to the Fortnox client");
 		opts.addOption("destsecret", true, "Destination secret in transfer operations if different from source secret");
 		opts.addOption("destaccesstoken", true, "Destination access token in transfer operations");
-		opts.addOption("i", "invoiceno", true, "Get invoice with No");
-		opts.addOption("o", "outfile", true, "Redirect output to file");
+		opts.addOption("i", "invoiceno", true, "Get invoice with No. With " + CMD_EXPORT_INVOICES + " a list of invoice numbers and ranges, ie 1001,1005-1010");
+		opts.addOption("invoicefile", true, "File with the invoice numbers for " + CMD_EXPORT_INVOICES + ", one number or range per line. Use - to read from stdin.");
+		opts.addOption("xmllines", false, "With " + CMD_EXPORT_INVOICES + ", write one invoice per line instead of one XML document.");
+		opts.addOption("o", "outfile", true, "Redirect output to file. Compressed if the name ends with .gz or .zst");
+		opts.addOption("compress", true, "Compress the out file: gzip, zstd or none. Default by the extension of the out file.");
+		opts.addOption("rotaterows", true, "Rotate the out file into numbered chunks of at most given number of rows. Each chunk is readable on its own.");
+		opts.addOption("rotatesize", true, "Rotate the out file into numbered chunks of about given size in MB. The size is counted after compression, a chunk can be larger by the compressor's buffer.");
 		opts.addOption("d", "fromdate", true, "Set from date");
 		opts.addOption("untildate", true, "Set until date");
 		opts.addOption("enrich", "Try to enrich information as much as possible, ie long format");
-		opts.addOption("format", true, "Select output format");
+		opts.addOption("format", true, "Select output format: csv, xlsx, json (JSON Lines), jsonarray or parquet");
+		opts.addOption("cachedir", true, "Directory for the local caches. Enables caching of full invoices with -enrich.");
+		opts.addOption("metadatattl", true, "Minutes that company settings and financial years are cached in the cache directory (default " + Fortnox4JMetadataCache.getDefaultBaseDir() + "). 0 disables the cache. Default " + (Fortnox4JMetadataCache.DEFAULT_TTL/60000));
+		opts.addOption("refresh", false, "Fetch company settings, financial years and cached invoices from Fortnox instead of the cache.");
+		opts.addOption("invoicettl", true, "Minutes that full invoices are kept in the invoice cache. Fields that aren't in the invoice list, ie OrderReference, are only refreshed when the cached invoice is older. Default " + (Fortnox4JInvoiceCache.DEFAULT_MAX_AGE/60000));
+		opts.addOption("cachesize", true, "Max size of the local invoice cache in MB. Default " + (Fortnox4JInvoiceCache.DEFAULT_MAX_SIZE/(1024*1024)));
+		opts.addOption("parallelism", true, "Max number of concurrent requests when fetching details, ie with -enrich, or per stage when copying. Default " + Fortnox4JParallelFetcher.DEFAULT_PARALLELISM);
+		opts.addOption("datewindow", true, "Months per date window when listing invoices by date range. Up to " + Fortnox4JClient.LIST_WINDOW_PARALLELISM + " windows are fetched concurrently. 0 lists the range in one request. Default " + Fortnox4JClient.DEFAULT_DATE_WINDOW_MONTHS);
+		opts.addOption("archivedir", true, "Directory for " + CMD_ARCHIVE_SIE4 + ". All financial years are archived unless limited with -fromdate / -untildate.");
+		opts.addOption("siefile", true, "SIE4 file (optionally gzipped) for the sie commands.");
+		opts.addOption("account", true, "Account or account range, ie 1910 or 3000-3999, for the sie commands.");
+		opts.addOption("period", true, "Last period included (yyyyMM) for " + CMD_SIE_BALANCE + " and " + CMD_SIE_TRIAL_BALANCE + ". Default all periods.");
+		opts.addOption("aging", false, "Add an aging summary to invoice lists: balance per currency and overdue bucket, and the customers with the largest balance per currency.");
+		opts.addOption("agingdate", true, "Reference date for -aging. Default today.");
+		opts.addOption("agingbuckets", true, "Last day overdue of each aging bucket. Default 30,60,90");
+		opts.addOption("top", true, "Number of customers per currency in the aging summary. Default " + Fortnox4JAging.DEFAULT_TOP);
+		opts.addOption("summaryonly", false, "With -aging, write only the summary and not the invoice rows.");
+		opts.addOption("journal", true, "Journal file for copy commands. Default copy-<source orgno>-<dest orgno>.journal");
+		opts.addOption("resume", false, "Skip invoices already copied according to the journal.");
+		opts.addOption("y", "yes", false, "Answer yes to confirmations. Required by copy commands in batch and server mode.");
+		opts.addOption("httpconnections", true, "Max idle HTTP connections kept alive for reuse. Set once per process. Default " + Fortnox4JHttpTransport.DEFAULT_MAX_CONNECTIONS);
+		opts.addOption("stats", false, "Print API latency, rate limit waits, format times and throughput when the command is done.");
+		opts.addOption("statsfile", true, "Write the stats of the command to given file, as JSON if the name ends with .json, otherwise in Prometheus text format.");
+		opts.addOption("batch", true, "Batch mode. Run the commands in given script file, one command per line. Use - to read commands from stdin.");
+		opts.addOption("listen", true, "Server mode. Listen for commands on given port on localhost, one command per line. Each connection must first send auth <secret>.");
+		opts.addOption("listensecret", true, "File with the secret for server mode. Created with a random secret, readable only by the owner, if it doesn't exist. Default " + Fortnox4JServer.getDefaultSecretFile());
+		opts.addOption("delta", true, "Incremental export with " + CMD_LIST_ALL_CUSTOMER_INVOICES + ". Only invoices that are new or changed since the last run are reported. The state is kept per client in given directory and only advanced when the output is completely written.");
+		opts.addOption("allClients", false, "Run the command for every client in the client file concurrently. Reports get the org number as first column, the lines of other commands are prefixed with it.");
+		opts.addOption("splitOutput", false, "With -allClients, write one file per client named after the out file and the org number.");
+		opts.addOption("clientparallelism", true, "With -allClients, max number of clients run concurrently. Default " + DEFAULT_CLIENT_PARALLELISM);
+		
+		return opts;
 		
-		CommandLineParser parser = new DefaultParser();
+	}
+	
+	/**
+	 * Prints usage to given stream
+	 */
+	private static void printHelp(PrintStream console, Options opts) {
 		HelpFormatter formatter = new HelpFormatter();
+		PrintWriter pw = new PrintWriter(console);
+		formatter.printHelp(pw, HelpFormatter.DEFAULT_WIDTH, Fortnox4Jcli.class.getSimpleName(), null, opts, 
+				HelpFormatter.DEFAULT_LEFT_PAD, HelpFormatter.DEFAULT_DESC_PAD, null);
+		pw.flush();
+	}
+	
+	/**
+	 * Reports invoices using given format and prints the result.
+	 * 
+	 * @return	True if there were invoices to report.
+	 */
+	private boolean reportInvoices(CommandLine cmd, Fortnox4JFormat outputFormat, Invoices invoices, PrintStream os) throws Exception {
+		
+		if (invoices==null || invoices.getInvoiceSubset()==null)
+			return false;
+		
+		if (!cmd.hasOption("aging") || !cmd.hasOption("summaryonly")) {
+			if (cmd.hasOption("enrich")) {
+				outputFormat.reportCustomerInvoices(invoices);
+			} else {
+				outputFormat.reportCustomerInvoicesCompact(invoices);
+			}
+		}
+		if (cmd.hasOption("aging")) {
+			Date agingDate = cmd.hasOption("agingdate") ? FortnoxClient3.s_dfmt.parse(cmd.getOptionValue("agingdate")) : null;
+			int[] buckets = cmd.hasOption("agingbuckets") ? Fortnox4JAging.parseBuckets(cmd.getOptionValue("agingbuckets")) : Fortnox4JAging.DEFAULT_BUCKETS;
+			int top = cmd.hasOption("top") ? Integer.parseInt(cmd.getOptionValue("top")) : Fortnox4JAging.DEFAULT_TOP;
+			Fortnox4JAging aging = new Fortnox4JAging(agingDate, buckets, top);
+			aging.report(outputFormat, aging.aggregate(invoices.getInvoiceSubset()));
+		}
+		List<StringBuffer> out = outputFormat.writeResult();
+		for (StringBuffer b : out) {
+			os.println(b.toString());
+		}
+		return true;
+		
+	}
+	
+	/**
+	 * Copies invoices from one client to another and prints the result.
+	 * Progress is printed to the console. Copied invoices are recorded in
+	 * the journal and with -resume, invoices in the journal are skipped.
+	 * 
+	 * @return	True if all invoices were copied.
+	 */
+	private boolean copyInvoices(CommandLine cmd, Fortnox4JClient src, Fortnox4JClient dst, Invoices invoices, int parallelism, 
+			PrintStream console, PrintStream os) throws Exception {
+		
+		if (invoices==null || invoices.getInvoiceSubset()==null) {
+			os.println("0 invoices copied.");
+			return true;
+		}
+		
+		File journalFile;
+		if (cmd.hasOption("journal")) {
+			journalFile = new File(cmd.getOptionValue("journal"));
+		} else {
+			journalFile = new File("copy-" + src.getCompanySetting().getOrganizationNumber() 
+					+ "-" + dst.getCompanySetting().getOrganizationNumber() + ".journal");
+		}
+		
+		try (Fortnox4JCopyJournal journal = Fortnox4JCopyJournal.open(journalFile)) {
+			
+			List<InvoiceSubset> todo = invoices.getInvoiceSubset();
+			List<String> unknown = new ArrayList<String>();
+			if (cmd.hasOption("resume")) {
+				int total = todo.size();
+				for (InvoiceSubset is : todo) {
+					if (journal.isUnknown(is.getDocumentNumber()))
+						unknown.add(is.getDocumentNumber());
+				}
+				todo.removeIf(is -> journal.contains(is.getDocumentNumber()));
+				console.println("Resuming from " + journalFile.getPath() + ", " + (total - todo.size() - unknown.size()) + " of " + total + " invoices already copied.");
+				if (!unknown.isEmpty()) {
+					console.println(unknown.size() + " invoices may have been copied by a failed write and are skipped: " + String.join(", ", unknown));
+					console.println("Check them in the destination and remove their lines from the journal to copy them again.");
+				}
+			}
+			
+			Fortnox4JInvoiceCopier copier = new Fortnox4JInvoiceCopier(src, dst);
+			copier.setParallelism(parallelism);
+			copier.setProgress(console, Fortnox4JInvoiceCopier.DEFAULT_REPORT_INTERVAL_MS);
+			copier.setJournal(journal);
+			
+			int copied = copier.copy(todo);
+			List<String> failures = copier.getFailures();
+			for (String failure : failures) {
+				os.println(failure);
+			}
+			os.println(copied + " invoices copied.");
+			if (os!=console) {
+				console.println(copied + " invoices copied.");
+				if (!failures.isEmpty()) {
+					console.println(failures.size() + " invoices couldn't be copied, they're listed in the output.");
+				}
+			}
+			
+			// Invoices skipped as unknown aren't copied either
+			return failures.isEmpty() && unknown.isEmpty();
+			
+		}
+		
+	}
+	
+	/**
+	 * Runs one command.
+	 * 
+	 * @param args		The command line arguments.
+	 * @param console	Where messages and the result (unless redirected with -o) are printed.
+	 * @return	0 if the command succeeded.
+	 */
+	public int runCommand(String[] args, PrintStream console) {
+		
+		Options opts = createOptions();
+		CommandLine cmd = null;
+		try {
+			cmd = new DefaultParser().parse(opts, args);
+		} catch (ParseException pe) {
+			console.println(pe.getMessage());
+			printHelp(console, opts);
+			return 1;
+		}
+		
+		installTransport(cmd);
+		
+		Fortnox4JMetrics metrics = Fortnox4JMetrics.beginCommand();
+		long start = System.nanoTime();
+		
+		int rc = 1;
+		try {
+			if (cmd.hasOption("allClients")) {
+				try {
+					rc = runForAllClients(cmd, console);
+				} catch (MissingOptionException me) {
+					console.println(me.getMessage());
+					printHelp(console, opts);
+				} catch (Exception e) {
+					reportError(console, e);
+				}
+			} else {
+				rc = runCommand(cmd, console, null, null, false);
+			}
+		} finally {
+			Fortnox4JMetrics.endCommand();
+		}
+		
+		if (cmd.hasOption("stats") || cmd.hasOption("statsfile")) {
+			reportStats(cmd, console, metrics.snapshot(), System.nanoTime() - start);
+		}
+		
+		return rc;
+		
+	}
+	
+	/**
+	 * Installs the HTTP transport shared by all clients. Only the first
+	 * command's settings are used.
+	 */
+	private static void installTransport(CommandLine cmd) {
+		
+		int maxConnections = Fortnox4JHttpTransport.DEFAULT_MAX_CONNECTIONS;
+		if (cmd.hasOption("httpconnections")) {
+			maxConnections = Integer.parseInt(cmd.getOptionValue("httpconnections"));
+		}
+		Fortnox4JHttpTransport.install(maxConnections);
+		
+	}
+	
+	/**
+	 * Prints an error to the console, which is the connection in server mode.
+	 */
+	private static void reportError(PrintStream console, Exception e) {
+		console.println("Error: " + e.toString());
+		e.printStackTrace();
+	}
+	
+	/**
+	 * Prints and/or writes the metrics of a command.
+	 */
+	private void reportStats(CommandLine cmd, PrintStream console, Fortnox4JMetrics.Snapshot stats, long wallNanos) {
+		
+		String command = cmd.hasOption("c") ? cmd.getOptionValue("c") : (cmd.hasOption("i") ? "getInvoice" : "");
+		
+		if (cmd.hasOption("stats")) {
+			stats.printSummary(console, wallNanos);
+		}
+		if (cmd.hasOption("statsfile")) {
+			try {
+				stats.writeFile(new File(cmd.getOptionValue("statsfile")), command, wallNanos);
+			} catch (IOException e) {
+				console.println("Can't write stats file: " + e.getMessage());
+			}
+		}
+		console.flush();
+		
+	}
+	
+	/**
+	 * Runs one command.
+	 * 
+	 * @param cmd			The parsed command line.
+	 * @param console		Where messages and the result (unless redirected) are printed.
+	 * @param tenant		If set, the command is run for this client instead of the client given on the command line.
+	 * @param tenantOutFile	If set, the result is written to this file instead of the file given on the command line.
+	 * @param orgNoColumn	If true, the tenant's org number is added as the first column in reports.
+	 * @return	0 if the command succeeded.
+	 */
+	private int runCommand(CommandLine cmd, PrintStream console, FortnoxClientInfo tenant, File tenantOutFile, boolean orgNoColumn) {
+
+		Options opts = createOptions();
+		
 		String format = null;
 		Fortnox4JFormat outputFormat = null;
 		
-		PrintStream os = System.out;
+		PrintStream os = console;
+		Fortnox4JOutputFile outputFile = null;
 		
 		Date fromDate = null;
 		Date untilDate = null;
 		String fortnoxClientFile = null;
 		String orgNo = null;
 		FortnoxClientList clist = null;
-		FortnoxClientInfo ci = null;
+		FortnoxClientInfo ci = tenant;
 		File destinationFile = null;
+		int parallelism = Fortnox4JParallelFetcher.DEFAULT_PARALLELISM;
+		int dateWindowMonths = Fortnox4JClient.DEFAULT_DATE_WINDOW_MONTHS;
+		File cacheDir = null;
+		long cacheSize = Fortnox4JInvoiceCache.DEFAULT_MAX_SIZE;
+		Fortnox4JDeltaState delta = null;
+		int rc = 1;
 		
 		try {
 			
-			CommandLine cmd = parser.parse(opts, args);
 			String cmdLine = null;
 			String apiCode = null;
 			
@@ -179,8 +661,8 @@ public class Fortnox4Jcli {
 				apiCode = cmd.getOptionValue("a");
 			} else {
 				if (!cmd.hasOption("c") && !cmd.hasOption("i")) {
-					formatter.printHelp(Fortnox4Jcli.class.getSimpleName(), opts);
-					System.exit(1);
+					printHelp(console, opts);
+					return 1;
 				}
 			}
 
@@ -192,8 +674,8 @@ public class Fortnox4Jcli {
 				orgNo = cmd.getOptionValue("orgNo");
 			}
 			
-			if (fortnoxClientFile!=null) {
-				clist = FortnoxUtil.readFortnoxClientListFromFile(fortnoxClientFile);
+			if (fortnoxClientFile!=null && tenant==null) {
+				clist = getFortnoxClientList(fortnoxClientFile);
 				if (orgNo!=null) {
 					ci = clist.getClientInfoByOrgNo(orgNo);
 				} else {
@@ -209,27 +691,48 @@ public class Fortnox4Jcli {
 				untilDate = FortnoxClient3.s_dfmt.parse(cmd.getOptionValue("untildate"));
 			}
 			
-			if (cmd.hasOption("o")) {
+			if (cmd.hasOption("parallelism")) {
+				parallelism = Integer.parseInt(cmd.getOptionValue("parallelism"));
+			}
+			
+			if (cmd.hasOption("datewindow")) {
+				dateWindowMonths = Integer.parseInt(cmd.getOptionValue("datewindow"));
+			}
+			
+			if (cmd.hasOption("cachedir")) {
+				cacheDir = new File(cmd.getOptionValue("cachedir"));
+			}
+			
+			if (cmd.hasOption("cachesize")) {
+				cacheSize = Long.parseLong(cmd.getOptionValue("cachesize"))*1024*1024;
+			}
+			
+			if (tenantOutFile!=null) {
+				destinationFile = tenantOutFile;
+			} else if (cmd.hasOption("o")) {
 				destinationFile = new File(cmd.getOptionValue("o"));
-				os = new PrintStream(new FileOutputStream(destinationFile));
+			}
+			if (destinationFile!=null) {
+				if (tenantOutFile!=null && orgNoColumn) {
+					// Part of a merged result, compressed when merged
+					outputFile = new Fortnox4JOutputFile(destinationFile, Fortnox4JOutputFile.NONE, 0, 0);
+				} else {
+					outputFile = createOutputFile(cmd, destinationFile);
+				}
+				os = new PrintStream(outputFile);
 			}
 			
-			// Check format option
+			// Check format option. The format is created when a report is written.
 			if (cmd.hasOption("format")) {
 				format = cmd.getOptionValue("format");
 				format = format.toLowerCase();
-				if (!format.equals("xlsx") && 
-					!format.equals("csv") && 
-					!format.equals("json")) {
-					throw new MissingOptionException("Available formats are: json, xlsx, csv. If format is omitted csv is used."); 
+				if (!Fortnox4JFormats.isAvailable(format)) {
+					throw new MissingOptionException("Available formats are: " + Fortnox4JFormats.getNames() + ". If format is omitted csv is used."); 
 				}
-				if (format.equalsIgnoreCase("xlsx")) {
-					outputFormat = new Fortnox4JExcel();
+				if (format.equals("parquet") && cmd.hasOption("aging")) {
+					throw new MissingOptionException("The aging summary has more than one table and can't be written as parquet.");
 				}
 			}
-			if (outputFormat==null) {
-				outputFormat = new Fortnox4JText();
-			}
 			
 			if (cmd.hasOption("c") || apiCode!=null || cmd.hasOption("i")) {
 				
@@ -241,14 +744,12 @@ public class Fortnox4Jcli {
 					if (cmd.hasOption("s")) {
 						clientSecret = cmd.getOptionValue("s");
 					} else {
-						System.out.println("Client Secret must be supplied. Use option s.");
-						System.exit(1);
+						throw new MissingOptionException("Client Secret must be supplied. Use option s.");
 					}
 					if (cmd.hasOption("a")) {
 						apiCode = cmd.getOptionValue("a");
 					} else {
-						System.out.println("API-code must be supplied. Use option apicode.");
-						System.exit(1);
+						throw new MissingOptionException("API-code must be supplied. Use option apicode.");
 					}
 
 					FortnoxClient3 client = new FortnoxClient3();
@@ -257,162 +758,163 @@ public class Fortnox4Jcli {
 						os.println("Got access token:");
 						os.println(accessToken);
 					} catch (FortnoxException fe) {
-						System.err.println(fe.toString());
+						console.println(fe.toString());
+						return 1;
 					}
 					
 				} else if (CMD_LISTUNPAID_CUSTOMER_INVOICES.equalsIgnoreCase(cmdLine)) {
 
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					cl.setParallelism(parallelism);
+					if (cacheDir!=null && cmd.hasOption("enrich")) {
+						enableInvoiceCache(cl, cmd, cacheDir, cacheSize);
+					}
+					outputFormat = createOutputFormat(format, outputFile!=null ? outputFile : os, tenant, orgNoColumn);
 					outputFormat.setFortnox4JClient(cl);
 					
-					Invoices invoices = cl.getClient().getUnpaidCustomerInvoices();
+					Invoices invoices = cl.getUnpaidCustomerInvoices();
 					
-					if (invoices!=null && invoices.getInvoiceSubset()!=null) {
-
-						if (cmd.hasOption("enrich")) {
-							outputFormat.reportCustomerInvoices(invoices);
-						} else {
-							outputFormat.reportCustomerInvoicesCompact(invoices);
-						}
-						List<StringBuffer> out = outputFormat.writeResult();
-						for (StringBuffer b : out) {
-							os.println(b.toString());
-						}
-						
-					} else {
-						System.out.println("No unpaid customer invoices.");
+					if (!reportInvoices(cmd, outputFormat, invoices, os)) {
+						console.println("No unpaid customer invoices.");
 					}
+					
 				} else if (CMD_LISTUNBOOKED_CUSTOMER_INVOICES.equalsIgnoreCase(cmdLine)) {
 					
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					cl.setParallelism(parallelism);
+					if (cacheDir!=null && cmd.hasOption("enrich")) {
+						enableInvoiceCache(cl, cmd, cacheDir, cacheSize);
+					}
+					outputFormat = createOutputFormat(format, outputFile!=null ? outputFile : os, tenant, orgNoColumn);
 					outputFormat.setFortnox4JClient(cl);
 					
-					Invoices invoices = cl.getClient().getInvoices(FortnoxClient3.FILTER_UNBOOKED);
+					Invoices invoices = cl.getUnbookedCustomerInvoices();
 					
-					if (invoices!=null && invoices.getInvoiceSubset()!=null) {
-
-						if (cmd.hasOption("enrich")) {
-							outputFormat.reportCustomerInvoices(invoices);
-						} else {
-							outputFormat.reportCustomerInvoicesCompact(invoices);
-						}
-						List<StringBuffer> out = outputFormat.writeResult();
-						for (StringBuffer b : out) {
-							os.println(b.toString());
-						}
-						
-					} else {
-						System.out.println("No unbooked customer invoices.");
+					if (!reportInvoices(cmd, outputFormat, invoices, os)) {
+						console.println("No unbooked customer invoices.");
 					}
 					
-					
 				} else if (CMD_LIST_ALL_CUSTOMER_INVOICES.equalsIgnoreCase(cmdLine)) {
 					
+					if (fromDate==null) {
+						console.println("Parameter --fromdate is missing");
+						return 1;
+					}
+					
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					cl.setParallelism(parallelism);
+					cl.setDateWindowMonths(dateWindowMonths);
+					if (cacheDir!=null && cmd.hasOption("enrich")) {
+						enableInvoiceCache(cl, cmd, cacheDir, cacheSize);
+					}
+					outputFormat = createOutputFormat(format, outputFile!=null ? outputFile : os, tenant, orgNoColumn);
 					outputFormat.setFortnox4JClient(cl);
 					
-					if (fromDate==null) {
-						System.out.println("Parameter --fromdate is missing");
-						System.exit(1);
-					}
+					Invoices invoices = cl.getAllCustomerInvoicesByDateWindows(fromDate, untilDate);
 					
-					Invoices invoices = cl.getClient().getAllCustomerInvoicesByDateRange(fromDate, untilDate);
+					// Only report invoices that are new or changed since the last delta run
+					if (cmd.hasOption("delta") && invoices!=null && invoices.getInvoiceSubset()!=null) {
+						CompanySetting cs = cl.getCompanySetting();
+						delta = Fortnox4JDeltaState.load(new File(cmd.getOptionValue("delta")), 
+								cs!=null ? cs.getOrganizationNumber() : null, CMD_LIST_ALL_CUSTOMER_INVOICES);
+						int total = invoices.getInvoiceSubset().size();
+						int changed = delta.retainChanged(invoices.getInvoiceSubset());
+						console.println(changed + " of " + total + " invoices are new or changed since last run.");
+					}
 					
-					if (invoices!=null && invoices.getInvoiceSubset()!=null) {
-
-						if (cmd.hasOption("enrich")) {
-							outputFormat.reportCustomerInvoices(invoices);
-						} else {
-							outputFormat.reportCustomerInvoicesCompact(invoices);
-						}
-						List<StringBuffer> out = outputFormat.writeResult();
-						for (StringBuffer b : out) {
-							os.println(b.toString());
-						}
-						
-					} else {
-						System.out.println("No customer invoices in given date range.");
+					if (!reportInvoices(cmd, outputFormat, invoices, os)) {
+						console.println("No customer invoices in given date range.");
 					}
+					// The delta state is advanced when the output is closed
 					
 				} else if (CMD_COPY_INVOICES.equalsIgnoreCase(cmdLine)) {
 
 					if (fromDate==null) {
-						System.out.println("Parameter --fromdate is missing");
-						System.exit(1);
+						console.println("Parameter --fromdate is missing");
+						return 1;
 					}
 					
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
 					
-					FortnoxClientInfo ciDst = cli.parseDestAuthDetails(cmd);
-					Fortnox4JClient clDst = new Fortnox4JClient(ciDst);
+					FortnoxClientInfo ciDst = parseDestAuthDetails(cmd);
+					Fortnox4JClient clDst = getFortnox4JClient(ciDst, cmd);
 
-					CompanySetting srcCompany = cl.getClient().getCompanySetting();
-					CompanySetting dstCompany = clDst.getClient().getCompanySetting();
-					System.out.print("Copy from [" + srcCompany.getOrganizationNumber() + "] " + srcCompany.getName() + " to [");
-					System.out.println(dstCompany.getOrganizationNumber() + "] " + dstCompany.getName() + "(y/n) ?");
-					Scanner scanner = new Scanner(System.in);
-					String reply = scanner.next();
-					scanner.close();
-					if (!reply.toLowerCase().startsWith("y")) {
+					CompanySetting srcCompany = cl.getCompanySetting();
+					CompanySetting dstCompany = clDst.getCompanySetting();
+					console.print("Copy from [" + srcCompany.getOrganizationNumber() + "] " + srcCompany.getName() + " to [");
+					console.println(dstCompany.getOrganizationNumber() + "] " + dstCompany.getName() + "(y/n) ?");
+					if (!confirm(cmd, console)) {
 						os.println("Operation cancelled.");
-						return;
+						return 1;
 					}
 					
-					int copied = FortnoxUtil.copyCustomerInvoices(
-							cl.getClient(), 
-							clDst.getClient(), 
-							fromDate, 
-							untilDate, 
-							os);
-					os.println(copied + " invoices copied.");
+					cl.setParallelism(parallelism);
+					cl.setDateWindowMonths(dateWindowMonths);
+					Invoices invoices = cl.getAllCustomerInvoicesByDateWindows(fromDate, untilDate);
+					if (!copyInvoices(cmd, cl, clDst, invoices, parallelism, console, os)) {
+						return 1;
+					}
 					
 				} else if (CMD_COPY_UNPAID_AND_UNBOOKED_INVOICES.equalsIgnoreCase(cmdLine)) {
 					
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
 					
-					FortnoxClientInfo ciDst = cli.parseDestAuthDetails(cmd);
-					Fortnox4JClient clDst = new Fortnox4JClient(ciDst);
+					FortnoxClientInfo ciDst = parseDestAuthDetails(cmd);
+					Fortnox4JClient clDst = getFortnox4JClient(ciDst, cmd);
 
-					Invoices invoices = cl.getClient().getUnpaidAndUnbookedCustomerInvoices();
-					
-					int copied = FortnoxUtil.copyCustomerInvoices(
-							cl.getClient(), 
-							clDst.getClient(), 
-							invoices, 
-							os);
+					Invoices invoices = cl.getUnpaidAndUnbookedCustomerInvoices();
 					
-					os.println(copied + " invoices copied.");
+					if (!copyInvoices(cmd, cl, clDst, invoices, parallelism, console, os)) {
+						return 1;
+					}
 					
 				} else if (CMD_GETCUSTOMERLIST.equalsIgnoreCase(cmdLine)) {
 
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
-					cl.getCustomerList(os);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					cl.setParallelism(parallelism);
+					
+					if (format!=null) {
+						outputFormat = createOutputFormat(format, outputFile!=null ? outputFile : os, tenant, orgNoColumn);
+						outputFormat.setFortnox4JClient(cl);
+						Customers customers = cl.getCustomers();
+						if (customers!=null && customers.getCustomerSubset()!=null) {
+							outputFormat.reportCustomers(customers);
+							List<StringBuffer> out = outputFormat.writeResult();
+							for (StringBuffer b : out) {
+								os.println(b.toString());
+							}
+						} else {
+							console.println("No customers.");
+						}
+					} else {
+						cl.getCustomerList(os);
+					}
 					
 				} else if (CMD_GET_LOCKED_PERIOD.equalsIgnoreCase(cmdLine)) {
 					
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
-					Date lockedUntil = cl.getClient().getLockedPeriodUntil();
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					Date lockedUntil = cl.getLockedPeriodUntil();
 					if (lockedUntil == null) {
 						os.println("No locked period found.");
 					} else {
@@ -422,48 +924,477 @@ public class Fortnox4Jcli {
 				} else if (CMD_GET_SIE4.equalsIgnoreCase(cmdLine)) {
 
 					if (fromDate==null) {
-						System.out.println("Parameter --fromdate is missing");
-						System.exit(1);
+						console.println("Parameter --fromdate is missing");
+						return 1;
+					}
+					
+					if (cmd.hasOption("rotaterows") || cmd.hasOption("rotatesize")) {
+						throw new MissingOptionException("A SIE4 file can't be rotated. Remove -rotaterows and -rotatesize.");
 					}
 					
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
 					
-					FinancialYearSubset fs = cl.getClient().getFinancialYear(fromDate);
+					FinancialYearSubset fs = cl.getFinancialYear(fromDate);
 					int yearId = fs.getId();
 					
-					ByteBuffer sieContent = cl.getClient().retrieveSieFile(4, yearId);
-					os.write(sieContent.array());
+					ByteBuffer sieContent = cl.retrieveSieFile(4, yearId);
 					
-					if (os!=System.out) {
-						System.out.println("SIE4 file saved to " + destinationFile.getAbsolutePath());
+					// Through the out file, compressed as given by -compress or the extension
+					Fortnox4JSieArchive.write(sieContent, os);
+					if (destinationFile!=null) {
+						console.println("SIE4 file saved to " + destinationFile.getAbsolutePath());
 					}
 					
+				} else if (CMD_ARCHIVE_SIE4.equalsIgnoreCase(cmdLine)) {
+					
+					if (!cmd.hasOption("archivedir")) {
+						console.println("Parameter --archivedir is missing");
+						return 1;
+					}
+					
+					if (ci==null) 
+						ci = parseAuthDetails(cmd);
+					
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					
+					Fortnox4JSieArchive archive = new Fortnox4JSieArchive(cl, new File(cmd.getOptionValue("archivedir")));
+					archive.setParallelism(parallelism);
+					int written = archive.archive(fromDate, untilDate, os);
+					console.println(written + " financial years written to archive.");
+					
+				} else if (CMD_SIE_BALANCE.equalsIgnoreCase(cmdLine) 
+						|| CMD_SIE_PERIOD_TOTALS.equalsIgnoreCase(cmdLine)
+						|| CMD_SIE_TRIAL_BALANCE.equalsIgnoreCase(cmdLine)) {
+					
+					if (!cmd.hasOption("siefile")) {
+						console.println("Parameter --siefile is missing");
+						return 1;
+					}
+					
+					Fortnox4JLedger ledger = getLedger(new File(cmd.getOptionValue("siefile")));
+					int[] accountRange = parseAccountRange(cmd.getOptionValue("account"));
+					int period = cmd.hasOption("period") ? Integer.parseInt(cmd.getOptionValue("period")) : 0;
+					
+					outputFormat = createOutputFormat(format, outputFile!=null ? outputFile : os, tenant, orgNoColumn);
+					if (CMD_SIE_BALANCE.equalsIgnoreCase(cmdLine)) {
+						ledger.reportBalances(outputFormat, accountRange[0], accountRange[1], period);
+					} else if (CMD_SIE_PERIOD_TOTALS.equalsIgnoreCase(cmdLine)) {
+						ledger.reportPeriodTotals(outputFormat, accountRange[0], accountRange[1]);
+					} else {
+						ledger.reportTrialBalance(outputFormat, accountRange[0], accountRange[1], period);
+					}
+					List<StringBuffer> out = outputFormat.writeResult();
+					for (StringBuffer b : out) {
+						os.println(b.toString());
+					}
+					
+					
+				} else if (CMD_EXPORT_INVOICES.equalsIgnoreCase(cmdLine)) {
+					
+					if (ci==null) 
+						ci = parseAuthDetails(cmd);
+					
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
+					
+					List<String> invoiceNos = null;
+					if (cmd.hasOption("invoicefile")) {
+						String invoiceFile = cmd.getOptionValue("invoicefile");
+						Reader in = "-".equals(invoiceFile) 
+								? new InputStreamReader(System.in, StandardCharsets.UTF_8) 
+								: new InputStreamReader(new FileInputStream(invoiceFile), StandardCharsets.UTF_8);
+						try {
+							invoiceNos = Fortnox4JInvoiceExport.readInvoiceNumbers(in);
+						} finally {
+							if (!"-".equals(invoiceFile))
+								in.close();
+						}
+					} else if (cmd.hasOption("i")) {
+						invoiceNos = Fortnox4JInvoiceExport.parseInvoiceNumbers(cmd.getOptionValue("i"));
+					} else if (fromDate!=null) {
+						cl.setParallelism(parallelism);
+						cl.setDateWindowMonths(dateWindowMonths);
+						Invoices invoices = cl.getAllCustomerInvoicesByDateWindows(fromDate, untilDate);
+						invoiceNos = new ArrayList<String>();
+						if (invoices!=null && invoices.getInvoiceSubset()!=null) {
+							for (InvoiceSubset is : invoices.getInvoiceSubset()) {
+								invoiceNos.add(is.getDocumentNumber());
+							}
+						}
+					} else {
+						console.println("Give the invoices with --invoicefile, --invoiceno or --fromdate");
+						return 1;
+					}
+					
+					Fortnox4JInvoiceExport export = new Fortnox4JInvoiceExport(cl);
+					export.setParallelism(parallelism);
+					export.setLines(cmd.hasOption("xmllines"));
+					int written = export.export(invoiceNos, outputFile!=null ? outputFile : os);
+					for (String failure : export.getFailures()) {
+						console.println(failure);
+					}
+					console.println(written + " of " + invoiceNos.size() + " invoices exported.");
+					if (!export.getFailures().isEmpty()) {
+						return 1;
+					}
 					
 				} else if (cmd.hasOption("i")) {
 					
 					String invoiceNo = cmd.getOptionValue("i");
 					if (ci==null) 
-						ci = cli.parseAuthDetails(cmd);
+						ci = parseAuthDetails(cmd);
 					
-					Fortnox4JClient cl = new Fortnox4JClient(ci);
+					Fortnox4JClient cl = getFortnox4JClient(ci, cmd);
 					cl.printInvoice(os, invoiceNo);
 					
 				} else {
-					System.out.println("Unknown command: " + cmdLine);
+					console.println("Unknown command: " + cmdLine);
+					return 1;
 				}
 			}
 			
+			rc = 0;
 			
 		} catch (MissingOptionException me) {
-			System.out.println(me.getMessage());
-			formatter.printHelp(Fortnox4Jcli.class.getSimpleName(), opts);
+			console.println(me.getMessage());
+			printHelp(console, opts);
+		} catch (Exception e) {
+			reportError(console, e);
+		} finally {
+			boolean written;
+			if (os!=console) {
+				// PrintStream doesn't throw, a failed close is only seen by checkError
+				os.close();
+				written = !os.checkError();
+				if (!written) {
+					console.println("Can't write " + destinationFile.getAbsolutePath());
+				} else if (outputFile!=null && outputFile.isRotating()) {
+					console.println(outputFile.getFiles().size() + " files written to " + destinationFile.getAbsoluteFile().getParent());
+				}
+			} else {
+				written = !os.checkError();
+			}
+			if (!written) {
+				rc = 1;
+			}
+		}
+		
+		// Only advance the delta state when all output is written, or the
+		// invoices not written would be skipped by the next run
+		if (delta!=null && rc==0) {
+			try {
+				delta.commit();
+			} catch (IOException e) {
+				reportError(console, e);
+				rc = 1;
+			}
+		}
+		
+		return rc;
+		
+	}
+	
+	/**
+	 * Runs the command for every client in the client file concurrently. Each
+	 * client uses its own Fortnox4JClient and thereby its own rate limit.
+	 * 
+	 * The results are either written to one file per client (-splitOutput) or
+	 * merged into one output in the order the clients finish, so a slow client
+	 * doesn't hold back the others. When merged, reports get the org number as
+	 * first column and CSV headers are only written once. The lines of other
+	 * commands are prefixed with the org number.
+	 * 
+	 * @return	0 if the command succeeded for all clients.
+	 */
+	private int runForAllClients(CommandLine cmd, PrintStream console) throws Exception {
+		
+		if (!cmd.hasOption("f")) {
+			throw new MissingOptionException("-allClients requires a client file. Use option f.");
+		}
+		String cmdLine = cmd.getOptionValue("c");
+		if (cmdLine==null || cmd.hasOption("a") 
+				|| CMD_GETACCESSTOKEN.equalsIgnoreCase(cmdLine)
+				|| CMD_COPY_INVOICES.equalsIgnoreCase(cmdLine) 
+				|| CMD_COPY_UNPAID_AND_UNBOOKED_INVOICES.equalsIgnoreCase(cmdLine)) {
+			throw new MissingOptionException("Command " + cmdLine + " can't be run for all clients.");
+		}
+		final boolean split = cmd.hasOption("splitOutput");
+		if (split && !cmd.hasOption("o")) {
+			throw new MissingOptionException("-splitOutput requires an out file. Use option o.");
+		}
+		String format = cmd.getOptionValue("format");
+		if (!split && "jsonarray".equalsIgnoreCase(format)) {
+			throw new MissingOptionException("Use -format json or -splitOutput to report all clients as json.");
+		}
+		if (!split && "parquet".equalsIgnoreCase(format)) {
+			throw new MissingOptionException("Use -splitOutput to report all clients as parquet.");
+		}
+		if (!split && (cmd.hasOption("rotaterows") || cmd.hasOption("rotatesize"))) {
+			throw new MissingOptionException("Use -splitOutput to rotate the output of all clients.");
+		}
+		if (!split && cmd.hasOption("delta")) {
+			throw new MissingOptionException("Use -splitOutput with -delta, so that the state of a client is only advanced when its file is written.");
+		}
+		if (!split && (CMD_GET_SIE4.equalsIgnoreCase(cmdLine) || CMD_EXPORT_INVOICES.equalsIgnoreCase(cmdLine))) {
+			throw new MissingOptionException("Use -splitOutput to run " + cmdLine + " for all clients.");
+		}
+		if (!split && cmd.hasOption("aging")) {
+			// Merging only leaves out the first header of each client, not the headers of the summary sections
+			throw new MissingOptionException("Use -splitOutput with -aging for all clients.");
+		}
+		final boolean report = isReport(cmd, cmdLine);
+		boolean csv = report && (format==null || "csv".equalsIgnoreCase(format));
+		
+		FortnoxClientList clist = getFortnoxClientList(cmd.getOptionValue("f"));
+		List<FortnoxClientInfo> clients = clist!=null ? clist.getFortnoxClient() : null;
+		if (clients==null || clients.isEmpty()) {
+			console.println("No clients in client file.");
+			return 1;
+		}
+		
+		int clientParallelism = DEFAULT_CLIENT_PARALLELISM;
+		if (cmd.hasOption("clientparallelism")) {
+			clientParallelism = Integer.parseInt(cmd.getOptionValue("clientparallelism"));
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(clientParallelism, clients.size())));
+		CompletionService<TenantResult> completion = new ExecutorCompletionService<TenantResult>(executor);
+		
+		File outFile = cmd.hasOption("o") ? new File(cmd.getOptionValue("o")) : null;
+		List<File> tempFiles = new ArrayList<File>();
+		OutputStream merged = null;
+		int failed = 0;
+		boolean first = true;
+		try {
+			for (int i=0; i<clients.size(); i++) {
+				final FortnoxClientInfo tenant = clients.get(i);
+				final String label = tenant.getOrgNo()!=null ? tenant.getOrgNo() : ("client" + (i+1));
+				final File tenantOutFile;
+				if (split) {
+					tenantOutFile = tenantFile(outFile, label);
+				} else {
+					tenantOutFile = File.createTempFile("fortnox4j-" + label + "-", ".out");
+					tempFiles.add(tenantOutFile);
+				}
+				completion.submit(() -> {
+					ByteArrayOutputStream messages = new ByteArrayOutputStream();
+					PrintStream tenantConsole = new PrintStream(messages, true, "UTF-8");
+					int rc = runCommand(cmd, tenantConsole, tenant, tenantOutFile, !split);
+					tenantConsole.close();
+					return new TenantResult(label, rc, tenantOutFile, messages.toString("UTF-8"));
+				});
+			}
+			executor.shutdown();
+			
+			if (!split) {
+				merged = outFile!=null ? new Fortnox4JOutputFile(outFile, cmd.getOptionValue("compress"), 0, 0) : console;
+			}
+			
+			for (int i=0; i<clients.size(); i++) {
+				TenantResult r = completion.take().get();
+				if (r.rc!=0)
+					failed++;
+				for (String line : r.messages.split("\\r?\\n")) {
+					if (line.length()>0)
+						console.println("[" + r.label + "] " + line);
+				}
+				if (merged!=null) {
+					// Skip the header of all but the first CSV result
+					byte[] prefix = report ? null : ("[" + r.label + "] ").getBytes(StandardCharsets.UTF_8);
+					if (copyResult(r.outFile, merged, csv && !first, prefix)) {
+						first = false;
+					}
+					r.outFile.delete();
+				}
+			}
+		} finally {
+			// If a client failed with an exception, the others are stopped before their files are deleted
+			executor.shutdownNow();
+			try {
+				if (merged!=null && merged!=console) {
+					merged.close();
+				} else if (merged!=null) {
+					merged.flush();
+				}
+			} finally {
+				for (File f : tempFiles) {
+					f.delete();
+				}
+			}
+		}
+		
+		if (failed>0) {
+			console.println(failed + " of " + clients.size() + " clients failed.");
+			return 1;
+		}
+		return 0;
+		
+	}
+	
+	/**
+	 * The result of running a command for one client.
+	 */
+	private static class TenantResult {
+		String	label;
+		int		rc;
+		File	outFile;
+		String	messages;
+		
+		TenantResult(String label, int rc, File outFile, String messages) {
+			this.label = label;
+			this.rc = rc;
+			this.outFile = outFile;
+			this.messages = messages;
+		}
+	}
+	
+	/**
+	 * Creates a file name for a client, ie report.csv becomes report-5561234567.csv
+	 */
+	private static File tenantFile(File outFile, String label) {
+		return Fortnox4JOutputFile.withSuffix(outFile, "-" + label);
+	}
+	
+	/**
+	 * Creates the output format of a report.
+	 * 
+	 * @param format		The format name, null for csv.
+	 * @param out			The stream the report is written to.
+	 * @param tenant		The client when run for all clients.
+	 * @param orgNoColumn	If true, the tenant's org number is added as the first column.
+	 */
+	private static Fortnox4JFormat createOutputFormat(String format, OutputStream out, FortnoxClientInfo tenant, boolean orgNoColumn) {
+		Fortnox4JFormat outputFormat = Fortnox4JFormats.create(format);
+		outputFormat.setOutputStream(out);
+		if (orgNoColumn && tenant!=null && outputFormat instanceof Fortnox4JText) {
+			((Fortnox4JText)outputFormat).setPrefixColumn("OrgNo", tenant.getOrgNo());
+		}
+		return outputFormat;
+	}
+	
+	/**
+	 * Creates the out file, compressed and rotated according to the options.
+	 */
+	private static Fortnox4JOutputFile createOutputFile(CommandLine cmd, File file) {
+		long maxRows = cmd.hasOption("rotaterows") ? Long.parseLong(cmd.getOptionValue("rotaterows")) : 0;
+		long maxBytes = cmd.hasOption("rotatesize") ? Long.parseLong(cmd.getOptionValue("rotatesize"))*1024*1024 : 0;
+		return new Fortnox4JOutputFile(file, cmd.getOptionValue("compress"), maxRows, maxBytes);
+	}
+	
+	/**
+	 * @return	True if the command writes a report, which has the org number 
+	 * 			as a column when run for all clients.
+	 */
+	private static boolean isReport(CommandLine cmd, String cmdLine) {
+		return CMD_LISTUNPAID_CUSTOMER_INVOICES.equalsIgnoreCase(cmdLine)
+				|| CMD_LISTUNBOOKED_CUSTOMER_INVOICES.equalsIgnoreCase(cmdLine)
+				|| CMD_LIST_ALL_CUSTOMER_INVOICES.equalsIgnoreCase(cmdLine)
+				|| CMD_SIE_BALANCE.equalsIgnoreCase(cmdLine)
+				|| CMD_SIE_PERIOD_TOTALS.equalsIgnoreCase(cmdLine)
+				|| CMD_SIE_TRIAL_BALANCE.equalsIgnoreCase(cmdLine)
+				|| (CMD_GETCUSTOMERLIST.equalsIgnoreCase(cmdLine) && cmd.hasOption("format"));
+	}
+	
+	/**
+	 * Copies a result file to given stream.
+	 * 
+	 * @param skipFirstLine		If true, the first line (header) isn't copied.
+	 * @param linePrefix		If set, written before every line.
+	 * @return	True if anything was copied.
+	 */
+	private static boolean copyResult(File file, OutputStream out, boolean skipFirstLine, byte[] linePrefix) throws IOException {
+		
+		if (!file.exists())
+			return false;
+		
+		boolean copied = false;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			if (skipFirstLine) {
+				int c;
+				while ((c = in.read())!=-1 && c!='\n');
+			}
+			if (linePrefix!=null) {
+				boolean lineStart = true;
+				int c;
+				while ((c = in.read())!=-1) {
+					if (lineStart)
+						out.write(linePrefix);
+					out.write(c);
+					lineStart = c=='\n';
+					copied = true;
+				}
+				return copied;
+			}
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf))!=-1) {
+				out.write(buf, 0, len);
+				copied = true;
+			}
+		}
+		return copied;
+		
+	}
+	
+	/**
+	 * Asks for confirmation. If not interactive, the confirmation must be given with -y.
+	 * 
+	 * @return	True if confirmed
+	 */
+	private boolean confirm(CommandLine cmd, PrintStream console) {
+		
+		if (cmd.hasOption("y")) {
+			return true;
+		}
+		if (!interactive) {
+			console.println("Use -y to confirm in batch or server mode.");
+			return false;
+		}
+		
+		// Don't close the scanner, it would close System.in
+		@SuppressWarnings("resource")
+		Scanner scanner = new Scanner(System.in);
+		String reply = scanner.next();
+		return reply.toLowerCase().startsWith("y");
+		
+	}
+	
+	public static void main(String[] args) {
+
+		Fortnox4Jcli cli = new Fortnox4Jcli();
+		int rc = 1;
+		
+		try {
+			
+			CommandLine cmd = new DefaultParser().parse(createOptions(), args);
+			installTransport(cmd);
+			
+			if (cmd.hasOption("batch")) {
+				Fortnox4JServer server = new Fortnox4JServer(cli);
+				rc = server.runScript(cmd.getOptionValue("batch"), System.out);
+			} else if (cmd.hasOption("listen")) {
+				Fortnox4JServer server = new Fortnox4JServer(cli);
+				File secretFile = cmd.hasOption("listensecret") ? new File(cmd.getOptionValue("listensecret")) : Fortnox4JServer.getDefaultSecretFile();
+				server.setSecret(Fortnox4JServer.loadSecret(secretFile));
+				server.listen(Integer.parseInt(cmd.getOptionValue("listen")));
+				rc = 0;
+			} else {
+				rc = cli.runCommand(args, System.out);
+			}
+			
+		} catch (ParseException pe) {
+			System.out.println(pe.getMessage());
+			printHelp(System.out, createOptions());
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		
+		if (rc!=0) {
+			System.exit(rc);
+		}
+		
 	}
 
 }
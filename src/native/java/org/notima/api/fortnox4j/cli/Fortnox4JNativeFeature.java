@@ -0,0 +1,93 @@
+package org.notima.api.fortnox4j.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+import org.graalvm.nativeimage.hosted.Feature;
+import org.graalvm.nativeimage.hosted.RuntimeReflection;
+
+/**
+ * Registers all classes of the fortnox4j entities3 package for reflection
+ * when the native executable is built. fortnox4j creates and fills the
+ * entities, including nested types like the invoice rows and the list
+ * wrappers, by reflection. Listing them by hand misses some.
+ *
+ * Only compiled by the native profile.
+ *
+ */
+public class Fortnox4JNativeFeature implements Feature {
+
+	static final String ENTITIES = "org/notima/api/fortnox/entities3/";
+
+	@Override
+	public void beforeAnalysis(BeforeAnalysisAccess access) {
+
+		for (Path path : access.getApplicationClassPath()) {
+			try {
+				for (String name : findClasses(path)) {
+					Class<?> c = access.findClassByName(name);
+					if (c!=null) {
+						register(c);
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("Can't read " + path, e);
+			}
+		}
+
+	}
+
+	private static void register(Class<?> c) {
+		RuntimeReflection.register(c);
+		RuntimeReflection.register(c.getDeclaredConstructors());
+		RuntimeReflection.register(c.getDeclaredMethods());
+		RuntimeReflection.register(c.getDeclaredFields());
+		if (!c.isInterface() && !java.lang.reflect.Modifier.isAbstract(c.getModifiers())) {
+			RuntimeReflection.registerForReflectiveInstantiation(c);
+		}
+	}
+
+	/**
+	 * @return	The names of the entity classes in a jar or class directory.
+	 */
+	static List<String> findClasses(Path path) throws IOException {
+
+		List<String> result = new ArrayList<String>();
+		File f = path.toFile();
+		if (f.isDirectory()) {
+			Path dir = path.resolve(ENTITIES);
+			if (Files.isDirectory(dir)) {
+				try (Stream<Path> files = Files.list(dir)) {
+					files.forEach(p -> addClass(result, ENTITIES + p.getFileName().toString()));
+				}
+			}
+		} else if (f.getName().endsWith(".jar")) {
+			try (JarFile jar = new JarFile(f)) {
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					if (name.startsWith(ENTITIES) && name.indexOf('/', ENTITIES.length())<0) {
+						addClass(result, name);
+					}
+				}
+			}
+		}
+		return result;
+
+	}
+
+	private static void addClass(List<String> result, String entry) {
+		if (entry.endsWith(".class") && !entry.endsWith("package-info.class")) {
+			result.add(entry.substring(0, entry.length() - ".class".length()).replace('/', '.'));
+		}
+	}
+
+}
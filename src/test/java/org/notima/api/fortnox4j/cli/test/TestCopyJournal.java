@@ -0,0 +1,65 @@
+package org.notima.api.fortnox4j.cli.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.notima.api.fortnox4j.cli.Fortnox4JCopyJournal;
+
+/**
+ * Opens copy journals left by an interrupted copy.
+ *
+ */
+public class TestCopyJournal {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testIncompleteLastLine() throws Exception {
+
+		File f = tmp.newFile("copy.journal");
+		// The last line was cut off by a crash
+		Files.write(f.toPath(), "1001;5001\n1002;?\n1003;50".getBytes(StandardCharsets.UTF_8));
+
+		try (Fortnox4JCopyJournal journal = Fortnox4JCopyJournal.open(f)) {
+			assertEquals(2, journal.size());
+			assertEquals("5001", journal.getDestination("1001"));
+			assertTrue(journal.isUnknown("1002"));
+			assertFalse(journal.contains("1003"));
+			assertEquals("1001;5001\n1002;?\n".length(), f.length());
+
+			journal.record("1003", "5003");
+		}
+
+		assertEquals("1001;5001\n1002;?\n1003;5003\n", new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+		try (Fortnox4JCopyJournal journal = Fortnox4JCopyJournal.open(f)) {
+			assertEquals(3, journal.size());
+			assertEquals("5003", journal.getDestination("1003"));
+		}
+
+	}
+
+	@Test
+	public void testCompleteJournal() throws Exception {
+
+		File f = tmp.newFile("complete.journal");
+		Files.write(f.toPath(), "1001;5001\n1002;\n".getBytes(StandardCharsets.UTF_8));
+
+		try (Fortnox4JCopyJournal journal = Fortnox4JCopyJournal.open(f)) {
+			assertEquals(2, journal.size());
+			assertTrue(journal.contains("1002"));
+			assertFalse(journal.isUnknown("1002"));
+			assertEquals("1001;5001\n1002;\n".length(), f.length());
+		}
+
+	}
+
+}
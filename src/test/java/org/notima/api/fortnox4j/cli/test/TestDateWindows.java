@@ -0,0 +1,110 @@
+package org.notima.api.fortnox4j.cli.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.notima.api.fortnox4j.cli.Fortnox4JClient;
+
+/**
+ * Splits date ranges into windows with Fortnox4JClient.splitDateRange.
+ *
+ */
+public class TestDateWindows {
+
+	private SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+
+	/**
+	 * @return	The windows as "first..last" strings.
+	 */
+	private List<String> split(String from, String until, int months) throws Exception {
+		List<String> result = new ArrayList<String>();
+		for (Date[] w : Fortnox4JClient.splitDateRange(df.parse(from), until!=null ? df.parse(until) : null, months)) {
+			result.add(df.format(w[0]) + ".." + (w[1]!=null ? df.format(w[1]) : ""));
+		}
+		return result;
+	}
+
+	@Test
+	public void testMonthlyWindows() throws Exception {
+
+		List<String> windows = split("2023-01-15", "2023-03-10", 1);
+		assertEquals(3, windows.size());
+		assertEquals("2023-01-15..2023-01-31", windows.get(0));
+		assertEquals("2023-02-01..2023-02-28", windows.get(1));
+		assertEquals("2023-03-01..2023-03-10", windows.get(2));
+
+	}
+
+	@Test
+	public void testSeveralMonthsPerWindow() throws Exception {
+
+		List<String> windows = split("2023-01-15", "2023-06-30", 2);
+		assertEquals(3, windows.size());
+		assertEquals("2023-01-15..2023-02-28", windows.get(0));
+		assertEquals("2023-03-01..2023-04-30", windows.get(1));
+		assertEquals("2023-05-01..2023-06-30", windows.get(2));
+
+		// A leap year and a window crossing the year end
+		windows = split("2023-12-01", "2024-03-31", 3);
+		assertEquals(2, windows.size());
+		assertEquals("2023-12-01..2024-02-29", windows.get(0));
+		assertEquals("2024-03-01..2024-03-31", windows.get(1));
+
+	}
+
+	@Test
+	public void testRangeEndsAtWindowBoundary() throws Exception {
+
+		List<String> windows = split("2023-01-01", "2023-02-28", 1);
+		assertEquals(2, windows.size());
+		assertEquals("2023-01-01..2023-01-31", windows.get(0));
+		assertEquals("2023-02-01..2023-02-28", windows.get(1));
+
+		// A range ending on the first day of a month gets a one day window
+		windows = split("2023-01-01", "2023-02-01", 1);
+		assertEquals(2, windows.size());
+		assertEquals("2023-01-01..2023-01-31", windows.get(0));
+		assertEquals("2023-02-01..2023-02-01", windows.get(1));
+
+		// A range within one window
+		windows = split("2023-05-03", "2023-05-20", 1);
+		assertEquals(1, windows.size());
+		assertEquals("2023-05-03..2023-05-20", windows.get(0));
+
+	}
+
+	@Test
+	public void testUnsplitRanges() throws Exception {
+
+		List<String> windows = split("2023-01-15", "2023-06-30", 0);
+		assertEquals(1, windows.size());
+		assertEquals("2023-01-15..2023-06-30", windows.get(0));
+
+		List<Date[]> all = Fortnox4JClient.splitDateRange(null, df.parse("2023-06-30"), 1);
+		assertEquals(1, all.size());
+		assertNull(all.get(0)[0]);
+
+	}
+
+	@Test
+	public void testOpenEnded() throws Exception {
+
+		// Split up to today, the last window has no end
+		Calendar cal = Calendar.getInstance();
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		cal.add(Calendar.MONTH, -2);
+		List<String> windows = split(df.format(cal.getTime()), null, 1);
+		assertEquals(3, windows.size());
+		cal.add(Calendar.MONTH, 2);
+		assertEquals(df.format(cal.getTime()) + "..", windows.get(2));
+
+	}
+
+}
@@ -0,0 +1,127 @@
+package org.notima.api.fortnox4j.cli.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.notima.api.fortnox4j.cli.Fortnox4JParquet;
+import org.notima.api.fortnox4j.cli.Fortnox4JReportTable;
+
+/**
+ * Writes Parquet files with Fortnox4JParquet and reads them back with DuckDB.
+ *
+ */
+public class TestParquetRoundTrip {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testRows() throws Exception {
+
+		File f = tmp.newFile("balances.parquet");
+		Fortnox4JParquet parquet = new Fortnox4JParquet();
+		parquet.setOutFile(f);
+		parquet.beginReport(new Object[] {"Account", "Name", "Balance", "Rate"},
+				new int[] {Fortnox4JReportTable.LONG, Fortnox4JReportTable.STRING,
+						Fortnox4JReportTable.AMOUNT, Fortnox4JReportTable.DOUBLE});
+		parquet.writeRow(new Object[] {1910, "Kassa", 1234.5, 0.125});
+		// A total row, the account is null
+		parquet.writeRow(new Object[] {null, "Total", -0.07, 1.0});
+		parquet.endReport();
+
+		try (Connection conn = DriverManager.getConnection("jdbc:duckdb:");
+				Statement st = conn.createStatement()) {
+
+			try (ResultSet rs = st.executeQuery("SELECT typeof(Account), typeof(Name), typeof(Balance), typeof(Rate) FROM read_parquet('" + f.getAbsolutePath() + "') LIMIT 1")) {
+				assertTrue(rs.next());
+				assertEquals("BIGINT", rs.getString(1));
+				assertEquals("VARCHAR", rs.getString(2));
+				assertEquals("DECIMAL(18,2)", rs.getString(3));
+				assertEquals("DOUBLE", rs.getString(4));
+			}
+
+			try (ResultSet rs = st.executeQuery("SELECT Account, Name, Balance, Rate FROM read_parquet('" + f.getAbsolutePath() + "')")) {
+				assertTrue(rs.next());
+				assertEquals(1910L, rs.getLong(1));
+				assertEquals("Kassa", rs.getString(2));
+				assertEquals(new BigDecimal("1234.50"), rs.getBigDecimal(3));
+				assertEquals(0.125, rs.getDouble(4), 0);
+				assertTrue(rs.next());
+				rs.getLong(1);
+				assertTrue(rs.wasNull());
+				assertEquals("Total", rs.getString(2));
+				assertEquals(new BigDecimal("-0.07"), rs.getBigDecimal(3));
+				assertEquals(1.0, rs.getDouble(4), 0);
+				assertFalse(rs.next());
+			}
+		}
+
+	}
+
+	@Test
+	public void testTable() throws Exception {
+
+		SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
+		Object[] header = new Object[] {"InvoiceNo", "Currency", "Inv Date", "Total", "Booked"};
+		Fortnox4JReportTable table = new Fortnox4JReportTable(header, new int[] {
+				Fortnox4JReportTable.STRING,
+				Fortnox4JReportTable.DICT,
+				Fortnox4JReportTable.DATE,
+				Fortnox4JReportTable.AMOUNT,
+				Fortnox4JReportTable.BOOLEAN}, 16);
+
+		for (int i=0; i<3; i++) {
+			int r = table.addRow();
+			table.setString(r, 0, Integer.toString(1001 + i));
+			table.setString(r, 1, i==2 ? "EUR" : "SEK");
+			table.setDate(r, 2, i==1 ? null : df.parse("2023-01-0" + (i + 1)));
+			table.setDouble(r, 3, 100.1 * (i + 1));
+			table.setBoolean(r, 4, i!=0);
+		}
+
+		File f = tmp.newFile("invoices.parquet");
+		Fortnox4JParquet parquet = new Fortnox4JParquet();
+		parquet.setOutFile(f);
+		parquet.beginReport(header);
+		parquet.writeTable(table);
+		parquet.endReport();
+
+		try (Connection conn = DriverManager.getConnection("jdbc:duckdb:");
+				Statement st = conn.createStatement();
+				ResultSet rs = st.executeQuery("SELECT InvoiceNo, Currency, CAST(InvDate AS VARCHAR), Total, Booked FROM read_parquet('" + f.getAbsolutePath() + "') ORDER BY InvoiceNo")) {
+
+			assertTrue(rs.next());
+			assertEquals("1001", rs.getString(1));
+			assertEquals("SEK", rs.getString(2));
+			assertEquals("2023-01-01", rs.getString(3));
+			assertEquals(new BigDecimal("100.10"), rs.getBigDecimal(4));
+			assertFalse(rs.getBoolean(5));
+
+			assertTrue(rs.next());
+			assertNull(rs.getString(3));
+			assertEquals(new BigDecimal("200.20"), rs.getBigDecimal(4));
+			assertTrue(rs.getBoolean(5));
+
+			assertTrue(rs.next());
+			assertEquals("EUR", rs.getString(2));
+			assertEquals("2023-01-03", rs.getString(3));
+			assertEquals(new BigDecimal("300.30"), rs.getBigDecimal(4));
+			assertFalse(rs.next());
+		}
+
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.notima.api.fortnox4j.cli.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.notima.api.fortnox4j.cli.Fortnox4JSieParser;
+
+/**
+ * Parses small SIE4 snippets with Fortnox4JSieParser.
+ *
+ */
+public class TestSieParser {
+
+	/**
+	 * Records the parsed records as strings.
+	 */
+	private static class Recorder implements Fortnox4JSieParser.Handler {
+
+		List<String> records = new ArrayList<String>();
+
+		@Override
+		public void account(int account, String name) {
+			records.add("KONTO " + account + " " + name);
+		}
+
+		@Override
+		public void balance(char type, int year, int account, long amount) {
+			records.add(type + " " + year + " " + account + " " + amount);
+		}
+
+		@Override
+		public void transaction(int account, int date, long amount) {
+			records.add("TRANS " + account + " " + date + " " + amount);
+		}
+
+	}
+
+	/**
+	 * Parses a SIE file encoded in codepage 437, as SIE files are.
+	 */
+	private static List<String> parse(String sie) throws IOException {
+		Recorder recorder = new Recorder();
+		new Fortnox4JSieParser().parse(new ByteArrayInputStream(sie.getBytes(Charset.forName("IBM437"))), recorder);
+		return recorder.records;
+	}
+
+	@Test
+	public void testAmounts() throws Exception {
+
+		List<String> records = parse(
+				"#IB 0 1910 1234.5\r\n" +
+				"#UB 0 1910 -0.07\n" +
+				"#UB -1 1910 100\n" +
+				"#RES 0 3000 -1.995\n" +
+				"#RES 0 3010 2.004\n");
+
+		assertEquals("I 0 1910 123450", records.get(0));
+		assertEquals("U 0 1910 -7", records.get(1));
+		assertEquals("U -1 1910 10000", records.get(2));
+		// More than two decimals are rounded
+		assertEquals("R 0 3000 -200", records.get(3));
+		assertEquals("R 0 3010 200", records.get(4));
+		assertEquals(5, records.size());
+
+	}
+
+	@Test
+	public void testTransactionDates() throws Exception {
+
+		List<String> records = parse(
+				"#VER A 1 20230115 \"Sale\"\n" +
+				"{\n" +
+				"\t#TRANS 1510 {} 1250.00\n" +
+				"\t#TRANS 3001 {1 \"100\"} -1000.00 20230120 \"Sale\"\n" +
+				"\t#TRANS 2611 {} -250.00 \"\" \"VAT\"\n" +
+				"}\n");
+
+		// Without a date of its own, a transaction has the date of the voucher
+		assertEquals("TRANS 1510 20230115 125000", records.get(0));
+		assertEquals("TRANS 3001 20230120 -100000", records.get(1));
+		assertEquals("TRANS 2611 20230115 -25000", records.get(2));
+		assertEquals(3, records.size());
+
+	}
+
+	@Test
+	public void testQuoting() throws Exception {
+
+		List<String> records = parse(
+				"#FLAGGA 0\n" +
+				"#KONTO 1910 Kassa\n" +
+				"#KONTO 1930 \"F\u00f6retagskonto \\\"SEB\\\"\"\n" +
+				"#KONTO \"2440\" \"Leverant\u00f6rsskulder\"\n" +
+				"#KONTO 3000\n");
+
+		assertEquals("KONTO 1910 Kassa", records.get(0));
+		assertEquals("KONTO 1930 F\u00f6retagskonto \"SEB\"", records.get(1));
+		assertEquals("KONTO 2440 Leverant\u00f6rsskulder", records.get(2));
+		assertEquals("KONTO 3000 ", records.get(3));
+		assertEquals(4, records.size());
+
+	}
+
+	@Test
+	public void testInvalidAmount() throws Exception {
+
+		try {
+			parse("#IB 0 1910 12,50\n");
+			fail("Invalid amount wasn't rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("line 1"));
+		}
+
+	}
+
+}